@@ -0,0 +1,96 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Compressor which selects the codecs of the block automatically. The first sample of points is buffered and
+ * given to a {@link CodecSelector}, after which the points are written directly by a {@link GorillaCompressor}.
+ * The block can be read with the {@link GorillaDecompressor}.
+ *
+ * @author Michael Burman
+ */
+public class AdaptiveCompressor {
+
+    private final long blockTimestamp;
+    private final BitOutput out;
+    private final CodecSelector selector;
+
+    private long[] timestamps;
+    private long[] values;
+    private int count = 0;
+
+    private GorillaCompressor compressor;
+
+    public AdaptiveCompressor(long timestamp, BitOutput output) {
+        this(timestamp, output, new CodecSelector(), CodecSelector.DEFAULT_SAMPLE_SIZE);
+    }
+
+    /**
+     * @param timestamp Block timestamp
+     * @param output BitOutput to write the block to
+     * @param selector Selector for the codecs
+     * @param sampleSize Amount of points buffered before selecting the codecs
+     */
+    public AdaptiveCompressor(long timestamp, BitOutput output, CodecSelector selector, int sampleSize) {
+        if(sampleSize < 1) {
+            throw new IllegalArgumentException("Sample size must be positive, was " + sampleSize);
+        }
+        blockTimestamp = timestamp;
+        out = output;
+        this.selector = selector;
+        timestamps = new long[sampleSize];
+        values = new long[sampleSize];
+    }
+
+    /**
+     * Adds a new long value to the series. Note, values must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next long value in the series
+     */
+    public void addValue(long timestamp, long value) {
+        if(compressor != null) {
+            compressor.addValue(timestamp, value);
+            return;
+        }
+        timestamps[count] = timestamp;
+        values[count] = value;
+        if(++count == timestamps.length) {
+            select();
+        }
+    }
+
+    /**
+     * Adds a new double value to the series. Note, values must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next floating point value in the series
+     */
+    public void addValue(long timestamp, double value) {
+        addValue(timestamp, Double.doubleToRawLongBits(value));
+    }
+
+    private void select() {
+        compressor = selector.createCompressor(blockTimestamp, out, timestamps, values, count);
+        for(int i = 0; i < count; i++) {
+            compressor.addValue(timestamps[i], values[i]);
+        }
+        timestamps = null;
+        values = null;
+    }
+
+    /**
+     * Closes the block and writes the remaining stuff to the BitOutput.
+     */
+    public void close() {
+        if(compressor == null) {
+            select();
+        }
+        compressor.close();
+    }
+
+    /**
+     * @return Compressor used for the block, null until the sample is full or the block is closed
+     */
+    public GorillaCompressor getCompressor() {
+        return compressor;
+    }
+}
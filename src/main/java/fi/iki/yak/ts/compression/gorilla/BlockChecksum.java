@@ -0,0 +1,96 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * Verifies the CRC32C checksum appended to a block by the {@link ChecksumBitOutput}. The last word of the block
+ * holds a marker in the upper 32 bits and the checksum of all the preceding words in the lower 32 bits.
+ *
+ * @author Michael Burman
+ */
+public final class BlockChecksum {
+
+    public final static long TRAILER_MARKER = 0x43524343L << 32; // "CRCC"
+
+    private final static int BUFFER_SIZE = 8192;
+
+    private BlockChecksum() {
+    }
+
+    static long trailer(long checksum) {
+        return TRAILER_MARKER | checksum;
+    }
+
+    /**
+     * @param word Word of a block
+     * @return true if the word looks like a checksum trailer
+     */
+    public static boolean isTrailer(long word) {
+        return (word & 0xFFFFFFFF00000000L) == TRAILER_MARKER;
+    }
+
+    /**
+     * Verifies a block stored in a long array. The array may end with the padding word of
+     * {@link LongArrayOutput#getLongArray()}.
+     *
+     * @param block Block written through a ChecksumBitOutput
+     * @return true if the block has a checksum and it matches the contents
+     */
+    public static boolean verify(long[] block) {
+        int last = trailerIndex(block);
+        if(last < 0) {
+            return false;
+        }
+        Checksum checksum = Crc32c.newChecksum();
+        // The words are copied in bulk through a big endian view of the byte buffer
+        ByteBuffer buffer = ByteBuffer.allocate(Math.min(BUFFER_SIZE, last * Long.BYTES));
+        LongBuffer words = buffer.asLongBuffer();
+        for(int i = 0; i < last; i += words.capacity()) {
+            int length = Math.min(words.capacity(), last - i);
+            words.clear();
+            words.put(block, i, length);
+            checksum.update(buffer.array(), 0, length * Long.BYTES);
+        }
+        return checksum.getValue() == (block[last] & 0xFFFFFFFFL);
+    }
+
+    /**
+     * Verifies a block stored in a ByteBuffer, between its position and limit. The buffer position is not modified.
+     *
+     * @param block Block written through a ChecksumBitOutput
+     * @return true if the block has a checksum and it matches the contents
+     */
+    public static boolean verify(ByteBuffer block) {
+        int end = block.limit() - Long.BYTES;
+        if(end < block.position() || !isTrailer(block.getLong(end))) {
+            return false;
+        }
+        Checksum checksum = Crc32c.newChecksum();
+        if(block.hasArray()) {
+            checksum.update(block.array(), block.arrayOffset() + block.position(), end - block.position());
+        } else {
+            ByteBuffer content = block.duplicate();
+            content.limit(end);
+            byte[] buffer = new byte[Math.min(BUFFER_SIZE, content.remaining())];
+            while(content.hasRemaining()) {
+                int length = Math.min(buffer.length, content.remaining());
+                content.get(buffer, 0, length);
+                checksum.update(buffer, 0, length);
+            }
+        }
+        return checksum.getValue() == (block.getLong(end) & 0xFFFFFFFFL);
+    }
+
+    /**
+     * @return Index of the checksum trailer or -1 if the block has none
+     */
+    static int trailerIndex(long[] block) {
+        int last = block.length - 1;
+        if(last > 0 && block[last] == 0) {
+            last--;
+        }
+        return last >= 0 && isTrailer(block[last]) ? last : -1;
+    }
+}
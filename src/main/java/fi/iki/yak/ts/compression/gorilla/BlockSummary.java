@@ -0,0 +1,174 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Summary statistics of a block, stored as an optional footer after the end of the compressed stream by the
+ * {@link SummarizingCompressor}. The footer has a fixed size and is read from the end of the block, so the block
+ * can be skipped or answered from the summary without decompressing it. Decompressors stop at the end of stream
+ * marker and ignore the footer.
+ *
+ * The footer is stored as 64 bit words: version, codec ids and count, first timestamp, last timestamp, min, max,
+ * sum and a magic word that identifies the footer. A checksum trailer of the {@link ChecksumBitOutput} may follow
+ * the footer.
+ *
+ * @author Michael Burman
+ */
+public class BlockSummary {
+
+    public final static int VERSION = 2;
+
+    public final static long FOOTER_MAGIC = 0x474F52494C4C4153L; // "GORILLAS"
+
+    public final static int FOOTER_WORDS = 7;
+    public final static int FOOTER_BYTES = FOOTER_WORDS * Long.BYTES;
+
+    private final long blockTimestamp;
+    private final int version;
+    private final int timestampCodecId;
+    private final int valueCodecId;
+    private final int count;
+    private final long firstTimestamp;
+    private final long lastTimestamp;
+    private final double min;
+    private final double max;
+    private final double sum;
+
+    public BlockSummary(long blockTimestamp, int version, int timestampCodecId, int valueCodecId, int count,
+                        long firstTimestamp, long lastTimestamp, double min, double max, double sum) {
+        this.blockTimestamp = blockTimestamp;
+        this.version = version;
+        this.timestampCodecId = timestampCodecId;
+        this.valueCodecId = valueCodecId;
+        this.count = count;
+        this.firstTimestamp = firstTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.min = min;
+        this.max = max;
+        this.sum = sum;
+    }
+
+    /**
+     * Writes the footer. The output must be flushed before, so that the footer starts from a word boundary.
+     *
+     * @param out Output of the block
+     */
+    void writeFooter(BitOutput out) {
+        out.writeBits(((long) version << 56) | ((long) timestampCodecId << 48) | ((long) valueCodecId << 40)
+                | (count & 0xFFFFFFFFL), 64);
+        out.writeBits(firstTimestamp, 64);
+        out.writeBits(lastTimestamp, 64);
+        out.writeBits(Double.doubleToRawLongBits(min), 64);
+        out.writeBits(Double.doubleToRawLongBits(max), 64);
+        out.writeBits(Double.doubleToRawLongBits(sum), 64);
+        out.writeBits(FOOTER_MAGIC, 64);
+    }
+
+    private static BlockSummary fromWords(long blockTimestamp, long header, long firstTimestamp, long lastTimestamp,
+                                          long min, long max, long sum) {
+        return new BlockSummary(blockTimestamp, (int) (header >>> 56), (int) (header >>> 48) & 0xFF,
+                (int) (header >>> 40) & 0xFF, (int) header, firstTimestamp, lastTimestamp,
+                Double.longBitsToDouble(min), Double.longBitsToDouble(max), Double.longBitsToDouble(sum));
+    }
+
+    /**
+     * Reads the summary of a block stored in a ByteBuffer, between its position and limit. The buffer position is
+     * not modified.
+     *
+     * @param block Block written by the SummarizingCompressor
+     * @return Summary of the block or null if the block has no footer
+     */
+    public static BlockSummary readFooter(ByteBuffer block) {
+        int limit = block.limit();
+        if(limit - Long.BYTES >= block.position() && BlockChecksum.isTrailer(block.getLong(limit - Long.BYTES))) {
+            limit -= Long.BYTES;
+        }
+        int end = limit - FOOTER_BYTES;
+        if(end < block.position() + Long.BYTES || block.getLong(limit - Long.BYTES) != FOOTER_MAGIC) {
+            return null;
+        }
+        return fromWords(block.getLong(block.position()), block.getLong(end), block.getLong(end + 8),
+                block.getLong(end + 16), block.getLong(end + 24), block.getLong(end + 32), block.getLong(end + 40));
+    }
+
+    /**
+     * Reads the summary of a block stored in a long array. The array may end with the padding word of
+     * {@link LongArrayOutput#getLongArray()}.
+     *
+     * @param block Block written by the SummarizingCompressor
+     * @return Summary of the block or null if the block has no footer
+     */
+    public static BlockSummary readFooter(long[] block) {
+        int last = block.length - 1;
+        if(last > 0 && block[last] == 0) {
+            last--;
+        }
+        if(last > 0 && BlockChecksum.isTrailer(block[last])) {
+            last--;
+        }
+        int end = last - FOOTER_WORDS + 1;
+        if(end < 1 || block[last] != FOOTER_MAGIC) {
+            return null;
+        }
+        return fromWords(block[0], block[end], block[end + 1], block[end + 2], block[end + 3], block[end + 4],
+                block[end + 5]);
+    }
+
+    /**
+     * @param start Start of the range, inclusive
+     * @param end End of the range, inclusive
+     * @return true if the block may have points inside the range
+     */
+    public boolean overlaps(long start, long end) {
+        return count > 0 && firstTimestamp <= end && lastTimestamp >= start;
+    }
+
+    public long getBlockTimestamp() {
+        return blockTimestamp;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    public int getTimestampCodecId() {
+        return timestampCodecId;
+    }
+
+    public int getValueCodecId() {
+        return valueCodecId;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getFirstTimestamp() {
+        return firstTimestamp;
+    }
+
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return Smallest value of the block ignoring NaN values, NaN if the block is empty or has only NaN values
+     */
+    public double getMin() {
+        return min;
+    }
+
+    /**
+     * @return Largest value of the block ignoring NaN values, NaN if the block is empty or has only NaN values
+     */
+    public double getMax() {
+        return max;
+    }
+
+    /**
+     * @return Sum of the values of the block, NaN if any of the values was NaN
+     */
+    public double getSum() {
+        return sum;
+    }
+}
@@ -0,0 +1,162 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Streaming operations on compressed blocks. The points are moved from the decompressors to the compressors one
+ * at a time, so the memory usage does not depend on the size of the blocks.
+ *
+ * @author Michael Burman
+ */
+public final class Blocks {
+
+    /**
+     * Selects which value is kept when multiple points have the same timestamp
+     */
+    public enum DuplicatePolicy {
+        /**
+         * Keep the value from the input given first to the merge
+         */
+        FIRST,
+        /**
+         * Keep the value from the input given last to the merge, for example the newer data
+         */
+        LAST
+    }
+
+    private Blocks() {
+    }
+
+    /**
+     * Merges sorted blocks of the same series to a single block. Points with the same timestamp are written once,
+     * with the value selected by the policy. The output compressor is closed after the merge.
+     *
+     * @param inputs Decompressors of the blocks to merge, each sorted by timestamp
+     * @param output Compressor for the merged block, its block timestamp must not be after the first point
+     * @param policy Rule for the points with the same timestamp
+     * @return Amount of points written to the output
+     */
+    public static int merge(GorillaDecompressor[] inputs, GorillaCompressor output, DuplicatePolicy policy) {
+        int k = inputs.length;
+        long[] timestamps = new long[k];
+        long[] values = new long[k];
+
+        // Min-heap of the input indexes, ordered by the current timestamp of the input and then by the index
+        int[] heap = new int[k];
+        int size = 0;
+        for(int i = 0; i < k; i++) {
+            if(inputs[i].nextPair()) {
+                timestamps[i] = inputs[i].getTimestamp();
+                values[i] = inputs[i].getValue();
+                heap[size] = i;
+                siftUp(heap, size++, timestamps);
+            }
+        }
+
+        int count = 0;
+        boolean pending = false;
+        long pendingTimestamp = 0;
+        long pendingValue = 0;
+
+        while(size > 0) {
+            int i = heap[0];
+            long timestamp = timestamps[i];
+            long value = values[i];
+
+            if(inputs[i].nextPair()) {
+                timestamps[i] = inputs[i].getTimestamp();
+                values[i] = inputs[i].getValue();
+            } else {
+                heap[0] = heap[--size];
+            }
+            siftDown(heap, size, timestamps);
+
+            if(pending && timestamp == pendingTimestamp) {
+                if(policy == DuplicatePolicy.LAST) {
+                    pendingValue = value;
+                }
+                continue;
+            }
+            if(pending) {
+                output.addValue(pendingTimestamp, pendingValue);
+                count++;
+            }
+            pending = true;
+            pendingTimestamp = timestamp;
+            pendingValue = value;
+        }
+
+        if(pending) {
+            output.addValue(pendingTimestamp, pendingValue);
+            count++;
+        }
+        output.close();
+        return count;
+    }
+
+    private static boolean less(int a, int b, long[] timestamps) {
+        return timestamps[a] < timestamps[b] || (timestamps[a] == timestamps[b] && a < b);
+    }
+
+    private static void siftUp(int[] heap, int position, long[] timestamps) {
+        int index = heap[position];
+        while(position > 0) {
+            int parent = (position - 1) >>> 1;
+            if(!less(index, heap[parent], timestamps)) {
+                break;
+            }
+            heap[position] = heap[parent];
+            position = parent;
+        }
+        heap[position] = index;
+    }
+
+    private static void siftDown(int[] heap, int size, long[] timestamps) {
+        if(size == 0) {
+            return;
+        }
+        int index = heap[0];
+        int position = 0;
+        int half = size >>> 1;
+        while(position < half) {
+            int child = 2 * position + 1;
+            int right = child + 1;
+            if(right < size && less(heap[right], heap[child], timestamps)) {
+                child = right;
+            }
+            if(!less(heap[child], index, timestamps)) {
+                break;
+            }
+            heap[position] = heap[child];
+            position = child;
+        }
+        heap[position] = index;
+    }
+
+    /**
+     * Splits a block at the given timestamp. Both output compressors are closed after the split.
+     *
+     * @param input Decompressor of the block to split
+     * @param timestamp Points before this timestamp are written to the first output, the rest to the second
+     * @param before Compressor for the points before the timestamp
+     * @param after Compressor for the points at or after the timestamp, its block timestamp must not be after the
+     *              split timestamp
+     * @return Amount of points written to the first output
+     */
+    public static int split(GorillaDecompressor input, long timestamp, GorillaCompressor before,
+                            GorillaCompressor after) {
+        int count = 0;
+        boolean hasNext;
+        while((hasNext = input.nextPair()) && input.getTimestamp() < timestamp) {
+            before.addValue(input.getTimestamp(), input.getValue());
+            count++;
+        }
+        before.close();
+
+        if(hasNext) {
+            do {
+                after.addValue(input.getTimestamp(), input.getValue());
+            } while(input.nextPair());
+        }
+        after.close();
+        return count;
+    }
+}
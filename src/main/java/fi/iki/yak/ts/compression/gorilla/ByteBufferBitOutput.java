@@ -14,6 +14,10 @@ public class ByteBufferBitOutput implements BitOutput {
     private byte b;
     private int bitsLeft = Byte.SIZE;
 
+    private final MemoryBudget.Tenant tenant;
+    private long reserved = 0;
+    private boolean forceReservation = false;
+
     /**
      * Creates a new ByteBufferBitOutput with a default allocated size of 4096 bytes.
      */
@@ -27,31 +31,77 @@ public class ByteBufferBitOutput implements BitOutput {
      * @param initialSize New initialsize to use
      */
     public ByteBufferBitOutput(int initialSize) {
+        this(initialSize, null);
+    }
+
+    /**
+     * Creates an output which reserves its allocations from a memory budget. Call {@link #release()} once the
+     * output is no longer used.
+     *
+     * @param initialSize Initial size in bytes
+     * @param tenant Account in the memory budget, or null for no accounting
+     * @throws MemoryBudgetExceededException if the initial allocation does not fit in the budget
+     */
+    public ByteBufferBitOutput(int initialSize, MemoryBudget.Tenant tenant) {
+        this.tenant = tenant;
+        if(tenant != null) {
+            tenant.reserve(initialSize);
+            reserved = initialSize;
+        }
         bb = ByteBuffer.allocateDirect(initialSize);
         b = bb.get(bb.position());
     }
 
     private void expandAllocation() {
+        if(tenant != null) {
+            // Reserved before allocating, a rejected expansion leaves the output as it was
+            if(forceReservation) {
+                tenant.forceReserve(bb.capacity());
+            } else {
+                tenant.reserve(bb.capacity());
+            }
+            reserved += bb.capacity();
+        }
         ByteBuffer largerBB = ByteBuffer.allocateDirect(bb.capacity()*2);
         bb.flip();
         largerBB.put(bb);
-        largerBB.position(bb.capacity());
         bb = largerBB;
     }
 
+    /**
+     * Expands the allocation until it has room for the bytes, so that they can be written without growing. With a
+     * memory budget, this moves the possible rejection to before the writes. Reserving a whole point before
+     * compressing it keeps the stream decodable when the budget is exhausted.
+     *
+     * @param bytes Amount of bytes about to be written
+     * @param force Reserve the memory even if it does not fit in the budget
+     * @throws MemoryBudgetExceededException if the expansion does not fit in the budget
+     */
+    public void ensureCapacity(int bytes, boolean force) {
+        forceReservation = force;
+        try {
+            while(bb.remaining() < bytes) {
+                expandAllocation();
+            }
+        } finally {
+            forceReservation = false;
+        }
+    }
+
     private void flipByte() {
         if(bitsLeft == 0) {
+            // Room for the byte was ensured before any of its bits were written
             bb.put(b);
-            if(!bb.hasRemaining()) {
-                expandAllocation();
-            }
-            b = bb.get(bb.position());
+            b = 0;
             bitsLeft = Byte.SIZE;
         }
     }
 
     @Override
     public void writeBit() {
+        if(bitsLeft == 1 && !bb.hasRemaining()) {
+            ensureCapacity(1, false);
+        }
         b |= (1 << (bitsLeft - 1));
         bitsLeft--;
         flipByte();
@@ -59,6 +109,9 @@ public class ByteBufferBitOutput implements BitOutput {
 
     @Override
     public void skipBit() {
+        if(bitsLeft == 1 && !bb.hasRemaining()) {
+            ensureCapacity(1, false);
+        }
         bitsLeft--;
         flipByte();
     }
@@ -68,8 +121,14 @@ public class ByteBufferBitOutput implements BitOutput {
      *
      * @param value Value to be written to the stream
      * @param bits How many bits are stored to the stream
+     * @throws MemoryBudgetExceededException if the output could not grow for the value, nothing is written
      */
     public void writeBits(long value, int bits) {
+        // Room for every byte the value completes, so a rejection never leaves a part of the value behind
+        int bytes = (Byte.SIZE - bitsLeft + bits) / Byte.SIZE;
+        if(bb.remaining() < bytes) {
+            ensureCapacity(bytes, false);
+        }
         while(bits > 0) {
             int bitsToWrite = (bits > bitsLeft) ? bitsLeft : bits;
             if(bits > bitsLeft) {
@@ -77,7 +136,7 @@ public class ByteBufferBitOutput implements BitOutput {
                 b |= (byte) ((value >> shift) & ((1 << bitsLeft) - 1));
             } else {
                 int shift = bitsLeft - bits;
-                b |= (byte) (value << shift);
+                b |= (byte) ((value << shift) & ((1 << bitsLeft) - 1));
             }
             bits -= bitsToWrite;
             bitsLeft -= bitsToWrite;
@@ -90,10 +149,23 @@ public class ByteBufferBitOutput implements BitOutput {
      */
     @Override
     public void flush() {
+        if(!bb.hasRemaining()) {
+            ensureCapacity(1, false);
+        }
         bitsLeft = 0;
         flipByte(); // Causes write to the ByteBuffer
     }
 
+    /**
+     * Returns the reserved memory to the budget. The buffer itself is freed by the garbage collector.
+     */
+    public void release() {
+        if(tenant != null && reserved > 0) {
+            tenant.release(reserved);
+            reserved = 0;
+        }
+    }
+
     /**
      * Returns the underlying DirectByteBuffer
      *
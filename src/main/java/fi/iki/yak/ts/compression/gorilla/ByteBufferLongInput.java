@@ -0,0 +1,91 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Implements BitInput over a ByteBuffer which stores the stream as 64 bit big endian words, such as the words of
+ * {@link LongArrayOutput} written to a file. The words are read with absolute gets, so the buffer (for example a
+ * slice of a MappedByteBuffer) is used in place without copying and its position is not modified.
+ *
+ * @author Michael Burman
+ */
+public class ByteBufferLongInput implements BitInput {
+    private final ByteBuffer bb;
+    private final int offset;
+    private final int words;
+
+    private long lB;
+    private int position = 0;
+    private int bitsLeft = 0;
+
+    /**
+     * Reads the stream starting from the buffer's current position until its limit.
+     *
+     * @param buf Buffer with the words in big endian order
+     */
+    public ByteBufferLongInput(ByteBuffer buf) {
+        this.bb = buf;
+        this.offset = buf.position();
+        this.words = buf.remaining() / Long.BYTES;
+        flipByte();
+    }
+
+    @Override
+    public boolean readBit() {
+        boolean bit = (lB & LongArrayOutput.BIT_SET_MASK[bitsLeft - 1]) != 0;
+        bitsLeft--;
+        checkAndFlipByte();
+        return bit;
+    }
+
+    private void flipByte() {
+        // The next word is read eagerly, past the end there are only zeros
+        lB = position < words ? bb.getLong(offset + position * Long.BYTES) : 0;
+        position++;
+        bitsLeft = Long.SIZE;
+    }
+
+    private void checkAndFlipByte() {
+        if(bitsLeft == 0) {
+            flipByte();
+        }
+    }
+
+    @Override
+    public long getLong(int bits) {
+        long value;
+        if(bits <= bitsLeft) {
+            // We can read from this word only
+            // Shift to correct position and take only n least significant bits
+            value = (lB >>> (bitsLeft - bits)) & LongArrayOutput.MASK_ARRAY[bits - 1];
+            bitsLeft -= bits; // We ate n bits from it
+            checkAndFlipByte();
+        } else {
+            // This word and next one, no more (max bits is 64)
+            value = lB & LongArrayOutput.MASK_ARRAY[bitsLeft - 1]; // Read what's left first
+            bits -= bitsLeft;
+            flipByte(); // We need the next one
+            value <<= bits; // Give n bits of space to value
+            value |= (lB >>> (bitsLeft - bits));
+            bitsLeft -= bits;
+        }
+        return value;
+    }
+
+    @Override
+    public int nextClearBit(int maxBits) {
+        int val = 0x00;
+
+        for(int i = 0; i < maxBits; i++) {
+            val <<= 1;
+            boolean bit = readBit();
+
+            if(bit) {
+                val |= 0x01;
+            } else {
+                break;
+            }
+        }
+        return val;
+    }
+}
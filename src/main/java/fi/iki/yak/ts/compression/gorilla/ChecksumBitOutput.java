@@ -0,0 +1,117 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * BitOutput which calculates a CRC32C checksum of the written stream while passing the bits to the underlying
+ * output. The checksum is updated word by word as the stream is written, {@link #writeChecksum()} only appends the
+ * result as the last word of the block. Use {@link BlockChecksum} to verify the block.
+ *
+ * Flushing pads the stream with zeros to the next 64 bit word boundary, so that the checksummed words are the
+ * same regardless of the underlying output.
+ *
+ * @author Michael Burman
+ */
+public class ChecksumBitOutput implements BitOutput {
+
+    private final static int BUFFER_SIZE = 512;
+
+    private final BitOutput out;
+    private final Checksum checksum = Crc32c.newChecksum();
+
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+    private int bufferPosition = 0;
+
+    private long word = 0;
+    private int bitsLeft = Long.SIZE;
+
+    public ChecksumBitOutput(BitOutput output) {
+        out = output;
+    }
+
+    private void flipWord() {
+        buffer.putLong(bufferPosition, word);
+        bufferPosition += Long.BYTES;
+        if(bufferPosition == BUFFER_SIZE) {
+            checksum.update(buffer.array(), 0, BUFFER_SIZE);
+            bufferPosition = 0;
+        }
+        word = 0;
+        bitsLeft = Long.SIZE;
+    }
+
+    @Override
+    public void writeBit() {
+        out.writeBit();
+        word |= 1L << (bitsLeft - 1);
+        if(--bitsLeft == 0) {
+            flipWord();
+        }
+    }
+
+    @Override
+    public void skipBit() {
+        out.skipBit();
+        if(--bitsLeft == 0) {
+            flipWord();
+        }
+    }
+
+    @Override
+    public void writeBits(long value, int bits) {
+        out.writeBits(value, bits);
+        if(bits < Long.SIZE) {
+            value &= LongArrayOutput.MASK_ARRAY[bits - 1];
+        }
+        if(bits <= bitsLeft) {
+            word |= value << (bitsLeft - bits);
+            bitsLeft -= bits;
+            if(bitsLeft == 0) {
+                flipWord();
+            }
+        } else {
+            bits -= bitsLeft;
+            word |= value >>> bits;
+            flipWord();
+            word = value << (Long.SIZE - bits);
+            bitsLeft -= bits;
+        }
+    }
+
+    /**
+     * Pads the stream with zeros to the next word boundary and flushes the underlying output. The stream is padded to
+     * one bit short of the boundary and the underlying output pads the rest when flushed, so that flushing does not
+     * add words which are not in the checksum. If the stream is already at a word boundary, nothing is pending and
+     * the underlying output is not flushed.
+     */
+    @Override
+    public void flush() {
+        if(bitsLeft < Long.SIZE) {
+            if(bitsLeft > 1) {
+                writeBits(0, bitsLeft - 1);
+            }
+            out.flush();
+            flipWord();
+        }
+    }
+
+    /**
+     * Flushes the stream and appends the checksum of all the words written so far as the last word of the block.
+     */
+    public void writeChecksum() {
+        flush();
+        out.writeBits(BlockChecksum.trailer(getChecksum()), Long.SIZE);
+    }
+
+    /**
+     * @return CRC32C of the full words written so far
+     */
+    public long getChecksum() {
+        if(bufferPosition > 0) {
+            checksum.update(buffer.array(), 0, bufferPosition);
+            bufferPosition = 0;
+        }
+        return checksum.getValue();
+    }
+}
@@ -0,0 +1,102 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Selects the timestamp and value codecs for a block by trial encoding a sample of the points with every candidate
+ * combination and picking the one producing the least bits. On ties the earlier candidate wins.
+ *
+ * The default candidates are lossless for 64 bit values, {@link Xor32ValueCodec} is never selected unless given as
+ * a candidate.
+ *
+ * @author Michael Burman
+ */
+public class CodecSelector {
+
+    public final static int DEFAULT_SAMPLE_SIZE = 256;
+
+    private final TimestampCodec[] timestampCodecs;
+    private final ValueCodec[] valueCodecs;
+
+    public CodecSelector() {
+        this(new TimestampCodec[] { new DeltaOfDeltaTimestampCodec(), new ConstantCadenceTimestampCodec() },
+                new ValueCodec[] { new XorValueCodec(), new DictionaryValueCodec() });
+    }
+
+    /**
+     * @param timestampCodecs Candidate timestamp codecs, in the order of preference
+     * @param valueCodecs Candidate value codecs, in the order of preference
+     */
+    public CodecSelector(TimestampCodec[] timestampCodecs, ValueCodec[] valueCodecs) {
+        if(timestampCodecs.length == 0 || valueCodecs.length == 0) {
+            throw new IllegalArgumentException("At least one timestamp and value codec is required");
+        }
+        this.timestampCodecs = timestampCodecs.clone();
+        this.valueCodecs = valueCodecs.clone();
+    }
+
+    /**
+     * Creates a compressor with the codecs which compress the given sample best. The sample points are not added
+     * to the returned compressor.
+     *
+     * @param timestamp Block timestamp
+     * @param output BitOutput to write the block to
+     * @param timestamps Sample timestamps
+     * @param values Sample values as raw long bits
+     * @param count Amount of points in the sample
+     * @return Compressor writing to the output
+     */
+    public GorillaCompressor createCompressor(long timestamp, BitOutput output, long[] timestamps, long[] values,
+                                              int count) {
+        TimestampCodec bestTimestampCodec = timestampCodecs[0];
+        ValueCodec bestValueCodec = valueCodecs[0];
+        long bestSize = Long.MAX_VALUE;
+
+        for (TimestampCodec timestampCodec : timestampCodecs) {
+            for (ValueCodec valueCodec : valueCodecs) {
+                long size = encodedSize(timestamp, timestampCodec, valueCodec, timestamps, values, count);
+                if(size < bestSize) {
+                    bestSize = size;
+                    bestTimestampCodec = timestampCodec;
+                    bestValueCodec = valueCodec;
+                }
+            }
+        }
+        return new GorillaCompressor(timestamp, output, bestTimestampCodec, bestValueCodec);
+    }
+
+    private static long encodedSize(long timestamp, TimestampCodec timestampCodec, ValueCodec valueCodec,
+                                    long[] timestamps, long[] values, int count) {
+        BitCounter counter = new BitCounter();
+        GorillaCompressor c = new GorillaCompressor(timestamp, counter, timestampCodec, valueCodec);
+        for(int i = 0; i < count; i++) {
+            c.addValue(timestamps[i], values[i]);
+        }
+        c.close();
+        return counter.bits;
+    }
+
+    /**
+     * BitOutput which only counts the written bits
+     */
+    static class BitCounter implements BitOutput {
+        long bits;
+
+        @Override
+        public void writeBit() {
+            bits++;
+        }
+
+        @Override
+        public void skipBit() {
+            bits++;
+        }
+
+        @Override
+        public void writeBits(long value, int bits) {
+            this.bits += bits;
+        }
+
+        @Override
+        public void flush() {
+        }
+    }
+}
@@ -0,0 +1,78 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Registry of the timestamp and value codecs by their ids in the extended block header. Built-in codecs use ids
+ * 0 - 7, custom codecs should use 8 - 15 and must be registered before any block using them is read.
+ *
+ * @author Michael Burman
+ */
+public final class Codecs {
+
+    public final static int MAX_CODECS = 16;
+
+    private final static AtomicReferenceArray<TimestampCodec> timestampCodecs =
+            new AtomicReferenceArray<>(MAX_CODECS);
+    private final static AtomicReferenceArray<ValueCodec> valueCodecs = new AtomicReferenceArray<>(MAX_CODECS);
+
+    static {
+        register(new DeltaOfDeltaTimestampCodec());
+        register(new ConstantCadenceTimestampCodec());
+        register(new XorValueCodec());
+        register(new DictionaryValueCodec());
+        register(new Xor32ValueCodec());
+    }
+
+    private Codecs() {
+    }
+
+    /**
+     * Registers a timestamp codec, replacing any earlier one with the same id.
+     *
+     * @param codec Prototype of the codec
+     */
+    public static void register(TimestampCodec codec) {
+        timestampCodecs.set(checkId(codec.getId()), codec);
+    }
+
+    /**
+     * Registers a value codec, replacing any earlier one with the same id.
+     *
+     * @param codec Prototype of the codec
+     */
+    public static void register(ValueCodec codec) {
+        valueCodecs.set(checkId(codec.getId()), codec);
+    }
+
+    /**
+     * @param id Codec id
+     * @return New instance of the timestamp codec with the given id
+     */
+    public static TimestampCodec timestampCodec(int id) {
+        TimestampCodec codec = timestampCodecs.get(checkId(id));
+        if(codec == null) {
+            throw new IllegalArgumentException("Unknown timestamp codec " + id);
+        }
+        return codec.newInstance();
+    }
+
+    /**
+     * @param id Codec id
+     * @return New instance of the value codec with the given id
+     */
+    public static ValueCodec valueCodec(int id) {
+        ValueCodec codec = valueCodecs.get(checkId(id));
+        if(codec == null) {
+            throw new IllegalArgumentException("Unknown value codec " + id);
+        }
+        return codec.newInstance();
+    }
+
+    private static int checkId(int id) {
+        if(id < 0 || id >= MAX_CODECS) {
+            throw new IllegalArgumentException("Codec id must be between 0 and " + (MAX_CODECS - 1) + ", was " + id);
+        }
+        return id;
+    }
+}
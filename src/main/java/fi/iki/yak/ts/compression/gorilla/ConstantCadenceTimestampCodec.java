@@ -0,0 +1,80 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Omits the timestamps for as long as the series keeps a constant interval. The second timestamp is stored as
+ * delta-of-delta and it sets the interval. After that, timestamps matching the interval are not stored at all and
+ * the decompressor calculates them. The first one not matching the interval is signaled with an escape code in
+ * the value stream and the rest of the block uses delta-of-delta encoding.
+ *
+ * @author Michael Burman
+ */
+public class ConstantCadenceTimestampCodec extends DeltaOfDeltaTimestampCodec {
+
+    private final static int CADENCE_OFF = 0;
+    private final static int CADENCE_PENDING = 1;
+    private final static int CADENCE_ACTIVE = 2;
+
+    private int cadenceState = CADENCE_OFF;
+
+    @Override
+    public int getId() {
+        return GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE;
+    }
+
+    @Override
+    public TimestampCodec newInstance() {
+        return new ConstantCadenceTimestampCodec();
+    }
+
+    @Override
+    public void setFirst(long timestamp, long delta) {
+        super.setFirst(timestamp, delta);
+        cadenceState = CADENCE_PENDING;
+    }
+
+    @Override
+    public void write(long timestamp, BitOutput out, ValueCodec valueCodec) {
+        if(cadenceState == CADENCE_ACTIVE) {
+            if(timestamp - storedTimestamp == storedDelta) {
+                storedTimestamp = timestamp;
+                return;
+            }
+            valueCodec.writeEscape(ValueCodec.ESCAPE_CADENCE_BREAK, out);
+            cadenceState = CADENCE_OFF;
+        } else if(cadenceState == CADENCE_PENDING) {
+            cadenceState = CADENCE_ACTIVE;
+        }
+        super.write(timestamp, out, valueCodec);
+    }
+
+    @Override
+    public void writeEnd(BitOutput out, ValueCodec valueCodec) {
+        if(cadenceState == CADENCE_ACTIVE) {
+            // There are no timestamp bits to place the end marker in
+            valueCodec.writeEscape(ValueCodec.ESCAPE_END_OF_STREAM, out);
+        } else {
+            super.writeEnd(out, valueCodec);
+        }
+    }
+
+    @Override
+    public boolean read(BitInput in, ValueCodec valueCodec) {
+        if(cadenceState == CADENCE_ACTIVE) {
+            // Value is stored first, timestamp is calculated from the interval
+            switch(valueCodec.read(in)) {
+                case 0:
+                    storedTimestamp = storedDelta + storedTimestamp;
+                    return true;
+                case ValueCodec.ESCAPE_END_OF_STREAM:
+                    return false;
+                default:
+                    // ESCAPE_CADENCE_BREAK, the rest of the block is delta-of-delta encoded
+                    cadenceState = CADENCE_OFF;
+                    break;
+            }
+        } else if(cadenceState == CADENCE_PENDING) {
+            cadenceState = CADENCE_ACTIVE;
+        }
+        return super.read(in, valueCodec);
+    }
+}
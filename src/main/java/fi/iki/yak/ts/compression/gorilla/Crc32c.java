@@ -0,0 +1,90 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.util.zip.Checksum;
+
+/**
+ * CRC32C (Castagnoli) checksum. {@link #newChecksum()} returns the intrinsified java.util.zip.CRC32C when running on
+ * Java 9 or newer and this slicing-by-8 implementation on Java 8.
+ *
+ * @author Michael Burman
+ */
+public final class Crc32c implements Checksum {
+
+    private final static int POLYNOMIAL = 0x82F63B78; // Reversed Castagnoli polynomial
+
+    private final static int[][] TABLES = new int[8][256];
+
+    static {
+        for(int i = 0; i < 256; i++) {
+            int crc = i;
+            for(int j = 0; j < 8; j++) {
+                crc = (crc >>> 1) ^ ((crc & 1) != 0 ? POLYNOMIAL : 0);
+            }
+            TABLES[0][i] = crc;
+        }
+        for(int i = 0; i < 256; i++) {
+            for(int t = 1; t < 8; t++) {
+                TABLES[t][i] = (TABLES[t - 1][i] >>> 8) ^ TABLES[0][TABLES[t - 1][i] & 0xFF];
+            }
+        }
+    }
+
+    private final static Class<? extends Checksum> JDK_CRC32C = findJdkCrc32c();
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Checksum> findJdkCrc32c() {
+        try {
+            return (Class<? extends Checksum>) Class.forName("java.util.zip.CRC32C");
+        } catch(ClassNotFoundException e) {
+            return null;
+        }
+    }
+
+    /**
+     * @return New CRC32C checksum, the JDK implementation if available
+     */
+    public static Checksum newChecksum() {
+        if(JDK_CRC32C != null) {
+            try {
+                return JDK_CRC32C.getDeclaredConstructor().newInstance();
+            } catch(ReflectiveOperationException e) {
+                // Fall through to our own implementation
+            }
+        }
+        return new Crc32c();
+    }
+
+    private int crc = 0xFFFFFFFF;
+
+    @Override
+    public void update(int b) {
+        crc = (crc >>> 8) ^ TABLES[0][(crc ^ b) & 0xFF];
+    }
+
+    @Override
+    public void update(byte[] b, int off, int len) {
+        int localCrc = crc;
+        int end = off + len;
+        for(; off + 8 <= end; off += 8) {
+            int low = localCrc ^ ((b[off] & 0xFF) | (b[off + 1] & 0xFF) << 8 | (b[off + 2] & 0xFF) << 16
+                    | (b[off + 3] & 0xFF) << 24);
+            localCrc = TABLES[7][low & 0xFF] ^ TABLES[6][(low >>> 8) & 0xFF] ^ TABLES[5][(low >>> 16) & 0xFF]
+                    ^ TABLES[4][low >>> 24] ^ TABLES[3][b[off + 4] & 0xFF] ^ TABLES[2][b[off + 5] & 0xFF]
+                    ^ TABLES[1][b[off + 6] & 0xFF] ^ TABLES[0][b[off + 7] & 0xFF];
+        }
+        for(; off < end; off++) {
+            localCrc = (localCrc >>> 8) ^ TABLES[0][(localCrc ^ b[off]) & 0xFF];
+        }
+        crc = localCrc;
+    }
+
+    @Override
+    public long getValue() {
+        return (~crc) & 0xFFFFFFFFL;
+    }
+
+    @Override
+    public void reset() {
+        crc = 0xFFFFFFFF;
+    }
+}
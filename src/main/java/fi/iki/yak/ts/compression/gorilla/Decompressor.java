@@ -41,6 +41,38 @@ public class Decompressor {
         return new Pair(storedTimestamp, storedVal);
     }
 
+    /**
+     * Moves to the next pair in the time series without creating a Pair object. The pair is available from
+     * {@link #getTimestamp()} and {@link #getValue()}.
+     *
+     * @return true if there's next value, false if series is done.
+     */
+    public boolean nextPair() {
+        next();
+        return !endOfStream;
+    }
+
+    /**
+     * @return Timestamp of the current pair
+     */
+    public long getTimestamp() {
+        return storedTimestamp;
+    }
+
+    /**
+     * @return Value of the current pair as raw long bits
+     */
+    public long getValue() {
+        return storedVal;
+    }
+
+    /**
+     * @return Block timestamp from the header
+     */
+    public long getBlockTimestamp() {
+        return blockTimestamp;
+    }
+
     private void next() {
         if (storedTimestamp == 0) {
             // First item to read
@@ -53,7 +85,9 @@ public class Decompressor {
             storedTimestamp = blockTimestamp + storedDelta;
         } else {
             nextTimestamp();
-            nextValue();
+            if(!endOfStream) {
+                nextValue();
+            }
         }
     }
 
@@ -0,0 +1,158 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * The default 2.x timestamp encoding. Delta-of-deltas are turned to positive integers with ZigZag encoding, reduced
+ * by one and stored with 7, 9, 12 or 32 bits.
+ *
+ * @author Michael Burman
+ */
+public class DeltaOfDeltaTimestampCodec implements TimestampCodec {
+
+    private static int DELTAD_7_MASK = 0x02 << 7;
+    private static int DELTAD_9_MASK = 0x06 << 9;
+    private static int DELTAD_12_MASK = 0x0E << 12;
+
+    protected long storedTimestamp = 0;
+    protected long storedDelta = 0;
+
+    @Override
+    public int getId() {
+        return GorillaCompressor.TIMESTAMP_DELTA_OF_DELTA;
+    }
+
+    @Override
+    public TimestampCodec newInstance() {
+        return new DeltaOfDeltaTimestampCodec();
+    }
+
+    @Override
+    public void setFirst(long timestamp, long delta) {
+        storedTimestamp = timestamp;
+        storedDelta = delta;
+    }
+
+    /**
+     * Difference to the original Facebook paper, we store the first delta as 27 bits to allow
+     * millisecond accuracy for a one day block.
+     *
+     * Also, the timestamp delta-delta is not good for millisecond compressions..
+     *
+     * @param timestamp epoch
+     */
+    @Override
+    public void write(long timestamp, BitOutput out, ValueCodec valueCodec) {
+        // a) Calculate the delta of delta
+        int newDelta = (int) (timestamp - storedTimestamp);
+        int deltaD = newDelta - (int) storedDelta;
+
+        if(deltaD == 0) {
+            out.skipBit();
+        } else {
+            deltaD = GorillaCompressor.encodeZigZag32(deltaD);
+            deltaD--; // Increase by one in the decompressing phase as we have one free bit
+            int bitsRequired = 32 - Integer.numberOfLeadingZeros(deltaD); // Faster than highestSetBit
+
+            // Turns to inlineable tableswitch
+            switch(bitsRequired) {
+                case 1:
+                case 2:
+                case 3:
+                case 4:
+                case 5:
+                case 6:
+                case 7:
+                    deltaD |= DELTAD_7_MASK;
+                    out.writeBits(deltaD, 9);
+                    break;
+                case 8:
+                case 9:
+                    deltaD |= DELTAD_9_MASK;
+                    out.writeBits(deltaD, 12);
+                    break;
+                case 10:
+                case 11:
+                case 12:
+                    out.writeBits(deltaD | DELTAD_12_MASK, 16);
+                    break;
+                default:
+                    out.writeBits(0x0F, 4); // Store '1111'
+                    out.writeBits(deltaD, 32); // Store delta using 32 bits
+                    break;
+            }
+            storedDelta = newDelta;
+        }
+
+        storedTimestamp = timestamp;
+    }
+
+    @Override
+    public void writeEnd(BitOutput out, ValueCodec valueCodec) {
+        out.writeBits(0x0F, 4);
+        out.writeBits(0xFFFFFFFF, 32);
+    }
+
+    @Override
+    public boolean read(BitInput in, ValueCodec valueCodec) {
+        if(readTimestamp(in)) {
+            valueCodec.read(in);
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Reads only the next timestamp, for streams which store the values elsewhere.
+     *
+     * @param in Input of the timestamps
+     * @return false if the end of stream was reached
+     */
+    public boolean readTimestamp(BitInput in) {
+        int readInstruction = in.nextClearBit(4);
+
+        if(readInstruction != 0x00) {
+            long deltaDelta;
+
+            switch(readInstruction) {
+                case 0x02:
+                    deltaDelta = in.getLong(7);
+                    break;
+                case 0x06:
+                    deltaDelta = in.getLong(9);
+                    break;
+                case 0x0e:
+                    deltaDelta = in.getLong(12);
+                    break;
+                default:
+                    deltaDelta = in.getLong(32);
+                    // For storage save.. if this is the last available word, check if remaining bits are all 1
+                    if ((int) deltaDelta == 0xFFFFFFFF) {
+                        // End of stream
+                        return false;
+                    }
+                    break;
+            }
+
+            deltaDelta++;
+            deltaDelta = GorillaDecompressor.decodeZigZag32((int) deltaDelta);
+            storedDelta = storedDelta + deltaDelta;
+        }
+
+        storedTimestamp = storedDelta + storedTimestamp;
+        return true;
+    }
+
+    @Override
+    public long getTimestamp() {
+        return storedTimestamp;
+    }
+
+    void saveState(long[] state, int offset) {
+        state[offset] = storedTimestamp;
+        state[offset + 1] = storedDelta;
+    }
+
+    void restoreState(long[] state, int offset) {
+        storedTimestamp = state[offset];
+        storedDelta = state[offset + 1];
+    }
+}
@@ -0,0 +1,158 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.util.Map;
+
+/**
+ * Keeps the last {@link #DICTIONARY_SIZE} distinct values of the block in a dictionary. Same value as previous is
+ * stored as '0', a dictionary hit as '10' followed by the index and a new value as '11' followed by the 64 bit
+ * literal, which replaces the oldest entry once the dictionary is full. Index length depends on the amount of
+ * values in the dictionary, so it grows the same way in the decompression phase.
+ *
+ * Escape codes are stored as a literal equal to the previous value, which never happens with real values.
+ *
+ * @author Michael Burman
+ */
+public class DictionaryValueCodec implements ValueCodec {
+
+    /**
+     * Maximum amount of distinct values kept in the dictionary at once
+     */
+    public final static int DICTIONARY_SIZE = 16;
+
+    private final long[] dictionary = new long[DICTIONARY_SIZE];
+    private int dictionarySize = 0;
+    private int dictionaryNext = 0;
+    private int dictionaryIndex = 0;
+    private long storedVal = 0;
+
+    // Only used while counting values
+    private long[] dictionaryCounts;
+    private Map<Long, Long> valueCounts;
+
+    @Override
+    public int getId() {
+        return GorillaCompressor.VALUE_DICTIONARY;
+    }
+
+    @Override
+    public ValueCodec newInstance() {
+        return new DictionaryValueCodec();
+    }
+
+    @Override
+    public void writeFirst(long value, BitOutput out) {
+        out.writeBits(value, 64);
+        storedVal = value;
+        dictionary[dictionarySize++] = value;
+    }
+
+    @Override
+    public void write(long value, BitOutput out) {
+        if(value == storedVal) {
+            out.skipBit();
+            return;
+        }
+
+        storedVal = value;
+        for(int i = 0; i < dictionarySize; i++) {
+            if(dictionary[i] == value) {
+                out.writeBits(0x02, 2);
+                out.writeBits(i, indexBits(dictionarySize));
+                return;
+            }
+        }
+
+        out.writeBits(0x03, 2);
+        out.writeBits(value, 64);
+        insert(value);
+    }
+
+    private void insert(long value) {
+        if(dictionarySize < DICTIONARY_SIZE) {
+            dictionaryIndex = dictionarySize++;
+        } else {
+            // Replace the oldest entry
+            dictionaryIndex = dictionaryNext;
+            dictionaryNext = (dictionaryNext + 1) & (DICTIONARY_SIZE - 1);
+            if(dictionaryCounts != null) {
+                flushCount(dictionaryIndex);
+            }
+        }
+        dictionary[dictionaryIndex] = value;
+    }
+
+    private static int indexBits(int dictionarySize) {
+        return 32 - Integer.numberOfLeadingZeros(dictionarySize - 1);
+    }
+
+    @Override
+    public void writeEscape(int code, BitOutput out) {
+        out.writeBits(0x03, 2);
+        out.writeBits(storedVal, 64);
+        out.writeBits(code, 6);
+    }
+
+    @Override
+    public void readFirst(BitInput in) {
+        storedVal = in.getLong(64);
+        dictionary[dictionarySize++] = storedVal;
+    }
+
+    @Override
+    public int read(BitInput in) {
+        switch(in.nextClearBit(2)) {
+            case 2:
+                dictionaryIndex = (int) in.getLong(indexBits(dictionarySize));
+                storedVal = dictionary[dictionaryIndex];
+                break;
+            case 3:
+                long value = in.getLong(64);
+                if(value == storedVal) {
+                    // Not a value, but a control code
+                    return (int) in.getLong(6);
+                }
+                storedVal = value;
+                insert(value);
+                break;
+        }
+        return 0;
+    }
+
+    @Override
+    public long getValue() {
+        return storedVal;
+    }
+
+    /**
+     * Counts the current dictionary index only, values are resolved when an entry is replaced or the counting is
+     * done.
+     *
+     * @param counts Occurrences of each value
+     */
+    @Override
+    public void count(Map<Long, Long> counts) {
+        if(dictionaryCounts == null) {
+            dictionaryCounts = new long[DICTIONARY_SIZE];
+            valueCounts = counts;
+        }
+        dictionaryCounts[dictionaryIndex]++;
+    }
+
+    @Override
+    public void flushCounts(Map<Long, Long> counts) {
+        if(dictionaryCounts != null) {
+            for(int i = 0; i < dictionarySize; i++) {
+                flushCount(i);
+            }
+            dictionaryCounts = null;
+            valueCounts = null;
+        }
+    }
+
+    private void flushCount(int index) {
+        if(dictionaryCounts[index] > 0) {
+            valueCounts.merge(dictionary[index], dictionaryCounts[index], Long::sum);
+            dictionaryCounts[index] = 0;
+        }
+    }
+}
@@ -4,44 +4,162 @@ package fi.iki.yak.ts.compression.gorilla;
  * Implements a slightly modified version of the time series compression as described in the Facebook's Gorilla
  * Paper.
  *
+ * The timestamp and value encodings are done by a {@link TimestampCodec} and a {@link ValueCodec}. By default the
+ * 2.x format without an extended header is written, which uses {@link DeltaOfDeltaTimestampCodec} and
+ * {@link XorValueCodec}.
+ *
  * @author Michael Burman
  */
 public class GorillaCompressor {
 
-    private int storedLeadingZeros = Integer.MAX_VALUE;
-    private int storedTrailingZeros = 0;
-    private long storedVal = 0;
     private long storedTimestamp = 0;
-    private int storedDelta = 0;
 
     private long blockTimestamp = 0;
 
     public final static int FIRST_DELTA_BITS = 27;
 
-    private static int DELTAD_7_MASK = 0x02 << 7;
-    private static int DELTAD_9_MASK = 0x06 << 9;
-    private static int DELTAD_12_MASK = 0x0E << 12;
+    /**
+     * Stored in place of the first delta when the block has an extended header. Not a valid first delta, as it is
+     * outside the one day block range (and next to the end of stream marker).
+     */
+    public final static int EXTENDED_HEADER_MARKER = (1 << FIRST_DELTA_BITS) - 2;
+
+    /**
+     * Timestamps are stored as delta-of-deltas (the default 2.x encoding), see {@link DeltaOfDeltaTimestampCodec}
+     */
+    public final static int TIMESTAMP_DELTA_OF_DELTA = 0;
+
+    /**
+     * Timestamps are omitted for as long as the series keeps a constant interval, see
+     * {@link ConstantCadenceTimestampCodec}
+     */
+    public final static int TIMESTAMP_CONSTANT_CADENCE = 1;
+
+    /**
+     * Values are stored as XOR against the previous value (the default 2.x encoding), see {@link XorValueCodec}
+     */
+    public final static int VALUE_XOR = 0;
+
+    /**
+     * Values are stored as indexes to a small adaptive dictionary, see {@link DictionaryValueCodec}
+     */
+    public final static int VALUE_DICTIONARY = 1;
+
+    /**
+     * Values are 32 bit floats or ints, stored as XOR against the previous value with 5 bit headers, see
+     * {@link Xor32ValueCodec}
+     */
+    public final static int VALUE_XOR_32 = 2;
+
+    // Longs taken by the saved state of a compressor with the default codecs
+    final static int STATE_WORDS = 6;
+
+    private final TimestampCodec timestampCodec;
+    private final ValueCodec valueCodec;
 
     private BitOutput out;
 
     public GorillaCompressor(long timestamp, BitOutput output) {
         blockTimestamp = timestamp;
         out = output;
+        timestampCodec = new DeltaOfDeltaTimestampCodec();
+        valueCodec = new XorValueCodec();
         addHeader(timestamp);
     }
 
-//    public void compressLongStream(Stream<Pair> stream) {
-//        stream.peek(p -> writeFirst(p.getTimestamp(), Double.doubleToRawLongBits(p.getDoubleValue()))).skip(1)
-//                .forEach(p -> {
-//                    compressTimestamp(p.getTimestamp());
-//                    compressValue(p.getLongValue());
-//                });
-//    }
+    /**
+     * Creates a compressor which writes an extended header with the selected timestamp encoding. With
+     * {@link #TIMESTAMP_CONSTANT_CADENCE} the interval is taken from the first two points and as long as the series
+     * keeps that interval, no timestamp bits are written at all - the decompressor calculates the timestamps. The
+     * first irregular timestamp switches the rest of the block transparently to delta-of-delta encoding.
+     *
+     * Blocks with an extended header can not be read with GorillaDecompressor versions older than this one.
+     *
+     * @param timestamp Block timestamp
+     * @param output BitOutput to write the block to
+     * @param timestampEncoding Either {@link #TIMESTAMP_DELTA_OF_DELTA} or {@link #TIMESTAMP_CONSTANT_CADENCE}
+     */
+    public GorillaCompressor(long timestamp, BitOutput output, int timestampEncoding) {
+        this(timestamp, output, timestampEncoding, VALUE_XOR);
+    }
+
+    /**
+     * Creates a compressor which writes an extended header with the selected timestamp and value encodings. With
+     * {@link #VALUE_DICTIONARY} the last {@link DictionaryValueCodec#DICTIONARY_SIZE} distinct values are kept in a
+     * dictionary and values found from it are stored as short indexes. This suits enum-like series, such as states
+     * or status codes, which XOR encoding handles poorly when the values alternate.
+     *
+     * @param timestamp Block timestamp
+     * @param output BitOutput to write the block to
+     * @param timestampEncoding Id of a registered timestamp codec, see {@link Codecs}
+     * @param valueEncoding Id of a registered value codec, see {@link Codecs}
+     */
+    public GorillaCompressor(long timestamp, BitOutput output, int timestampEncoding, int valueEncoding) {
+        this(timestamp, output, Codecs.timestampCodec(timestampEncoding), Codecs.valueCodec(valueEncoding));
+    }
+
+    /**
+     * Creates a compressor which writes an extended header with the ids of the given codecs. The codecs are used
+     * as prototypes, the compressor uses new instances of them.
+     *
+     * @param timestamp Block timestamp
+     * @param output BitOutput to write the block to
+     * @param timestampCodec Codec for the timestamps
+     * @param valueCodec Codec for the values
+     */
+    public GorillaCompressor(long timestamp, BitOutput output, TimestampCodec timestampCodec, ValueCodec valueCodec) {
+        blockTimestamp = timestamp;
+        out = output;
+        this.timestampCodec = timestampCodec.newInstance();
+        this.valueCodec = valueCodec.newInstance();
+        addHeader(timestamp);
+        addExtendedHeader();
+    }
+
+    /**
+     * Continues a block written by another compressor, from the state saved with {@link #saveState(long[], int)}.
+     * Nothing is written to the output, it must already contain the block up to the saved state.
+     */
+    GorillaCompressor(long timestamp, BitOutput output, long[] state, int offset) {
+        blockTimestamp = timestamp;
+        out = output;
+        DeltaOfDeltaTimestampCodec timestamps = new DeltaOfDeltaTimestampCodec();
+        XorValueCodec values = new XorValueCodec();
+        storedTimestamp = state[offset];
+        timestamps.restoreState(state, offset + 1);
+        values.restoreState(state, offset + 3);
+        timestampCodec = timestamps;
+        valueCodec = values;
+    }
+
+    /**
+     * Saves the state of a compressor with the default codecs, which takes {@link #STATE_WORDS} longs.
+     *
+     * @throws UnsupportedOperationException if the compressor was created with other codecs
+     */
+    void saveState(long[] state, int offset) {
+        if(timestampCodec.getClass() != DeltaOfDeltaTimestampCodec.class
+                || valueCodec.getClass() != XorValueCodec.class) {
+            throw new UnsupportedOperationException("Only the state of the default codecs can be saved");
+        }
+        state[offset] = storedTimestamp;
+        ((DeltaOfDeltaTimestampCodec) timestampCodec).saveState(state, offset + 1);
+        ((XorValueCodec) valueCodec).saveState(state, offset + 3);
+    }
 
     private void addHeader(long timestamp) {
         out.writeBits(timestamp, 64);
     }
 
+    /**
+     * Extended header is the marker followed by 4 bits of timestamp codec id and 4 bits of value codec id
+     */
+    private void addExtendedHeader() {
+        out.writeBits(EXTENDED_HEADER_MARKER, FIRST_DELTA_BITS);
+        out.writeBits(timestampCodec.getId(), 4);
+        out.writeBits(valueCodec.getId(), 4);
+    }
+
     /**
      * Adds a new long value to the series. Note, values must be inserted in order.
      *
@@ -52,8 +170,9 @@ public class GorillaCompressor {
         if(storedTimestamp == 0) {
             writeFirst(timestamp, value);
         } else {
-            compressTimestamp(timestamp);
-            compressValue(value);
+            timestampCodec.write(timestamp, out, valueCodec);
+            valueCodec.write(value, out);
+            storedTimestamp = timestamp;
         }
     }
 
@@ -64,87 +183,61 @@ public class GorillaCompressor {
      * @param value next floating point value in the series
      */
     public void addValue(long timestamp, double value) {
-        if(storedTimestamp == 0) {
-            writeFirst(timestamp, Double.doubleToRawLongBits(value));
-            return;
-        }
-        compressTimestamp(timestamp);
-        compressValue(Double.doubleToRawLongBits(value));
+        addValue(timestamp, valueCodec.toRawBits(value));
+    }
+
+    /**
+     * Adds a new int value to the series. Note, values must be inserted in order. Unless the compressor was created
+     * with {@link #VALUE_XOR_32}, the value is stored as a long.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next int value in the series
+     */
+    public void addValue(long timestamp, int value) {
+        addValue(timestamp, (long) value);
+    }
+
+    /**
+     * Adds a new float value to the series. Note, values must be inserted in order. Unless the compressor was created
+     * with {@link #VALUE_XOR_32}, the value is stored as a double.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next float value in the series
+     */
+    public void addValue(long timestamp, float value) {
+        addValue(timestamp, valueCodec.toRawBits(value));
     }
 
     private void writeFirst(long timestamp, long value) {
-        storedDelta = (int) (timestamp - blockTimestamp);
+        int delta = (int) (timestamp - blockTimestamp);
         storedTimestamp = timestamp;
-        storedVal = value;
 
-        out.writeBits(storedDelta, FIRST_DELTA_BITS);
-        out.writeBits(storedVal, 64);
+        out.writeBits(delta, FIRST_DELTA_BITS);
+        valueCodec.writeFirst(value, out);
+        timestampCodec.setFirst(timestamp, delta);
     }
 
     /**
      * Closes the block and writes the remaining stuff to the BitOutput.
      */
     public void close() {
-        out.writeBits(0x0F, 4);
-        out.writeBits(0xFFFFFFFF, 32);
+        timestampCodec.writeEnd(out, valueCodec);
         out.skipBit();
         out.flush();
     }
 
     /**
-     * Difference to the original Facebook paper, we store the first delta as 27 bits to allow
-     * millisecond accuracy for a one day block.
-     *
-     * Also, the timestamp delta-delta is not good for millisecond compressions..
-     *
-     * @param timestamp epoch
+     * @return Codec used for the timestamps
      */
-    private void compressTimestamp(long timestamp) {
-
-        // a) Calculate the delta of delta
-        int newDelta = (int) (timestamp - storedTimestamp);
-        int deltaD = newDelta - storedDelta;
-
-        // TODO Fluctuating values will cause always 64 bits write (-2, +2 for example), zigzag could fix it..
-
-        if(deltaD == 0) {
-            out.skipBit();
-        } else {
-            deltaD = encodeZigZag32(deltaD);
-            deltaD--; // Increase by one in the decompressing phase as we have one free bit
-            int bitsRequired = 32 - Integer.numberOfLeadingZeros(deltaD); // Faster than highestSetBit
-
-            // Turns to inlineable tableswitch
-            switch(bitsRequired) {
-                case 1:
-                case 2:
-                case 3:
-                case 4:
-                case 5:
-                case 6:
-                case 7:
-                    deltaD |= DELTAD_7_MASK;
-                    out.writeBits(deltaD, 9);
-                    break;
-                case 8:
-                case 9:
-                    deltaD |= DELTAD_9_MASK;
-                    out.writeBits(deltaD, 12);
-                    break;
-                case 10:
-                case 11:
-                case 12:
-                    out.writeBits(deltaD | DELTAD_12_MASK, 16);
-                    break;
-                default:
-                    out.writeBits(0x0F, 4); // Store '1111'
-                    out.writeBits(deltaD, 32); // Store delta using 32 bits
-                    break;
-            }
-            storedDelta = newDelta;
-        }
+    public TimestampCodec getTimestampCodec() {
+        return timestampCodec;
+    }
 
-        storedTimestamp = timestamp;
+    /**
+     * @return Codec used for the values
+     */
+    public ValueCodec getValueCodec() {
+        return valueCodec;
     }
 
     // START: From protobuf
@@ -165,65 +258,4 @@ public class GorillaCompressor {
     }
 
     // END: From protobuf
-
-    private void compressValue(long value) {
-       long xor = storedVal ^ value;
-
-        if(xor == 0) {
-            // Write 0
-            out.skipBit();
-        } else {
-            int leadingZeros = Long.numberOfLeadingZeros(xor);
-            int trailingZeros = Long.numberOfTrailingZeros(xor);
-
-            out.writeBit(); // Optimize to writeNewLeading / writeExistingLeading?
-
-            if(leadingZeros >= storedLeadingZeros && trailingZeros >= storedTrailingZeros) {
-                writeExistingLeading(xor);
-            } else {
-                writeNewLeading(xor, leadingZeros, trailingZeros);
-            }
-        }
-
-        storedVal = value;
-    }
-
-    /**
-     * If there at least as many leading zeros and as many trailing zeros as previous value, control bit = 0 (type a)
-     * store the meaningful XORed value
-     *
-     * @param xor XOR between previous value and current
-     */
-    private void writeExistingLeading(long xor) {
-        out.skipBit();
-
-        int significantBits = 64 - storedLeadingZeros - storedTrailingZeros;
-        xor >>>= storedTrailingZeros;
-        out.writeBits(xor, significantBits);
-    }
-
-    /**
-     * store the length of the number of leading zeros in the next 5 bits
-     * store length of the meaningful XORed value in the next 6 bits,
-     * store the meaningful bits of the XORed value
-     * (type b)
-     *
-     * @param xor XOR between previous value and current
-     * @param leadingZeros New leading zeros
-     * @param trailingZeros New trailing zeros
-     */
-    private void writeNewLeading(long xor, int leadingZeros, int trailingZeros) {
-        out.writeBit();
-
-        // Different from version 1.x, use (significantBits - 1) in storage - avoids a branch
-        int significantBits = 64 - leadingZeros - trailingZeros;
-
-        // Different from original, bits 5 -> 6, avoids a branch, allows storing small longs
-        out.writeBits(leadingZeros, 6); // Number of leading zeros in the next 6 bits
-        out.writeBits(significantBits - 1, 6); // Length of meaningful bits in the next 6 bits
-        out.writeBits(xor >>> trailingZeros, significantBits); // Store the meaningful bits of XOR
-
-        storedLeadingZeros = leadingZeros;
-        storedTrailingZeros = trailingZeros;
-    }
 }
@@ -1,20 +1,23 @@
 package fi.iki.yak.ts.compression.gorilla;
 
+import java.util.HashMap;
+import java.util.Map;
+
 /**
- * Decompresses a compressed stream created by the GorillaCompressor.
+ * Decompresses a compressed stream created by the GorillaCompressor. The codecs are read from the extended header,
+ * if the block has one.
  *
  * @author Michael Burman
  */
 public class GorillaDecompressor {
 
-    private int storedLeadingZeros = Integer.MAX_VALUE;
-    private int storedTrailingZeros = 0;
-    private long storedVal = 0;
     private long storedTimestamp = 0;
-    private long storedDelta = 0;
 
     private long blockTimestamp = 0;
 
+    private TimestampCodec timestampCodec = new DeltaOfDeltaTimestampCodec();
+    private ValueCodec valueCodec = new XorValueCodec();
+
     private boolean endOfStream = false;
 
     private BitInput in;
@@ -38,91 +41,153 @@ public class GorillaDecompressor {
         if(endOfStream) {
             return null;
         }
-        Pair pair = new Pair(storedTimestamp, storedVal);
+        Pair pair = new Pair(storedTimestamp, valueCodec.getValue());
         return pair;
     }
 
-    private void next() {
-        // TODO I could implement a non-streaming solution also.. is there ever a need for streaming solution?
+    /**
+     * Moves to the next pair in the time series without creating a Pair object. The pair is available from
+     * {@link #getTimestamp()} and {@link #getValue()}.
+     *
+     * @return true if there's next value, false if series is done.
+     */
+    public boolean nextPair() {
+        next();
+        return !endOfStream;
+    }
+
+    /**
+     * @return Timestamp of the current pair
+     */
+    public long getTimestamp() {
+        return storedTimestamp;
+    }
+
+    /**
+     * @return Value of the current pair as raw long bits
+     */
+    public long getValue() {
+        return valueCodec.getValue();
+    }
 
+    /**
+     * @return Block timestamp from the header
+     */
+    public long getBlockTimestamp() {
+        return blockTimestamp;
+    }
+
+    /**
+     * Reads the rest of a 32 bit float series to the given arrays, until the arrays are full or the series is done.
+     *
+     * @param timestamps Array for the timestamps
+     * @param values Array for the values, same length as timestamps
+     * @return Amount of points read
+     */
+    public int readFloats(long[] timestamps, float[] values) {
+        int count = 0;
+        while(count < timestamps.length) {
+            next();
+            if(endOfStream) {
+                break;
+            }
+            timestamps[count] = storedTimestamp;
+            values[count] = Float.intBitsToFloat((int) valueCodec.getValue());
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Reads the rest of a 32 bit int series to the given arrays, until the arrays are full or the series is done.
+     *
+     * @param timestamps Array for the timestamps
+     * @param values Array for the values, same length as timestamps
+     * @return Amount of points read
+     */
+    public int readInts(long[] timestamps, int[] values) {
+        int count = 0;
+        while(count < timestamps.length) {
+            next();
+            if(endOfStream) {
+                break;
+            }
+            timestamps[count] = storedTimestamp;
+            values[count] = (int) valueCodec.getValue();
+            count++;
+        }
+        return count;
+    }
+
+    /**
+     * Counts the occurrences of each value in the rest of the series. Dictionary encoded blocks are counted
+     * directly from the indexes without resolving the values. The stream is consumed by this method.
+     *
+     * @return Map from value (raw long bits for double values) to amount of occurrences
+     */
+    public Map<Long, Long> countValues() {
+        Map<Long, Long> counts = new HashMap<>();
+        next();
+        while(!endOfStream) {
+            valueCodec.count(counts);
+            next();
+        }
+        valueCodec.flushCounts(counts);
+        return counts;
+    }
+
+    private void next() {
         if(storedTimestamp == 0) {
             first();
             return;
         }
 
-        nextTimestamp();
-        nextValue();
+        if(timestampCodec.read(in, valueCodec)) {
+            storedTimestamp = timestampCodec.getTimestamp();
+        } else {
+            endOfStream = true;
+        }
     }
 
     private void first() {
         // First item to read
-        storedDelta = in.getLong(Compressor.FIRST_DELTA_BITS);
-        if(storedDelta == (1<<27) - 1) {
+        long delta = in.getLong(GorillaCompressor.FIRST_DELTA_BITS);
+        if(delta == GorillaCompressor.EXTENDED_HEADER_MARKER) {
+            readExtendedHeader();
+            delta = in.getLong(GorillaCompressor.FIRST_DELTA_BITS);
+        }
+        if(delta == (1<<27) - 1) {
             endOfStream = true;
             return;
         }
-        storedVal = in.getLong(64);
-        storedTimestamp = blockTimestamp + storedDelta;
+        valueCodec.readFirst(in);
+        storedTimestamp = blockTimestamp + delta;
+        timestampCodec.setFirst(storedTimestamp, delta);
     }
 
-    private void nextTimestamp() {
-        // Next, read timestamp
-        int readInstruction = in.nextClearBit(4);
-        long deltaDelta;
-
-        switch(readInstruction) {
-            case 0x00:
-                storedTimestamp = storedDelta + storedTimestamp;
-                return;
-            case 0x02:
-                deltaDelta = in.getLong(7);
-                break;
-            case 0x06:
-                deltaDelta = in.getLong(9);
-                break;
-            case 0x0e:
-                deltaDelta = in.getLong(12);
-                break;
-            case 0x0F:
-                deltaDelta = in.getLong(32);
-                // For storage save.. if this is the last available word, check if remaining bits are all 1
-                if ((int) deltaDelta == 0xFFFFFFFF) {
-                    // End of stream
-                    endOfStream = true;
-                    return;
-                }
-                break;
-            default:
-                return;
+    private void readExtendedHeader() {
+        int timestampCodecId = (int) in.getLong(4);
+        int valueCodecId = (int) in.getLong(4);
+        try {
+            timestampCodec = Codecs.timestampCodec(timestampCodecId);
+            valueCodec = Codecs.valueCodec(valueCodecId);
+        } catch(IllegalArgumentException e) {
+            throw new IllegalStateException("Unsupported block encoding " + timestampCodecId + "/" + valueCodecId, e);
         }
-
-        deltaDelta++;
-        deltaDelta = decodeZigZag32((int) deltaDelta);
-        storedDelta = storedDelta + deltaDelta;
-
-        storedTimestamp = storedDelta + storedTimestamp;
     }
 
-    private void nextValue() {
-        int val = in.nextClearBit(2);
-
-        switch(val) {
-            case 3:
-                // New leading and trailing zeros
-                storedLeadingZeros = (int) in.getLong(6);
-
-                byte significantBits = (byte) in.getLong(6);
-                significantBits++;
+    /**
+     * @return Codec used for the timestamps, known after the first read
+     */
+    public TimestampCodec getTimestampCodec() {
+        return timestampCodec;
+    }
 
-                storedTrailingZeros = 64 - significantBits - storedLeadingZeros;
-                // missing break is intentional, we want to overflow to next one
-            case 2:
-                long value = in.getLong(64 - storedLeadingZeros - storedTrailingZeros);
-                value <<= storedTrailingZeros;
-                value = storedVal ^ value;
-                storedVal = value;
-                break;
-        }
+    /**
+     * @return Codec used for the values, known after the first read
+     */
+    public ValueCodec getValueCodec() {
+        return valueCodec;
     }
 
     // START: From protobuf
@@ -142,4 +207,4 @@ public class GorillaDecompressor {
 
     // END: From protobuf
 
-}
\ No newline at end of file
+}
@@ -0,0 +1,16 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Receives the points which arrived too late to be written to the block in order.
+ *
+ * @author Michael Burman
+ */
+@FunctionalInterface
+public interface LateValueSink {
+
+    /**
+     * @param timestamp Timestamp of the late point
+     * @param value Value of the late point as raw long bits, as stored by the value codec of the block
+     */
+    void accept(long timestamp, long value);
+}
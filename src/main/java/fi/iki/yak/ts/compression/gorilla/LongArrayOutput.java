@@ -8,12 +8,16 @@ package fi.iki.yak.ts.compression.gorilla;
 public class LongArrayOutput implements BitOutput {
     public static final int DEFAULT_ALLOCATION =  4096*32;
 
-    private long[] longArray;
-    private int position = 0;
+    protected long[] longArray;
+    protected int position = 0;
 
     protected long lB;
     protected int bitsLeft = Long.SIZE;
 
+    private final MemoryBudget.Tenant tenant;
+    private long reserved = 0;
+    private boolean forceReservation = false;
+
     public final static long[] MASK_ARRAY;
     public final static long[] BIT_SET_MASK;
 
@@ -49,11 +53,38 @@ public class LongArrayOutput implements BitOutput {
      * @param initialSize New initialsize to use
      */
     public LongArrayOutput(int initialSize) {
+        this(initialSize, null);
+    }
+
+    /**
+     * Creates an output which reserves its allocations from a memory budget. Call {@link #release()} once the
+     * output is no longer used.
+     *
+     * @param initialSize Initial size in words
+     * @param tenant Account in the memory budget, or null for no accounting
+     * @throws MemoryBudgetExceededException if the initial allocation does not fit in the budget
+     */
+    public LongArrayOutput(int initialSize, MemoryBudget.Tenant tenant) {
+        this.tenant = tenant;
+        if(tenant != null) {
+            tenant.reserve((long) initialSize * Long.BYTES);
+            reserved = (long) initialSize * Long.BYTES;
+        }
         longArray = new long[initialSize];
         lB = longArray[position];
     }
 
     protected void expandAllocation() {
+        if(tenant != null) {
+            // Reserved before allocating, a rejected expansion leaves the output as it was
+            long bytes = (long) longArray.length * Long.BYTES;
+            if(forceReservation) {
+                tenant.forceReserve(bytes);
+            } else {
+                tenant.reserve(bytes);
+            }
+            reserved += bytes;
+        }
         long[] largerArray = new long[longArray.length*2];
         System.arraycopy(longArray, 0, largerArray, 0, longArray.length);
         longArray = largerArray;
@@ -139,12 +170,55 @@ public class LongArrayOutput implements BitOutput {
         flipWord(); // Causes write to the ByteBuffer
     }
 
+    /**
+     * Expands the allocation until it has room for the words, so that they can be written without growing. With a
+     * memory budget, this moves the possible rejection to before the writes.
+     *
+     * @param words Amount of words about to be written
+     * @param force Reserve the memory even if it does not fit in the budget
+     * @throws MemoryBudgetExceededException if the expansion does not fit in the budget
+     */
+    public void ensureCapacity(int words, boolean force) {
+        forceReservation = force;
+        try {
+            while(capacityLeft() <= words + 2) {
+                expandAllocation();
+            }
+        } finally {
+            forceReservation = false;
+        }
+    }
+
+    /**
+     * Returns the reserved memory to the budget. The output must not be written after this.
+     */
+    public void release() {
+        if(tenant != null && reserved > 0) {
+            tenant.release(reserved);
+            reserved = 0;
+        }
+    }
+
+    /**
+     * @return Size of the backing array in bytes
+     */
+    public long getAllocatedBytes() {
+        return (long) longArray.length * Long.BYTES;
+    }
+
     public void reset() {
         position = 0;
         bitsLeft = Long.SIZE;
         lB = 0;
     }
 
+    /**
+     * @return Amount of bits written since the creation or the last reset
+     */
+    public long getBitCount() {
+        return (long) position * Long.SIZE + Long.SIZE - bitsLeft;
+    }
+
     public long[] getLongArray() {
         long[] copy = new long[position+1];
         System.arraycopy(longArray, 0, copy, 0, position);
@@ -0,0 +1,211 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared memory budget for the buffers of the compressor outputs. Outputs created with a {@link Tenant} reserve
+ * their allocations from the budget and return them when released, so the usage of all the outputs, and of each
+ * tenant, can be queried and bounded.
+ *
+ * When the budget is exhausted, the {@link Policy} decides what happens to a reservation: it waits for memory to be
+ * released, fails at once, or fails so that the caller can spill its data, for example by sealing the block early.
+ *
+ * @author Michael Burman
+ */
+public class MemoryBudget {
+
+    /**
+     * What happens to a reservation which does not fit in the budget
+     */
+    public enum Policy {
+        /**
+         * Wait for other outputs to release memory, up to the maximum wait, and fail after that
+         */
+        BLOCK,
+        /**
+         * Fail at once with a {@link MemoryBudgetExceededException}
+         */
+        REJECT,
+        /**
+         * Fail at once, callers which can move their data elsewhere spill it and retry. The store seals the open
+         * block and hands it to the block sink.
+         */
+        SPILL
+    }
+
+    private final long maxBytes;
+    private final Policy policy;
+    private final long maxWaitNanos;
+
+    private final AtomicLong used = new AtomicLong();
+    private final Map<String, Tenant> tenants = new ConcurrentHashMap<>();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition released = lock.newCondition();
+
+    /**
+     * @param maxBytes Size of the budget
+     * @param policy Policy for the reservations which do not fit
+     */
+    public MemoryBudget(long maxBytes, Policy policy) {
+        this(maxBytes, policy, TimeUnit.SECONDS.toMillis(10));
+    }
+
+    /**
+     * @param maxBytes Size of the budget
+     * @param policy Policy for the reservations which do not fit
+     * @param maxWait Milliseconds a reservation waits with {@link Policy#BLOCK}
+     */
+    public MemoryBudget(long maxBytes, Policy policy, long maxWait) {
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("Budget must not be negative, was " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+        this.policy = policy;
+        this.maxWaitNanos = TimeUnit.MILLISECONDS.toNanos(maxWait);
+    }
+
+    /**
+     * @param name Name of the tenant
+     * @return Account of the tenant, created on the first call
+     */
+    public Tenant tenant(String name) {
+        return tenants.computeIfAbsent(name, Tenant::new);
+    }
+
+    private boolean tryReserve(long bytes) {
+        while(true) {
+            long current = used.get();
+            if(current + bytes > maxBytes) {
+                return false;
+            }
+            if(used.compareAndSet(current, current + bytes)) {
+                return true;
+            }
+        }
+    }
+
+    private void reserve(long bytes) {
+        if(tryReserve(bytes)) {
+            return;
+        }
+        if(policy == Policy.BLOCK) {
+            long deadline = System.nanoTime() + maxWaitNanos;
+            lock.lock();
+            try {
+                while(true) {
+                    if(tryReserve(bytes)) {
+                        return;
+                    }
+                    long left = deadline - System.nanoTime();
+                    if(left <= 0) {
+                        break;
+                    }
+                    released.awaitNanos(left);
+                }
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                lock.unlock();
+            }
+        }
+        throw new MemoryBudgetExceededException("Memory budget of " + maxBytes + " bytes exceeded, " + used.get()
+                + " bytes in use and " + bytes + " requested");
+    }
+
+    private void release(long bytes) {
+        used.addAndGet(-bytes);
+        if(policy == Policy.BLOCK) {
+            lock.lock();
+            try {
+                released.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * @return Bytes reserved by all the tenants
+     */
+    public long getUsedBytes() {
+        return used.get();
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * @return Bytes reserved by each tenant, sorted by the tenant name
+     */
+    public Map<String, Long> getUsageByTenant() {
+        Map<String, Long> usage = new TreeMap<>();
+        tenants.forEach((name, tenant) -> usage.put(name, tenant.getUsedBytes()));
+        return usage;
+    }
+
+    /**
+     * Account of one tenant in the budget. Thread-safe.
+     */
+    public final class Tenant {
+        private final String name;
+        private final AtomicLong tenantUsed = new AtomicLong();
+
+        private Tenant(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Reserves memory, applying the policy of the budget if it does not fit.
+         *
+         * @param bytes Amount of bytes to reserve
+         * @throws MemoryBudgetExceededException if the memory could not be reserved
+         */
+        public void reserve(long bytes) {
+            MemoryBudget.this.reserve(bytes);
+            tenantUsed.addAndGet(bytes);
+        }
+
+        /**
+         * Reserves memory even if it does not fit in the budget. For allocations which must not fail, such as
+         * finishing a block.
+         *
+         * @param bytes Amount of bytes to reserve
+         */
+        public void forceReserve(long bytes) {
+            used.addAndGet(bytes);
+            tenantUsed.addAndGet(bytes);
+        }
+
+        /**
+         * @param bytes Amount of previously reserved bytes to return
+         */
+        public void release(long bytes) {
+            tenantUsed.addAndGet(-bytes);
+            MemoryBudget.this.release(bytes);
+        }
+
+        public long getUsedBytes() {
+            return tenantUsed.get();
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public MemoryBudget getBudget() {
+            return MemoryBudget.this;
+        }
+    }
+}
@@ -0,0 +1,17 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Thrown when a {@link MemoryBudget} can not give the requested memory. Outputs throw it before they grow, so a
+ * caller which checks the capacity before writing a point, like {@link OpenBlock}, can reject the point and keep
+ * the block intact.
+ *
+ * @author Michael Burman
+ */
+public class MemoryBudgetExceededException extends RuntimeException {
+
+    private static final long serialVersionUID = 1L;
+
+    public MemoryBudgetExceededException(String message) {
+        super(message);
+    }
+}
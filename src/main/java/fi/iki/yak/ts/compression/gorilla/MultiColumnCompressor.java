@@ -0,0 +1,133 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Compresses a block of multiple value columns sharing the same timestamps. The timestamps are encoded only once
+ * with delta-of-delta encoding and each column is XOR encoded separately.
+ *
+ * The columns are buffered until the block is closed, after which the block is written to the output in the
+ * following layout: block timestamp (64 bits), amount of columns (16 bits), amount of points (32 bits), the
+ * timestamp stream and then each column prefixed with its length in bits (32 bits). The lengths allow the
+ * {@link MultiColumnDecompressor} to skip the columns which were not requested.
+ *
+ * @author Michael Burman
+ */
+public class MultiColumnCompressor {
+
+    public final static int MAX_COLUMNS = (1 << 16) - 1;
+
+    private final static int COLUMN_ALLOCATION = 256;
+
+    private final long blockTimestamp;
+    private final BitOutput out;
+
+    private final DeltaOfDeltaTimestampCodec timestampCodec = new DeltaOfDeltaTimestampCodec();
+    private final LongArrayOutput timestampOutput = new LongArrayOutput(COLUMN_ALLOCATION);
+
+    private final XorValueCodec[] valueCodecs;
+    private final LongArrayOutput[] valueOutputs;
+
+    private int count = 0;
+
+    /**
+     * @param timestamp Block timestamp
+     * @param output BitOutput to write the block to when it is closed
+     * @param columns Amount of value columns
+     */
+    public MultiColumnCompressor(long timestamp, BitOutput output, int columns) {
+        if(columns < 1 || columns > MAX_COLUMNS) {
+            throw new IllegalArgumentException("Amount of columns must be between 1 and " + MAX_COLUMNS + ", was "
+                    + columns);
+        }
+        blockTimestamp = timestamp;
+        out = output;
+        valueCodecs = new XorValueCodec[columns];
+        valueOutputs = new LongArrayOutput[columns];
+        for(int i = 0; i < columns; i++) {
+            valueCodecs[i] = new XorValueCodec();
+            valueOutputs[i] = new LongArrayOutput(COLUMN_ALLOCATION);
+        }
+    }
+
+    /**
+     * Adds a new point with a long value for each column. Note, points must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param values Values of the columns, in column order
+     */
+    public void addValues(long timestamp, long[] values) {
+        checkColumns(values.length);
+        if(count == 0) {
+            int delta = (int) (timestamp - blockTimestamp);
+            timestampOutput.writeBits(delta, GorillaCompressor.FIRST_DELTA_BITS);
+            timestampCodec.setFirst(timestamp, delta);
+            for(int i = 0; i < valueCodecs.length; i++) {
+                valueCodecs[i].writeFirst(values[i], valueOutputs[i]);
+            }
+        } else {
+            timestampCodec.write(timestamp, timestampOutput, null);
+            for(int i = 0; i < valueCodecs.length; i++) {
+                valueCodecs[i].write(values[i], valueOutputs[i]);
+            }
+        }
+        count++;
+    }
+
+    /**
+     * Adds a new point with a double value for each column. Note, points must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param values Values of the columns, in column order
+     */
+    public void addValues(long timestamp, double[] values) {
+        checkColumns(values.length);
+        long[] bits = new long[values.length];
+        for(int i = 0; i < values.length; i++) {
+            bits[i] = Double.doubleToRawLongBits(values[i]);
+        }
+        addValues(timestamp, bits);
+    }
+
+    private void checkColumns(int columns) {
+        if(columns != valueCodecs.length) {
+            throw new IllegalArgumentException("Expected " + valueCodecs.length + " values, got " + columns);
+        }
+    }
+
+    /**
+     * Writes the block to the BitOutput.
+     */
+    public void close() {
+        out.writeBits(blockTimestamp, 64);
+        out.writeBits(valueCodecs.length, 16);
+        out.writeBits(count, 32);
+
+        copy(timestampOutput, out);
+        for (LongArrayOutput valueOutput : valueOutputs) {
+            out.writeBits(valueOutput.getBitCount(), 32);
+            copy(valueOutput, out);
+        }
+        out.skipBit();
+        out.flush();
+    }
+
+    private static void copy(LongArrayOutput from, BitOutput to) {
+        long bits = from.getBitCount();
+        from.flush();
+        long[] words = from.getLongArray();
+        int fullWords = (int) (bits / Long.SIZE);
+        for(int i = 0; i < fullWords; i++) {
+            to.writeBits(words[i], Long.SIZE);
+        }
+        int remaining = (int) (bits % Long.SIZE);
+        if(remaining > 0) {
+            to.writeBits(words[fullWords] >>> (Long.SIZE - remaining), remaining);
+        }
+    }
+
+    /**
+     * @return Amount of points added to the block
+     */
+    public int getCount() {
+        return count;
+    }
+}
@@ -0,0 +1,158 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Decompresses a block created by the {@link MultiColumnCompressor}. The shared timestamps are decoded when the
+ * decompressor is created, the value columns are decoded with {@link #readColumns(int...)}. Columns which are not
+ * requested are skipped without decoding them.
+ *
+ * @author Michael Burman
+ */
+public class MultiColumnDecompressor {
+
+    private final BitInput in;
+
+    private final long blockTimestamp;
+    private final int columns;
+    private final long[] timestamps;
+
+    private boolean columnsRead = false;
+
+    public MultiColumnDecompressor(BitInput input) {
+        in = input;
+        blockTimestamp = in.getLong(64);
+        columns = (int) in.getLong(16);
+        timestamps = new long[(int) in.getLong(32)];
+        readTimestamps();
+    }
+
+    private void readTimestamps() {
+        if(timestamps.length == 0) {
+            return;
+        }
+        long delta = in.getLong(GorillaCompressor.FIRST_DELTA_BITS);
+        timestamps[0] = blockTimestamp + delta;
+
+        DeltaOfDeltaTimestampCodec timestampCodec = new DeltaOfDeltaTimestampCodec();
+        timestampCodec.setFirst(timestamps[0], delta);
+        for(int i = 1; i < timestamps.length; i++) {
+            timestampCodec.readTimestamp(in);
+            timestamps[i] = timestampCodec.getTimestamp();
+        }
+    }
+
+    /**
+     * @return Block timestamp
+     */
+    public long getBlockTimestamp() {
+        return blockTimestamp;
+    }
+
+    /**
+     * @return Amount of value columns in the block
+     */
+    public int getColumnCount() {
+        return columns;
+    }
+
+    /**
+     * @return Timestamps shared by all the columns
+     */
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * Decodes the requested columns as raw long bits. Can be called only once, as the columns are read from the
+     * stream.
+     *
+     * @param columnIndexes Indexes of the columns to decode, all columns if none are given
+     * @return Values of each requested column in the order of the requested indexes, each as long as the timestamps
+     */
+    public long[][] readColumns(int... columnIndexes) {
+        if(columnsRead) {
+            throw new IllegalStateException("Columns have already been read");
+        }
+        columnsRead = true;
+
+        if(columnIndexes.length == 0) {
+            columnIndexes = new int[columns];
+            for(int i = 0; i < columns; i++) {
+                columnIndexes[i] = i;
+            }
+        }
+
+        // Position of each column in the result, -1 if the column is not requested
+        int[] resultIndexes = new int[columns];
+        for(int i = 0; i < columns; i++) {
+            resultIndexes[i] = -1;
+        }
+        for(int i = 0; i < columnIndexes.length; i++) {
+            int column = columnIndexes[i];
+            if(column < 0 || column >= columns) {
+                throw new IllegalArgumentException("Column index must be between 0 and " + (columns - 1) + ", was "
+                        + column);
+            }
+            if(resultIndexes[column] != -1) {
+                throw new IllegalArgumentException("Column " + column + " requested more than once");
+            }
+            resultIndexes[column] = i;
+        }
+
+        long[][] values = new long[columnIndexes.length][];
+        int remaining = columnIndexes.length;
+        for(int column = 0; column < columns && remaining > 0; column++) {
+            long bits = in.getLong(32);
+            if(resultIndexes[column] == -1) {
+                skip(bits);
+            } else {
+                values[resultIndexes[column]] = readColumn();
+                remaining--;
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Decodes the requested columns as double values. Can be called only once, as the columns are read from the
+     * stream.
+     *
+     * @param columnIndexes Indexes of the columns to decode, all columns if none are given
+     * @return Values of each requested column in the order of the requested indexes, each as long as the timestamps
+     */
+    public double[][] readDoubleColumns(int... columnIndexes) {
+        long[][] columnBits = readColumns(columnIndexes);
+        double[][] values = new double[columnBits.length][];
+        for(int i = 0; i < columnBits.length; i++) {
+            long[] bits = columnBits[i];
+            values[i] = new double[bits.length];
+            for(int j = 0; j < bits.length; j++) {
+                values[i][j] = Double.longBitsToDouble(bits[j]);
+            }
+        }
+        return values;
+    }
+
+    private long[] readColumn() {
+        long[] values = new long[timestamps.length];
+        if(values.length == 0) {
+            return values;
+        }
+        XorValueCodec valueCodec = new XorValueCodec();
+        valueCodec.readFirst(in);
+        values[0] = valueCodec.getValue();
+        for(int i = 1; i < values.length; i++) {
+            valueCodec.read(in);
+            values[i] = valueCodec.getValue();
+        }
+        return values;
+    }
+
+    private void skip(long bits) {
+        for(; bits >= Long.SIZE; bits -= Long.SIZE) {
+            in.getLong(Long.SIZE);
+        }
+        if(bits > 0) {
+            in.getLong((int) bits);
+        }
+    }
+}
@@ -0,0 +1,279 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.nio.LongBuffer;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+
+/**
+ * Block which is written by a single thread and can be read by multiple threads at the same time. After each point
+ * the writer publishes the amount of words committed to the backing array and the amount of points fully inside
+ * those words. Readers take a {@link Snapshot} of the committed prefix and decode it from the shared array without
+ * locking or copying.
+ *
+ * Committed words are never modified, when the array is expanded the old one stays valid for the readers still
+ * using it.
+ *
+ * @author Michael Burman
+ */
+public class OpenBlock {
+
+    public final static int DEFAULT_ALLOCATION = 32;
+
+    // Upper bounds for the words written by one point and by closing the block
+    private final static int POINT_WORDS = 3;
+    private final static int CLOSE_WORDS = 2;
+
+    // Saved state: count, committed count, last timestamp, bits left in the last word, amount of words and the
+    // compressor state, followed by the words
+    private final static int STATE_HEADER = 5 + GorillaCompressor.STATE_WORDS;
+
+    private final long blockTimestamp;
+    private final PublishingOutput output;
+    private final GorillaCompressor compressor;
+
+    private final static AtomicLongFieldUpdater<OpenBlock> COMMITTED =
+            AtomicLongFieldUpdater.newUpdater(OpenBlock.class, "committed");
+
+    // Committed word position in the upper and the committed amount of points in the lower 32 bits. Written only
+    // by the writer with release semantics (lazySet), read with acquire semantics. A field updater instead of an
+    // AtomicLong saves an object per open block.
+    private volatile long committed;
+
+    private int count = 0;
+    private long lastTimestamp = 0;
+    private boolean closed = false;
+
+    public OpenBlock(long blockTimestamp) {
+        this(blockTimestamp, DEFAULT_ALLOCATION);
+    }
+
+    /**
+     * @param blockTimestamp Block timestamp
+     * @param initialSize Initial size of the backing array in words
+     */
+    public OpenBlock(long blockTimestamp, int initialSize) {
+        this(blockTimestamp, initialSize, null);
+    }
+
+    /**
+     * Creates a block which reserves its buffer from a memory budget. The reservation is returned when the block is
+     * closed.
+     *
+     * @param blockTimestamp Block timestamp
+     * @param initialSize Initial size of the backing array in words
+     * @param tenant Account in the memory budget, or null for no accounting
+     * @throws MemoryBudgetExceededException if the initial allocation does not fit in the budget
+     */
+    public OpenBlock(long blockTimestamp, int initialSize, MemoryBudget.Tenant tenant) {
+        this.blockTimestamp = blockTimestamp;
+        output = new PublishingOutput(initialSize, tenant);
+        compressor = new GorillaCompressor(blockTimestamp, output);
+    }
+
+    private OpenBlock(long blockTimestamp, PublishingOutput output, long[] state) {
+        this.blockTimestamp = blockTimestamp;
+        this.output = output;
+        compressor = new GorillaCompressor(blockTimestamp, output, state, 5);
+        count = (int) state[0];
+        lastTimestamp = state[2];
+        committed = ((long) output.position << 32) | state[1];
+    }
+
+    /**
+     * Saves the written words and the compressor state, so that the block can be continued elsewhere with
+     * {@link #restore(long, LongBuffer, MemoryBudget.Tenant)}. Must be called only by the writer thread.
+     *
+     * @return Saved state of the block
+     */
+    public long[] saveState() {
+        int words = output.position + 1;
+        long[] state = new long[STATE_HEADER + words];
+        state[0] = count;
+        state[1] = (int) committed;
+        state[2] = lastTimestamp;
+        state[3] = output.bitsLeft;
+        state[4] = words;
+        compressor.saveState(state, 5);
+        System.arraycopy(output.longArray, 0, state, STATE_HEADER, words - 1);
+        // The last word is still being filled and is only in the output
+        state[STATE_HEADER + words - 1] = output.lB;
+        return state;
+    }
+
+    /**
+     * Checks a state saved with {@link #saveState()} without restoring it.
+     *
+     * @param state Buffer positioned at the saved state, the position is not moved
+     * @throws IllegalArgumentException if the state is not valid
+     */
+    public static void validateState(LongBuffer state) {
+        if(state.remaining() < STATE_HEADER) {
+            throw new IllegalArgumentException("Truncated open block state");
+        }
+        long bitsLeft = state.get(state.position() + 3);
+        long words = state.get(state.position() + 4);
+        if(words < 1 || words > state.remaining() - STATE_HEADER || bitsLeft < 1 || bitsLeft > Long.SIZE) {
+            throw new IllegalArgumentException("Invalid open block state");
+        }
+    }
+
+    /**
+     * Continues a block from the state saved with {@link #saveState()}. The words are copied as they are, no points
+     * are decoded.
+     *
+     * @param blockTimestamp Block timestamp
+     * @param state Buffer positioned at the saved state, the position is moved past it
+     * @param tenant Account in the memory budget, or null for no accounting
+     * @return Block which can be appended to
+     * @throws IllegalArgumentException if the state is not valid
+     */
+    public static OpenBlock restore(long blockTimestamp, LongBuffer state, MemoryBudget.Tenant tenant) {
+        validateState(state);
+        long[] header = new long[STATE_HEADER];
+        state.get(header);
+        int words = (int) header[4];
+        PublishingOutput output = new PublishingOutput(words + DEFAULT_ALLOCATION, tenant);
+        state.get(output.longArray, 0, words);
+        output.position = words - 1;
+        output.lB = output.longArray[output.position];
+        output.bitsLeft = (int) header[3];
+        return new OpenBlock(blockTimestamp, output, header);
+    }
+
+    /**
+     * Adds a new long value to the block. Must be called only by the writer thread.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next long value in the series
+     * @throws MemoryBudgetExceededException if the buffer must grow and the budget does not allow it. The point is
+     * not added and the block stays intact.
+     */
+    public void addValue(long timestamp, long value) {
+        output.ensureCapacity(POINT_WORDS, false);
+        int position = output.position;
+        compressor.addValue(timestamp, value);
+        count++;
+        lastTimestamp = timestamp;
+        if(output.position != position) {
+            // Everything up to the previous point was flushed to the array, the last point if it ended on the
+            // word boundary
+            int committedCount = output.bitsLeft == Long.SIZE ? count : count - 1;
+            COMMITTED.lazySet(this, ((long) output.position << 32) | committedCount);
+        }
+    }
+
+    /**
+     * Adds a new double value to the block. Must be called only by the writer thread.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next floating point value in the series
+     */
+    public void addValue(long timestamp, double value) {
+        addValue(timestamp, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Closes the block. Must be called only by the writer thread, existing snapshots stay readable. If the block was
+     * already closed with {@link #closeWithoutCopy()}, can be called from the thread the block was handed to.
+     *
+     * @return The closed block as returned by {@link LongArrayOutput#getLongArray()}
+     */
+    public long[] close() {
+        closeWithoutCopy();
+        return output.getLongArray();
+    }
+
+    /**
+     * Closes the block without copying the words to an array of their exact length. Must be called only by the
+     * writer thread. The copy can be made later with {@link #close()}.
+     *
+     * @return The backing array of the block, which is longer than the block and shared with the existing
+     * snapshots, so it must not be modified
+     */
+    public long[] closeWithoutCopy() {
+        if(!closed) {
+            // Closing must not fail, even if the budget is exhausted
+            output.ensureCapacity(CLOSE_WORDS, true);
+            compressor.close();
+            output.release();
+            closed = true;
+        }
+        return output.longArray;
+    }
+
+    /**
+     * Takes a snapshot of the committed points. Can be called from any thread.
+     *
+     * @return Snapshot of the points committed so far
+     */
+    public Snapshot snapshot() {
+        long c = committed;
+        // Read after the position, so the array is at least as new as the position
+        return new Snapshot(output.published, (int) c);
+    }
+
+    /**
+     * @return Amount of points written, only accurate in the writer thread
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Timestamp of the last point written, only accurate in the writer thread
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    public long getBlockTimestamp() {
+        return blockTimestamp;
+    }
+
+    /**
+     * Consistent prefix of an open block.
+     */
+    public static final class Snapshot {
+        private final long[] array;
+        private final int count;
+
+        Snapshot(long[] array, int count) {
+            this.array = array;
+            this.count = count;
+        }
+
+        /**
+         * @return Amount of points in the snapshot
+         */
+        public int getCount() {
+            return count;
+        }
+
+        /**
+         * Returns a decompressor over the shared array. Only {@link #getCount()} points may be read from it, the
+         * block has no end of stream marker yet.
+         *
+         * @return Decompressor of the snapshot
+         */
+        public GorillaDecompressor decompressor() {
+            return new GorillaDecompressor(new LongArrayInput(array));
+        }
+    }
+
+    /**
+     * LongArrayOutput which publishes the backing array to the readers whenever it is replaced
+     */
+    static class PublishingOutput extends LongArrayOutput {
+        volatile long[] published;
+
+        PublishingOutput(int initialSize, MemoryBudget.Tenant tenant) {
+            super(initialSize, tenant);
+            published = longArray;
+        }
+
+        @Override
+        protected void expandAllocation() {
+            super.expandAllocation();
+            published = longArray;
+        }
+    }
+}
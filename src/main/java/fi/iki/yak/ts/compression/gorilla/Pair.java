@@ -25,4 +25,12 @@ public class Pair {
     public long getLongValue() {
         return value;
     }
+
+    public float getFloatValue() {
+        return Float.intBitsToFloat((int) value);
+    }
+
+    public int getIntValue() {
+        return (int) value;
+    }
 }
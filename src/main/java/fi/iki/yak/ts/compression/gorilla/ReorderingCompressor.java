@@ -0,0 +1,144 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Accepts points out of order within a time window and feeds them to a {@link GorillaCompressor} in timestamp
+ * order. Points are held in a primitive min-heap until the newest seen timestamp has moved more than the window
+ * past them, or until the buffer is full. Points older than the last point already written to the block are
+ * given to the {@link LateValueSink} instead.
+ *
+ * @author Michael Burman
+ */
+public class ReorderingCompressor {
+
+    private final GorillaCompressor compressor;
+    private final LateValueSink lateValueSink;
+    private final long window;
+
+    private final long[] timestamps;
+    private final long[] values;
+    private int size = 0;
+
+    private long newestTimestamp = Long.MIN_VALUE;
+    private long writtenTimestamp = Long.MIN_VALUE;
+
+    /**
+     * @param compressor Compressor of the block
+     * @param window How far behind the newest timestamp a point may arrive, in the unit of the timestamps
+     * @param capacity Maximum amount of buffered points
+     * @param lateValueSink Receives the points which arrived too late
+     */
+    public ReorderingCompressor(GorillaCompressor compressor, long window, int capacity,
+                                LateValueSink lateValueSink) {
+        if(window < 0) {
+            throw new IllegalArgumentException("Window must not be negative, was " + window);
+        }
+        if(capacity < 1) {
+            throw new IllegalArgumentException("Capacity must be positive, was " + capacity);
+        }
+        this.compressor = compressor;
+        this.window = window;
+        this.lateValueSink = lateValueSink;
+        timestamps = new long[capacity];
+        values = new long[capacity];
+    }
+
+    /**
+     * Adds a new long value to the series. Points may arrive out of order within the window.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next long value in the series
+     */
+    public void addValue(long timestamp, long value) {
+        if(timestamp < writtenTimestamp) {
+            lateValueSink.accept(timestamp, value);
+            return;
+        }
+        if(size == timestamps.length) {
+            writeFirst();
+            if(timestamp < writtenTimestamp) {
+                lateValueSink.accept(timestamp, value);
+                return;
+            }
+        }
+        push(timestamp, value);
+
+        if(timestamp > newestTimestamp) {
+            newestTimestamp = timestamp;
+            while(size > 0 && newestTimestamp - timestamps[0] > window) {
+                writeFirst();
+            }
+        }
+    }
+
+    /**
+     * Adds a new double value to the series. Points may arrive out of order within the window. The value is
+     * buffered, and given to the {@link LateValueSink}, as the raw bits of the value codec of the compressor, for
+     * example as float bits with {@link GorillaCompressor#VALUE_XOR_32}.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next floating point value in the series
+     */
+    public void addValue(long timestamp, double value) {
+        addValue(timestamp, compressor.getValueCodec().toRawBits(value));
+    }
+
+    /**
+     * Writes the buffered points and closes the block.
+     */
+    public void close() {
+        while(size > 0) {
+            writeFirst();
+        }
+        compressor.close();
+    }
+
+    /**
+     * @return Amount of points waiting in the buffer
+     */
+    public int getBufferedCount() {
+        return size;
+    }
+
+    private void writeFirst() {
+        long timestamp = timestamps[0];
+        compressor.addValue(timestamp, values[0]);
+        writtenTimestamp = timestamp;
+        pop();
+    }
+
+    private void push(long timestamp, long value) {
+        int position = size++;
+        while(position > 0) {
+            int parent = (position - 1) >>> 1;
+            if(timestamps[parent] <= timestamp) {
+                break;
+            }
+            timestamps[position] = timestamps[parent];
+            values[position] = values[parent];
+            position = parent;
+        }
+        timestamps[position] = timestamp;
+        values[position] = value;
+    }
+
+    private void pop() {
+        long timestamp = timestamps[--size];
+        long value = values[size];
+        int position = 0;
+        int half = size >>> 1;
+        while(position < half) {
+            int child = 2 * position + 1;
+            if(child + 1 < size && timestamps[child + 1] < timestamps[child]) {
+                child++;
+            }
+            if(timestamps[child] >= timestamp) {
+                break;
+            }
+            timestamps[position] = timestamps[child];
+            values[position] = values[child];
+            position = child;
+        }
+        timestamps[position] = timestamp;
+        values[position] = value;
+    }
+}
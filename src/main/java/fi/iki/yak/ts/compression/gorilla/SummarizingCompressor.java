@@ -0,0 +1,126 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Compressor which collects the {@link BlockSummary} of the block and writes it as a footer after the compressed
+ * stream when the block is closed. The values are summarized as doubles in the type they were added with.
+ *
+ * NaN values are counted, but skipped in the min and max, so that a single missing measurement does not hide the
+ * range of the rest of the block. The sum follows the IEEE rules and is NaN if any of the values was NaN.
+ *
+ * @author Michael Burman
+ */
+public class SummarizingCompressor {
+
+    private final GorillaCompressor compressor;
+    private final BitOutput out;
+    private final long blockTimestamp;
+
+    private int count = 0;
+    private long firstTimestamp = 0;
+    private long lastTimestamp = 0;
+    private double min = Double.NaN;
+    private double max = Double.NaN;
+    private double sum = 0;
+
+    private BlockSummary summary;
+
+    public SummarizingCompressor(long timestamp, BitOutput output) {
+        this(timestamp, output, new GorillaCompressor(timestamp, output));
+    }
+
+    /**
+     * @param timestamp Block timestamp
+     * @param output BitOutput to write the block to
+     * @param timestampEncoding Id of a registered timestamp codec, see {@link Codecs}
+     * @param valueEncoding Id of a registered value codec, see {@link Codecs}
+     */
+    public SummarizingCompressor(long timestamp, BitOutput output, int timestampEncoding, int valueEncoding) {
+        this(timestamp, output, new GorillaCompressor(timestamp, output, timestampEncoding, valueEncoding));
+    }
+
+    private SummarizingCompressor(long timestamp, BitOutput output, GorillaCompressor compressor) {
+        this.blockTimestamp = timestamp;
+        this.out = output;
+        this.compressor = compressor;
+    }
+
+    private void summarize(long timestamp, double value) {
+        if(count == 0) {
+            firstTimestamp = timestamp;
+        }
+        if(Double.isNaN(min)) {
+            min = value;
+            max = value;
+        } else if(!Double.isNaN(value)) {
+            min = Math.min(min, value);
+            max = Math.max(max, value);
+        }
+        lastTimestamp = timestamp;
+        sum += value;
+        count++;
+    }
+
+    /**
+     * Adds a new long value to the series. Note, values must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next long value in the series
+     */
+    public void addValue(long timestamp, long value) {
+        compressor.addValue(timestamp, value);
+        summarize(timestamp, value);
+    }
+
+    /**
+     * Adds a new double value to the series. Note, values must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next floating point value in the series
+     */
+    public void addValue(long timestamp, double value) {
+        compressor.addValue(timestamp, value);
+        summarize(timestamp, value);
+    }
+
+    /**
+     * Adds a new int value to the series. Note, values must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next int value in the series
+     */
+    public void addValue(long timestamp, int value) {
+        compressor.addValue(timestamp, value);
+        summarize(timestamp, value);
+    }
+
+    /**
+     * Adds a new float value to the series. Note, values must be inserted in order.
+     *
+     * @param timestamp Timestamp which is inside the allowed time block (default 24 hours with millisecond precision)
+     * @param value next float value in the series
+     */
+    public void addValue(long timestamp, float value) {
+        compressor.addValue(timestamp, value);
+        summarize(timestamp, value);
+    }
+
+    /**
+     * Closes the block and writes the summary footer to the BitOutput.
+     */
+    public void close() {
+        compressor.close();
+        summary = getSummary();
+        summary.writeFooter(out);
+    }
+
+    /**
+     * @return Summary of the points added so far
+     */
+    public BlockSummary getSummary() {
+        if(summary != null) {
+            return summary;
+        }
+        return new BlockSummary(blockTimestamp, BlockSummary.VERSION, compressor.getTimestampCodec().getId(),
+                compressor.getValueCodec().getId(), count, firstTimestamp, lastTimestamp, min, max, sum);
+    }
+}
@@ -0,0 +1,63 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * Encodes and decodes the timestamps of a block. The first timestamp is always stored by the compressor as a
+ * delta to the block timestamp, the codec takes care of the rest. The codec also owns the end of stream marker and
+ * the point layout, so it can signal things with the value codec's escape codes when there are no timestamp bits
+ * to use.
+ *
+ * Instances are stateful and used for a single block only, {@link #newInstance()} creates fresh ones.
+ *
+ * @author Michael Burman
+ */
+public interface TimestampCodec {
+
+    /**
+     * @return Codec id stored in the extended block header, between 0 and 15
+     */
+    int getId();
+
+    /**
+     * @return New instance of this codec with empty state
+     */
+    TimestampCodec newInstance();
+
+    /**
+     * Sets the first timestamp of the block, after it has been written or read by the (de)compressor.
+     *
+     * @param timestamp First timestamp of the block
+     * @param delta Delta between the block timestamp and the first timestamp
+     */
+    void setFirst(long timestamp, long delta);
+
+    /**
+     * Writes the next timestamp. Called before the value of the same point is written.
+     *
+     * @param timestamp Next timestamp in the series
+     * @param out Output of the block
+     * @param valueCodec Value codec of the block, for writing escape codes
+     */
+    void write(long timestamp, BitOutput out, ValueCodec valueCodec);
+
+    /**
+     * Writes the end of stream marker.
+     *
+     * @param out Output of the block
+     * @param valueCodec Value codec of the block, for writing escape codes
+     */
+    void writeEnd(BitOutput out, ValueCodec valueCodec);
+
+    /**
+     * Reads the next point, both the timestamp and the value using the valueCodec.
+     *
+     * @param in Input of the block
+     * @param valueCodec Value codec of the block
+     * @return false if the end of stream was reached
+     */
+    boolean read(BitInput in, ValueCodec valueCodec);
+
+    /**
+     * @return Last read timestamp
+     */
+    long getTimestamp();
+}
@@ -0,0 +1,112 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Transcodes blocks written by the 1.x {@link Compressor} to the 2.x format read by the {@link GorillaDecompressor}.
+ * Points are streamed from the input to the output one at a time, no intermediate objects are created.
+ *
+ * @author Michael Burman
+ */
+public class Transcoder {
+
+    private Transcoder() {
+    }
+
+    /**
+     * Transcodes a single 1.x block to the 2.x format. The block timestamp is retained.
+     *
+     * @param input Input of the 1.x block
+     * @param output Output for the 2.x block
+     * @return Amount of points in the block
+     */
+    public static int transcode(BitInput input, BitOutput output) {
+        Decompressor d = new Decompressor(input);
+        GorillaCompressor c = new GorillaCompressor(d.getBlockTimestamp(), output);
+        int count = 0;
+        while(d.nextPair()) {
+            c.addValue(d.getTimestamp(), d.getValue());
+            count++;
+        }
+        c.close();
+        return count;
+    }
+
+    /**
+     * Transcodes a 1.x block stored as bytes to the 2.x format.
+     *
+     * @param block Bytes of the 1.x block
+     * @return Bytes of the 2.x block
+     */
+    public static byte[] transcode(byte[] block) {
+        ByteBufferBitOutput output = new ByteBufferBitOutput(Math.max(block.length, 64));
+        transcode(new ByteBufferBitInput(block), output);
+
+        ByteBuffer buffer = output.getByteBuffer();
+        buffer.flip();
+        byte[] transcoded = new byte[buffer.remaining()];
+        buffer.get(transcoded);
+        return transcoded;
+    }
+
+    /**
+     * Transcodes every regular file in the source directory, each storing a single 1.x block, to a file with the
+     * same name in the target directory. The files are processed in parallel.
+     *
+     * @param source Directory of the 1.x blocks
+     * @param target Directory for the 2.x blocks, created if it does not exist
+     * @param parallelism Amount of threads to use
+     * @return Amount of transcoded files
+     * @throws IOException if reading or writing any of the files failed
+     */
+    public static int transcodeDirectory(Path source, Path target, int parallelism) throws IOException {
+        if(parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive, was " + parallelism);
+        }
+        Files.createDirectories(target);
+
+        ExecutorService executor = Executors.newFixedThreadPool(parallelism);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(source, Files::isRegularFile)) {
+                for (Path file : files) {
+                    Path targetFile = target.resolve(file.getFileName());
+                    futures.add(executor.submit(() -> transcodeFile(file, targetFile)));
+                }
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            return futures.size();
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while transcoding " + source, e);
+        } catch(ExecutionException e) {
+            if(e.getCause() instanceof UncheckedIOException) {
+                throw ((UncheckedIOException) e.getCause()).getCause();
+            }
+            throw new IOException("Failed to transcode " + source, e.getCause());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    private static void transcodeFile(Path source, Path target) {
+        try {
+            Files.write(target, transcode(Files.readAllBytes(source)));
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+}
@@ -0,0 +1,108 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import java.util.Map;
+
+/**
+ * Encodes and decodes the values of a block. Values are handled as raw 64 bit longs, the codec decides how
+ * doubles and floats are turned to those.
+ *
+ * Every codec must be able to store escape codes in place of a value, in a way that can not be confused with a
+ * real value. These are used by the timestamp codecs to signal the end of stream or a change in the encoding.
+ *
+ * Instances are stateful and used for a single block only, {@link #newInstance()} creates fresh ones.
+ *
+ * @author Michael Burman
+ */
+public interface ValueCodec {
+
+    int ESCAPE_END_OF_STREAM = 1;
+    int ESCAPE_CADENCE_BREAK = 2;
+
+    /**
+     * @return Codec id stored in the extended block header, between 0 and 15
+     */
+    int getId();
+
+    /**
+     * @return New instance of this codec with empty state
+     */
+    ValueCodec newInstance();
+
+    /**
+     * @param value Double value
+     * @return Raw bits stored by this codec
+     */
+    default long toRawBits(double value) {
+        return Double.doubleToRawLongBits(value);
+    }
+
+    /**
+     * @param value Float value
+     * @return Raw bits stored by this codec
+     */
+    default long toRawBits(float value) {
+        return toRawBits((double) value);
+    }
+
+    /**
+     * Writes the first value of the block.
+     *
+     * @param value Raw value
+     * @param out Output of the block
+     */
+    void writeFirst(long value, BitOutput out);
+
+    /**
+     * Writes the next value of the block.
+     *
+     * @param value Raw value
+     * @param out Output of the block
+     */
+    void write(long value, BitOutput out);
+
+    /**
+     * Writes an escape code in place of the next value.
+     *
+     * @param code Escape code, between 1 and 31
+     * @param out Output of the block
+     */
+    void writeEscape(int code, BitOutput out);
+
+    /**
+     * Reads the first value of the block.
+     *
+     * @param in Input of the block
+     */
+    void readFirst(BitInput in);
+
+    /**
+     * Reads the next value of the block.
+     *
+     * @param in Input of the block
+     * @return 0 if a value was read, otherwise the escape code that was found in place of the value
+     */
+    int read(BitInput in);
+
+    /**
+     * @return Last read value
+     */
+    long getValue();
+
+    /**
+     * Adds the last read value to the counts. Codecs can override this to count without resolving the values, in
+     * which case {@link #flushCounts(Map)} must add the remaining counts.
+     *
+     * @param counts Occurrences of each value
+     */
+    default void count(Map<Long, Long> counts) {
+        counts.merge(getValue(), 1L, Long::sum);
+    }
+
+    /**
+     * Adds any pending counts to the map, called once the counting is done.
+     *
+     * @param counts Occurrences of each value
+     */
+    default void flushCounts(Map<Long, Long> counts) {
+    }
+}
@@ -0,0 +1,117 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * 32 bit version of the XOR value encoding for float and int series. Leading zeros and the length of the
+ * meaningful bits are stored with 5 bits each. Values are kept as sign extended ints.
+ *
+ * @author Michael Burman
+ */
+public class Xor32ValueCodec implements ValueCodec {
+
+    // 31 leading zeros with more than 1 significant bit can not happen with real values
+    private final static int ESCAPE_LEADING_ZEROS = 31;
+
+    private int storedLeadingZeros = Integer.MAX_VALUE;
+    private int storedTrailingZeros = 0;
+    private int storedVal = 0;
+
+    @Override
+    public int getId() {
+        return GorillaCompressor.VALUE_XOR_32;
+    }
+
+    @Override
+    public ValueCodec newInstance() {
+        return new Xor32ValueCodec();
+    }
+
+    @Override
+    public long toRawBits(double value) {
+        return toRawBits((float) value);
+    }
+
+    @Override
+    public long toRawBits(float value) {
+        return Float.floatToRawIntBits(value);
+    }
+
+    @Override
+    public void writeFirst(long value, BitOutput out) {
+        storedVal = (int) value;
+        out.writeBits(storedVal & 0xFFFFFFFFL, 32);
+    }
+
+    @Override
+    public void write(long rawValue, BitOutput out) {
+        int value = (int) rawValue;
+        int xor = storedVal ^ value;
+
+        if(xor == 0) {
+            out.skipBit();
+        } else {
+            int leadingZeros = Integer.numberOfLeadingZeros(xor);
+            int trailingZeros = Integer.numberOfTrailingZeros(xor);
+
+            out.writeBit();
+
+            if(leadingZeros >= storedLeadingZeros && trailingZeros >= storedTrailingZeros) {
+                out.skipBit();
+                int significantBits = 32 - storedLeadingZeros - storedTrailingZeros;
+                out.writeBits((xor >>> storedTrailingZeros) & 0xFFFFFFFFL, significantBits);
+            } else {
+                out.writeBit();
+                int significantBits = 32 - leadingZeros - trailingZeros;
+                out.writeBits(leadingZeros, 5);
+                out.writeBits(significantBits - 1, 5);
+                out.writeBits((xor >>> trailingZeros) & 0xFFFFFFFFL, significantBits);
+
+                storedLeadingZeros = leadingZeros;
+                storedTrailingZeros = trailingZeros;
+            }
+        }
+
+        storedVal = value;
+    }
+
+    @Override
+    public void writeEscape(int code, BitOutput out) {
+        out.writeBits(0x03, 2);
+        out.writeBits(ESCAPE_LEADING_ZEROS, 5);
+        out.writeBits(code, 5);
+    }
+
+    @Override
+    public void readFirst(BitInput in) {
+        storedVal = (int) in.getLong(32);
+    }
+
+    @Override
+    @SuppressWarnings("fallthrough")
+    public int read(BitInput in) {
+        switch(in.nextClearBit(2)) {
+            case 3:
+                int leadingZeros = (int) in.getLong(5);
+                int significantBits = (int) in.getLong(5) + 1;
+
+                if(leadingZeros + significantBits > 32) {
+                    // Not a value, but a control code
+                    return significantBits - 1;
+                }
+
+                storedLeadingZeros = leadingZeros;
+                storedTrailingZeros = 32 - significantBits - storedLeadingZeros;
+                // missing break is intentional, we want to overflow to next one
+            case 2:
+                int value = (int) in.getLong(32 - storedLeadingZeros - storedTrailingZeros);
+                value <<= storedTrailingZeros;
+                storedVal = storedVal ^ value;
+                break;
+        }
+        return 0;
+    }
+
+    @Override
+    public long getValue() {
+        return storedVal;
+    }
+}
@@ -0,0 +1,156 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+/**
+ * The default 2.x value encoding, values are stored as XOR against the previous value. Leading zeros and the
+ * length of the meaningful bits are stored with 6 bits each.
+ *
+ * @author Michael Burman
+ */
+public class XorValueCodec implements ValueCodec {
+
+    // Escape codes are written as an impossible new leading zeros value: 63 leading zeros with more than 1
+    // significant bit
+    private final static int ESCAPE_LEADING_ZEROS = 63;
+
+    private int storedLeadingZeros = Integer.MAX_VALUE;
+    private int storedTrailingZeros = 0;
+    private long storedVal = 0;
+
+    @Override
+    public int getId() {
+        return GorillaCompressor.VALUE_XOR;
+    }
+
+    @Override
+    public ValueCodec newInstance() {
+        return new XorValueCodec();
+    }
+
+    @Override
+    public void writeFirst(long value, BitOutput out) {
+        storedVal = value;
+        out.writeBits(value, 64);
+    }
+
+    @Override
+    public void write(long value, BitOutput out) {
+        long xor = storedVal ^ value;
+
+        if(xor == 0) {
+            // Write 0
+            out.skipBit();
+        } else {
+            int leadingZeros = Long.numberOfLeadingZeros(xor);
+            int trailingZeros = Long.numberOfTrailingZeros(xor);
+
+            out.writeBit(); // Optimize to writeNewLeading / writeExistingLeading?
+
+            if(leadingZeros >= storedLeadingZeros && trailingZeros >= storedTrailingZeros) {
+                writeExistingLeading(xor, out);
+            } else {
+                writeNewLeading(xor, leadingZeros, trailingZeros, out);
+            }
+        }
+
+        storedVal = value;
+    }
+
+    /**
+     * If there at least as many leading zeros and as many trailing zeros as previous value, control bit = 0 (type a)
+     * store the meaningful XORed value
+     *
+     * @param xor XOR between previous value and current
+     */
+    private void writeExistingLeading(long xor, BitOutput out) {
+        out.skipBit();
+
+        int significantBits = 64 - storedLeadingZeros - storedTrailingZeros;
+        xor >>>= storedTrailingZeros;
+        out.writeBits(xor, significantBits);
+    }
+
+    /**
+     * store the length of the number of leading zeros in the next 5 bits
+     * store length of the meaningful XORed value in the next 6 bits,
+     * store the meaningful bits of the XORed value
+     * (type b)
+     *
+     * @param xor XOR between previous value and current
+     * @param leadingZeros New leading zeros
+     * @param trailingZeros New trailing zeros
+     */
+    private void writeNewLeading(long xor, int leadingZeros, int trailingZeros, BitOutput out) {
+        out.writeBit();
+
+        // Different from version 1.x, use (significantBits - 1) in storage - avoids a branch
+        int significantBits = 64 - leadingZeros - trailingZeros;
+
+        // Different from original, bits 5 -> 6, avoids a branch, allows storing small longs
+        out.writeBits(leadingZeros, 6); // Number of leading zeros in the next 6 bits
+        out.writeBits(significantBits - 1, 6); // Length of meaningful bits in the next 6 bits
+        out.writeBits(xor >>> trailingZeros, significantBits); // Store the meaningful bits of XOR
+
+        storedLeadingZeros = leadingZeros;
+        storedTrailingZeros = trailingZeros;
+    }
+
+    @Override
+    public void writeEscape(int code, BitOutput out) {
+        out.writeBits(0x03, 2);
+        out.writeBits(ESCAPE_LEADING_ZEROS, 6);
+        out.writeBits(code, 6);
+    }
+
+    @Override
+    public void readFirst(BitInput in) {
+        storedVal = in.getLong(64);
+    }
+
+    @Override
+    @SuppressWarnings("fallthrough")
+    public int read(BitInput in) {
+        int val = in.nextClearBit(2);
+
+        switch(val) {
+            case 3:
+                // New leading and trailing zeros
+                int leadingZeros = (int) in.getLong(6);
+
+                byte significantBits = (byte) in.getLong(6);
+                significantBits++;
+
+                if(leadingZeros + significantBits > 64) {
+                    // Not a value, but a control code
+                    return significantBits - 1;
+                }
+
+                storedLeadingZeros = leadingZeros;
+                storedTrailingZeros = 64 - significantBits - storedLeadingZeros;
+                // missing break is intentional, we want to overflow to next one
+            case 2:
+                long value = in.getLong(64 - storedLeadingZeros - storedTrailingZeros);
+                value <<= storedTrailingZeros;
+                value = storedVal ^ value;
+                storedVal = value;
+                break;
+        }
+        return 0;
+    }
+
+    @Override
+    public long getValue() {
+        return storedVal;
+    }
+
+    void saveState(long[] state, int offset) {
+        state[offset] = storedVal;
+        state[offset + 1] = storedLeadingZeros;
+        state[offset + 2] = storedTrailingZeros;
+    }
+
+    void restoreState(long[] state, int offset) {
+        storedVal = state[offset];
+        storedLeadingZeros = (int) state[offset + 1];
+        storedTrailingZeros = (int) state[offset + 2];
+    }
+}
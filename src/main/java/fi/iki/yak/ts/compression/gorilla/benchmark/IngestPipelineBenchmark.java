@@ -0,0 +1,131 @@
+package fi.iki.yak.ts.compression.gorilla.benchmark;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import fi.iki.yak.ts.compression.gorilla.store.IngestPipeline;
+import fi.iki.yak.ts.compression.gorilla.store.TimeSeriesStore;
+
+/**
+ * Ingest throughput from 1 to 64 producer threads, either through the {@link IngestPipeline} or directly to the
+ * shard locks of the store. With the pipeline, the producers are blocked when the consumers fall behind, so the
+ * score is the sustained rate of points added to the store.
+ *
+ * @author Michael Burman
+ */
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class IngestPipelineBenchmark {
+
+    @Param({"pipeline", "direct"})
+    public String mode;
+
+    @Param({"4"})
+    public int consumers;
+
+    @Param({"16384"})
+    public int ringSize;
+
+    @Param({"256"})
+    public int batchSize;
+
+    @Param({"1000"})
+    public int seriesPerThread;
+
+    public TimeSeriesStore store;
+    public IngestPipeline pipeline;
+
+    public long blockStart;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+        store = new TimeSeriesStore();
+        if("pipeline".equals(mode)) {
+            pipeline = new IngestPipeline(store, consumers, ringSize, batchSize, IngestPipeline.Backpressure.BLOCK);
+            pipeline.start();
+        }
+    }
+
+    @TearDown(Level.Iteration)
+    public void tearDown() throws InterruptedException {
+        if(pipeline != null) {
+            pipeline.close();
+            pipeline = null;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Producer {
+        public long firstSeries;
+        public int seriesPerThread;
+        public int series;
+        public long timestamp;
+        public double value;
+
+        @Setup(Level.Iteration)
+        public void setup(IngestPipelineBenchmark benchmark, ThreadParams threadParams) {
+            seriesPerThread = benchmark.seriesPerThread;
+            firstSeries = (long) threadParams.getThreadIndex() * seriesPerThread;
+            series = 0;
+            timestamp = benchmark.blockStart;
+        }
+    }
+
+    private boolean ingest(Producer producer) {
+        if(++producer.series == producer.seriesPerThread) {
+            producer.series = 0;
+            producer.timestamp += 1000;
+            producer.value += 0.5;
+        }
+        long seriesId = producer.firstSeries + producer.series;
+        if(pipeline != null) {
+            return pipeline.publish(seriesId, producer.timestamp, producer.value);
+        }
+        return store.addValue(seriesId, producer.timestamp, producer.value);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean producers01(Producer producer) {
+        return ingest(producer);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean producers04(Producer producer) {
+        return ingest(producer);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean producers16(Producer producer) {
+        return ingest(producer);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean producers64(Producer producer) {
+        return ingest(producer);
+    }
+}
@@ -0,0 +1,80 @@
+package fi.iki.yak.ts.compression.gorilla.benchmark;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.ThreadParams;
+
+import fi.iki.yak.ts.compression.gorilla.store.TimeSeriesStore;
+
+/**
+ * Multi-threaded ingest to the TimeSeriesStore. Each thread writes to its own set of series, run with -t to change
+ * the amount of threads.
+ *
+ * @author Michael Burman
+ */
+@BenchmarkMode(Mode.Throughput)
+@State(Scope.Benchmark)
+@Fork(1)
+@Threads(4)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class StoreIngestBenchmark {
+
+    @Param({"64"})
+    public int shards;
+
+    @Param({"1000"})
+    public int seriesPerThread;
+
+    public TimeSeriesStore store;
+
+    public long blockStart;
+
+    @Setup(Level.Iteration)
+    public void setup() {
+        blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+        store = new TimeSeriesStore(shards, TimeSeriesStore.DEFAULT_BLOCK_SIZE);
+    }
+
+    @State(Scope.Thread)
+    public static class Writer {
+        public long firstSeries;
+        public int seriesPerThread;
+        public int series;
+        public long timestamp;
+        public double value;
+
+        @Setup(Level.Iteration)
+        public void setup(StoreIngestBenchmark benchmark, ThreadParams threadParams) {
+            seriesPerThread = benchmark.seriesPerThread;
+            firstSeries = (long) threadParams.getThreadIndex() * seriesPerThread;
+            series = 0;
+            timestamp = benchmark.blockStart;
+        }
+    }
+
+    @Benchmark
+    public boolean ingest(StoreIngestBenchmark benchmark, Writer writer) {
+        if(++writer.series == writer.seriesPerThread) {
+            writer.series = 0;
+            writer.timestamp += 1000;
+            writer.value += 0.5;
+        }
+        return benchmark.store.addValue(writer.firstSeries + writer.series, writer.timestamp, writer.value);
+    }
+}
@@ -0,0 +1,112 @@
+package fi.iki.yak.ts.compression.gorilla.benchmark;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.store.TieredStorage;
+import fi.iki.yak.ts.compression.gorilla.store.TimeSeriesStore;
+
+/**
+ * Reads a day of a random series from each tier of the TieredStorage. The store has three days of data, migrated
+ * once per day, so each tier holds one day. The bytes per point of each tier are printed in the setup.
+ *
+ * With promotedBytes 0, every cold read inflates the series, otherwise the inflated series stay in memory.
+ *
+ * @author Michael Burman
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Benchmark)
+@Fork(1)
+@Warmup(iterations = 5)
+@Measurement(iterations = 10)
+public class TieredStorageBenchmark {
+
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long START = 1_500_000_000_000L / DAY * DAY;
+
+    @Param({"HOT", "WARM", "COLD"})
+    public TieredStorage.Tier tier;
+
+    @Param({"0", "67108864"})
+    public long promotedBytes;
+
+    @Param({"200"})
+    public int series;
+
+    @Param({"10000"})
+    public long interval;
+
+    public Path directory;
+    public TieredStorage tiers;
+    public long rangeStart;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException {
+        directory = Files.createTempDirectory("tiers");
+        TimeSeriesStore store = new TimeSeriesStore(TimeSeriesStore.DEFAULT_SHARDS, TimeSeriesStore.DEFAULT_BLOCK_SIZE);
+        for(long ts = START; ts < START + 3 * DAY; ts += interval) {
+            for(int s = 0; s < series; s++) {
+                // Gauge like values with a limited precision
+                store.addValue(s, ts, Math.round((Math.sin(ts / 3_600_000.0 + s) * 100 + s) * 100) / 100.0);
+            }
+        }
+        store.sealAll();
+        long pointsPerTier = series * (DAY / interval);
+
+        AtomicLong now = new AtomicLong(START + 2 * DAY);
+        tiers = new TieredStorage(store, directory, DAY, 2 * DAY, promotedBytes, now::get);
+        tiers.migrate();
+        now.set(START + 3 * DAY);
+        tiers.migrate();
+
+        for (TieredStorage.Tier t : TieredStorage.Tier.values()) {
+            System.out.printf("%n%s: %d blocks, %.3f bytes per point%n", t, tiers.getBlockCount(t),
+                    (double) tiers.getSizeInBytes(t) / pointsPerTier);
+        }
+        rangeStart = START + (2 - tier.ordinal()) * DAY;
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        tiers.close();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(directory);
+    }
+
+    @Benchmark
+    public double readDay() {
+        int s = ThreadLocalRandom.current().nextInt(series);
+        double sum = 0;
+        for (GorillaDecompressor d : tiers.read(s, rangeStart, rangeStart + DAY - 1)) {
+            while(d.nextPair()) {
+                sum += Double.longBitsToDouble(d.getValue());
+            }
+        }
+        return sum;
+    }
+}
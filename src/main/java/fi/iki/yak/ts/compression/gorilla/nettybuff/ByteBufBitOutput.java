@@ -17,6 +17,8 @@ import java.nio.ByteBuffer;
 import com.heliosapm.utils.buffer.BufferManager;
 
 import fi.iki.yak.ts.compression.gorilla.BitOutput;
+import fi.iki.yak.ts.compression.gorilla.MemoryBudget;
+import fi.iki.yak.ts.compression.gorilla.MemoryBudgetExceededException;
 import io.netty.buffer.ByteBuf;
 
 /**
@@ -37,9 +39,16 @@ public class ByteBufBitOutput implements BitOutput {
     private ByteBuf bb;
     private byte b;
     private int bitsLeft = Byte.SIZE;
+
+    private final MemoryBudget.Tenant tenant;
+    private long reserved = 0;
     
     public void release() {
     	bb.release();
+    	if(tenant != null && reserved > 0) {
+    		tenant.release(reserved);
+    		reserved = 0;
+    	}
     }
     
     /**
@@ -55,8 +64,29 @@ public class ByteBufBitOutput implements BitOutput {
      * @param initialSize New initialsize to use
      */
     public ByteBufBitOutput(int initialSize) {
+        this(initialSize, null);
+    }
+
+    /**
+     * Creates an output which reserves its capacity from a memory budget. The reservation is returned by
+     * {@link #release()}.
+     *
+     * @param initialSize Initial size in bytes
+     * @param tenant Account in the memory budget, or null for no accounting
+     */
+    public ByteBufBitOutput(int initialSize, MemoryBudget.Tenant tenant) {
+        this.tenant = tenant;
         bb = bufferManager.buffer(initialSize);
-        b = bb.getByte(bb.writerIndex());
+        b = 0;
+        if(tenant != null) {
+            try {
+                tenant.reserve(bb.capacity());
+            } catch(RuntimeException e) {
+                bb.release();
+                throw e;
+            }
+            reserved = bb.capacity();
+        }
     }
 
 
@@ -66,6 +96,9 @@ public class ByteBufBitOutput implements BitOutput {
 	 */
 	@Override
 	public void writeBit() {
+        if(bitsLeft == 1) {
+            ensureCapacity(1, false);
+        }
         b |= (1 << (bitsLeft - 1));
         bitsLeft--;
         flipByte();
@@ -77,6 +110,9 @@ public class ByteBufBitOutput implements BitOutput {
 	 */
 	@Override
 	public void skipBit() {
+        if(bitsLeft == 1) {
+            ensureCapacity(1, false);
+        }
         bitsLeft--;
         flipByte();
 	}
@@ -87,6 +123,8 @@ public class ByteBufBitOutput implements BitOutput {
 	 */
 	@Override
 	public void writeBits(final long value, int bits) {
+        // Room for every byte the value completes, so a rejection never leaves a part of the value behind
+        ensureCapacity((Byte.SIZE - bitsLeft + bits) / Byte.SIZE, false);
         while(bits > 0) {
             int bitsToWrite = (bits > bitsLeft) ? bitsLeft : bits;
             if(bits > bitsLeft) {
@@ -94,7 +132,7 @@ public class ByteBufBitOutput implements BitOutput {
                 b |= (byte) ((value >> shift) & ((1 << bitsLeft) - 1));
             } else {
                 int shift = bitsLeft - bits;
-                b |= (byte) (value << shift);
+                b |= (byte) ((value << shift) & ((1 << bitsLeft) - 1));
             }
             bits -= bitsToWrite;
             bitsLeft -= bitsToWrite;
@@ -108,6 +146,7 @@ public class ByteBufBitOutput implements BitOutput {
 	 */
 	@Override
 	public void flush() {
+        ensureCapacity(1, false);
         bitsLeft = 0;
         flipByte(); // Causes write to the ByteBuf
 	}
@@ -120,17 +159,46 @@ public class ByteBufBitOutput implements BitOutput {
 		return bb;
 	}
 
+	/**
+	 * Grows the buffer until it has room for the bytes, so that they can be written without growing. With a memory
+	 * budget, the new capacity is reserved before the buffer grows and a rejection leaves the output as it was.
+	 * Reserving a whole point before compressing it keeps the stream decodable when the budget is exhausted.
+	 *
+	 * @param bytes Amount of bytes about to be written
+	 * @param force Reserve the memory even if it does not fit in the budget
+	 * @throws MemoryBudgetExceededException if the growth does not fit in the budget
+	 */
+	public void ensureCapacity(int bytes, boolean force) {
+        if(bb.writableBytes() >= bytes) {
+            return;
+        }
+        if(tenant != null) {
+            int capacity = bb.alloc().calculateNewCapacity(bb.writerIndex() + bytes, bb.maxCapacity());
+            if(capacity > reserved) {
+                reserve(capacity - reserved, force);
+            }
+        }
+        bb.ensureWritable(bytes);
+        if(tenant != null && bb.capacity() > reserved) {
+            // The allocator may round the capacity up further than it calculated
+            reserve(bb.capacity() - reserved, true);
+        }
+	}
+
+    private void reserve(long bytes, boolean force) {
+        if(force) {
+            tenant.forceReserve(bytes);
+        } else {
+            tenant.reserve(bytes);
+        }
+        reserved += bytes;
+    }
+
     private void flipByte() {
         if(bitsLeft == 0) {
+            // Room for the byte was ensured before any of its bits were written
             bb.writeByte(b);
-            if(!bb.isReadable()) {
-            	throw new RuntimeException("OUT OF SPACE");
-            }
-            try {
-            	b = bb.getByte(bb.readerIndex());
-            } catch (Exception ex) {
-            	throw new RuntimeException("OUT OF SPACE", ex);
-            }
+            b = 0;
             bitsLeft = Byte.SIZE;
         }
     }
@@ -0,0 +1,69 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.LongArrayInput;
+
+/**
+ * Sealed, immutable block of a single series.
+ *
+ * @author Michael Burman
+ */
+public final class Block {
+
+    private final long seriesId;
+    private final long blockTimestamp;
+    private final long lastTimestamp;
+    private final int count;
+    private final long[] data;
+
+    public Block(long seriesId, long blockTimestamp, long lastTimestamp, int count, long[] data) {
+        this.seriesId = seriesId;
+        this.blockTimestamp = blockTimestamp;
+        this.lastTimestamp = lastTimestamp;
+        this.count = count;
+        this.data = data;
+    }
+
+    /**
+     * @return New decompressor reading the block
+     */
+    public GorillaDecompressor decompressor() {
+        return new GorillaDecompressor(new LongArrayInput(data));
+    }
+
+    public long getSeriesId() {
+        return seriesId;
+    }
+
+    public long getBlockTimestamp() {
+        return blockTimestamp;
+    }
+
+    /**
+     * @return Timestamp of the last point in the block
+     */
+    public long getLastTimestamp() {
+        return lastTimestamp;
+    }
+
+    /**
+     * @return Amount of points in the block
+     */
+    public int getCount() {
+        return count;
+    }
+
+    /**
+     * @return Compressed block, must not be modified
+     */
+    public long[] getData() {
+        return data;
+    }
+
+    /**
+     * @return Size of the compressed block in bytes
+     */
+    public long getSizeInBytes() {
+        return (long) data.length * Long.BYTES;
+    }
+}
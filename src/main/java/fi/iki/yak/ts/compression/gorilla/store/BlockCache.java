@@ -0,0 +1,226 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Cache of decoded blocks, bounded by the heap usage of the decoded points. Blocks are immutable and keyed by
+ * identity, so a block replaced by compaction simply stops being requested and ages out.
+ *
+ * The cache is split into segments by the block, each with its own lock and a segmented LRU: new blocks enter the
+ * probation segment and move to the protected segment when they are read again. Blocks read only once, such as
+ * those of a large scan, are evicted from the probation segment before the repeatedly read blocks of the
+ * dashboards. Blocks are decoded outside the locks, two readers missing the same block at the same time may both
+ * decode it.
+ *
+ * @author Michael Burman
+ */
+public class BlockCache {
+
+    public final static int DEFAULT_SEGMENTS = 16;
+
+    // Share of each segment's capacity reserved for the protected blocks
+    private final static double PROTECTED_RATIO = 0.8;
+
+    private final Segment[] segments;
+    private final int segmentMask;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final LongAdder evictions = new LongAdder();
+
+    /**
+     * @param maxBytes Maximum heap usage of the decoded blocks
+     */
+    public BlockCache(long maxBytes) {
+        this(maxBytes, DEFAULT_SEGMENTS);
+    }
+
+    /**
+     * @param maxBytes Maximum heap usage of the decoded blocks
+     * @param segments Amount of independently locked segments, must be a power of two
+     */
+    public BlockCache(long maxBytes, int segments) {
+        if(segments < 1 || Integer.bitCount(segments) != 1) {
+            throw new IllegalArgumentException("Amount of segments must be a power of two, was " + segments);
+        }
+        if(maxBytes < segments) {
+            throw new IllegalArgumentException("Maximum size is too small, was " + maxBytes);
+        }
+        this.segments = new Segment[segments];
+        for(int i = 0; i < segments; i++) {
+            this.segments[i] = new Segment(maxBytes / segments);
+        }
+        segmentMask = segments - 1;
+    }
+
+    private Segment segment(Block block) {
+        int h = System.identityHashCode(block) * 0x9E3779B9;
+        return segments[(h ^ (h >>> 16)) & segmentMask];
+    }
+
+    /**
+     * Returns the decoded points of the block, decoding and caching them on a miss.
+     *
+     * @param block Sealed block
+     * @return Decoded points of the block
+     */
+    public DecodedBlock get(Block block) {
+        Segment segment = segment(block);
+        DecodedBlock decoded = segment.get(block);
+        if(decoded != null) {
+            hits.increment();
+            return decoded;
+        }
+        misses.increment();
+        decoded = DecodedBlock.decode(block);
+        segment.put(block, decoded);
+        return decoded;
+    }
+
+    /**
+     * @param block Sealed block
+     * @return Decoded points of the block, or null if the block is not cached. Does not count as a hit or a miss.
+     */
+    public DecodedBlock getIfPresent(Block block) {
+        return segment(block).peek(block);
+    }
+
+    /**
+     * Removes the block from the cache.
+     *
+     * @param block Sealed block
+     */
+    public void invalidate(Block block) {
+        segment(block).remove(block);
+    }
+
+    public long getHitCount() {
+        return hits.sum();
+    }
+
+    public long getMissCount() {
+        return misses.sum();
+    }
+
+    public long getEvictionCount() {
+        return evictions.sum();
+    }
+
+    /**
+     * @return Heap usage of the cached blocks
+     */
+    public long getSizeInBytes() {
+        long size = 0;
+        for (Segment segment : segments) {
+            size += segment.getSize();
+        }
+        return size;
+    }
+
+    /**
+     * @return Amount of cached blocks
+     */
+    public int getBlockCount() {
+        int count = 0;
+        for (Segment segment : segments) {
+            count += segment.getCount();
+        }
+        return count;
+    }
+
+    private final class Segment {
+        private final long capacity;
+        private final long protectedCapacity;
+
+        // Insertion ordered, the eldest entry is the least recently used
+        private final LinkedHashMap<Block, DecodedBlock> probation = new LinkedHashMap<>();
+        private final LinkedHashMap<Block, DecodedBlock> protect = new LinkedHashMap<>(16, 0.75f, true);
+
+        private long probationSize = 0;
+        private long protectedSize = 0;
+
+        Segment(long capacity) {
+            this.capacity = capacity;
+            this.protectedCapacity = (long) (capacity * PROTECTED_RATIO);
+        }
+
+        synchronized DecodedBlock get(Block block) {
+            DecodedBlock decoded = protect.get(block);
+            if(decoded != null) {
+                return decoded;
+            }
+            decoded = probation.remove(block);
+            if(decoded != null) {
+                // Second read, promote and demote the least recently used protected blocks if needed
+                probationSize -= decoded.getSizeInBytes();
+                protect.put(block, decoded);
+                protectedSize += decoded.getSizeInBytes();
+                Iterator<Map.Entry<Block, DecodedBlock>> eldest = protect.entrySet().iterator();
+                while(protectedSize > protectedCapacity && eldest.hasNext()) {
+                    Map.Entry<Block, DecodedBlock> entry = eldest.next();
+                    if(entry.getKey() == block) {
+                        break;
+                    }
+                    eldest.remove();
+                    protectedSize -= entry.getValue().getSizeInBytes();
+                    probation.put(entry.getKey(), entry.getValue());
+                    probationSize += entry.getValue().getSizeInBytes();
+                }
+                evict();
+            }
+            return decoded;
+        }
+
+        synchronized DecodedBlock peek(Block block) {
+            DecodedBlock decoded = probation.get(block);
+            return decoded != null ? decoded : protect.get(block);
+        }
+
+        synchronized void put(Block block, DecodedBlock decoded) {
+            long size = decoded.getSizeInBytes();
+            if(size > capacity || probation.containsKey(block) || protect.containsKey(block)) {
+                return;
+            }
+            probation.put(block, decoded);
+            probationSize += size;
+            evict();
+        }
+
+        synchronized void remove(Block block) {
+            DecodedBlock decoded = probation.remove(block);
+            if(decoded != null) {
+                probationSize -= decoded.getSizeInBytes();
+            }
+            decoded = protect.remove(block);
+            if(decoded != null) {
+                protectedSize -= decoded.getSizeInBytes();
+            }
+        }
+
+        private void evict() {
+            while(probationSize + protectedSize > capacity) {
+                LinkedHashMap<Block, DecodedBlock> victims = probation.isEmpty() ? protect : probation;
+                Iterator<Map.Entry<Block, DecodedBlock>> eldest = victims.entrySet().iterator();
+                long size = eldest.next().getValue().getSizeInBytes();
+                eldest.remove();
+                if(victims == probation) {
+                    probationSize -= size;
+                } else {
+                    protectedSize -= size;
+                }
+                evictions.increment();
+            }
+        }
+
+        synchronized long getSize() {
+            return probationSize + protectedSize;
+        }
+
+        synchronized int getCount() {
+            return probation.size() + protect.size();
+        }
+    }
+}
@@ -0,0 +1,15 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+/**
+ * Receives the blocks sealed by the {@link TimeSeriesStore}, for example to persist them.
+ *
+ * @author Michael Burman
+ */
+@FunctionalInterface
+public interface BlockSink {
+
+    /**
+     * @param block Sealed block
+     */
+    void accept(Block block);
+}
@@ -0,0 +1,287 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Segment whose blocks are recompressed with {@link Deflater}, for blocks which are rarely read. The blocks of each
+ * series are deflated together as one chunk, so reading any block of a series inflates all of them. The index is
+ * not compressed and is binary searched in the mapped file, like in the {@link SegmentReader}.
+ *
+ * Layout, all big endian:
+ * <pre>
+ * chunks: deflated words of the blocks of a series ...
+ * index entries: series id, start, end, chunk offset, chunk length, offset and length of the block in the inflated
+ *                chunk (8 bytes each)
+ * trailer: amount of entries, offset of the index, magic (8 bytes each)
+ * </pre>
+ *
+ * @author Michael Burman
+ */
+public class ColdSegment {
+
+    public final static long MAGIC = 0x474F52494C434C44L; // "GORILCLD"
+
+    public final static int ENTRY_BYTES = 7 * Long.BYTES;
+    public final static int TRAILER_BYTES = 3 * Long.BYTES;
+
+    private final MappedByteBuffer buffer;
+    private final int entries;
+    private final int indexOffset;
+
+    /**
+     * @param path Path of a cold segment
+     * @throws IOException if the file can not be mapped or is not a cold segment
+     */
+    public ColdSegment(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < TRAILER_BYTES || size > SegmentWriter.MAX_SEGMENT_SIZE) {
+                throw new IOException(path + " is not a cold segment, size " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int trailer = buffer.limit() - TRAILER_BYTES;
+        if(buffer.getLong(trailer + 2 * Long.BYTES) != MAGIC) {
+            throw new IOException(path + " is not a complete cold segment");
+        }
+        entries = (int) buffer.getLong(trailer);
+        indexOffset = (int) buffer.getLong(trailer + Long.BYTES);
+    }
+
+    /**
+     * Recompresses a segment. The blocks are written in the order of the segment's index.
+     *
+     * @param segment Segment to recompress
+     * @param path Path of the new cold segment, replaced if it exists
+     * @param level Deflater compression level
+     * @return Size of the cold segment in bytes
+     * @throws IOException if writing fails
+     */
+    public static long write(SegmentReader segment, Path path, int level) throws IOException {
+        int count = segment.getBlockCount();
+        long[] index = new long[count * (ENTRY_BYTES / Long.BYTES)];
+        Deflater deflater = new Deflater(level);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel),
+                    64 * 1024));
+            byte[] raw = new byte[64 * 1024];
+            byte[] deflated = new byte[64 * 1024];
+            long position = 0;
+            int i = 0;
+            while(i < count) {
+                // Collect the blocks of one series to a chunk
+                long seriesId = segment.block(i).getSeriesId();
+                int first = i;
+                int rawLength = 0;
+                for(; i < count; i++) {
+                    SegmentReader.SegmentBlock block = segment.block(i);
+                    if(block.getSeriesId() != seriesId) {
+                        break;
+                    }
+                    ByteBuffer data = block.getData();
+                    if(raw.length - rawLength < data.remaining()) {
+                        raw = Arrays.copyOf(raw, Math.max(raw.length * 2, rawLength + data.remaining()));
+                    }
+                    int e = i * (ENTRY_BYTES / Long.BYTES);
+                    index[e] = seriesId;
+                    index[e + 1] = block.getStart();
+                    index[e + 2] = block.getEnd();
+                    index[e + 3] = position;
+                    index[e + 5] = rawLength;
+                    index[e + 6] = data.remaining();
+                    int length = data.remaining();
+                    data.get(raw, rawLength, length);
+                    rawLength += length;
+                }
+
+                deflater.reset();
+                deflater.setInput(raw, 0, rawLength);
+                deflater.finish();
+                long chunkLength = 0;
+                while(!deflater.finished()) {
+                    int n = deflater.deflate(deflated);
+                    out.write(deflated, 0, n);
+                    chunkLength += n;
+                }
+                for(int j = first; j < i; j++) {
+                    index[j * (ENTRY_BYTES / Long.BYTES) + 4] = chunkLength;
+                }
+                position += chunkLength;
+            }
+
+            for (long value : index) {
+                out.writeLong(value);
+            }
+            out.writeLong(count);
+            out.writeLong(position);
+            out.writeLong(MAGIC);
+            out.flush();
+            channel.force(true);
+            return channel.position();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private int entry(int index) {
+        return indexOffset + index * ENTRY_BYTES;
+    }
+
+    private long seriesId(int index) {
+        return buffer.getLong(entry(index));
+    }
+
+    /**
+     * @return Index of the first entry of the series or of the next series, if it is not in the segment
+     */
+    private int lowerBound(long seriesId) {
+        int low = 0;
+        int high = entries;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(seriesId(mid) < seriesId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the blocks of the series which overlap the time range. The chunk of the series is inflated on every
+     * call.
+     *
+     * @param seriesId Id of the series
+     * @param start Start of the range, inclusive
+     * @param end End of the range, inclusive
+     * @return Blocks in time order, backed by the inflated chunk
+     * @throws IllegalStateException if the chunk is corrupted
+     */
+    public List<SegmentReader.SegmentBlock> find(long seriesId, long start, long end) {
+        List<SegmentReader.SegmentBlock> blocks = new ArrayList<>();
+        int first = lowerBound(seriesId);
+        if(first == entries || seriesId(first) != seriesId) {
+            return blocks;
+        }
+        ByteBuffer chunk = null;
+        for(int i = first; i < entries && seriesId(i) == seriesId; i++) {
+            int entry = entry(i);
+            long blockStart = buffer.getLong(entry + Long.BYTES);
+            if(blockStart > end) {
+                break;
+            }
+            long blockEnd = buffer.getLong(entry + 2 * Long.BYTES);
+            if(blockEnd < start) {
+                continue;
+            }
+            if(chunk == null) {
+                chunk = inflate(first);
+            }
+            int offset = (int) buffer.getLong(entry + 5 * Long.BYTES);
+            int length = (int) buffer.getLong(entry + 6 * Long.BYTES);
+            ByteBuffer slice = chunk.duplicate();
+            slice.position(offset).limit(offset + length);
+            blocks.add(new SegmentReader.SegmentBlock(seriesId, blockStart, blockEnd, slice.slice()));
+        }
+        return blocks;
+    }
+
+    /**
+     * @param seriesId Id of the series
+     * @return All the blocks of the series in time order
+     */
+    public List<SegmentReader.SegmentBlock> find(long seriesId) {
+        return find(seriesId, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    private ByteBuffer inflate(int first) {
+        long seriesId = seriesId(first);
+        int last = first;
+        while(last + 1 < entries && seriesId(last + 1) == seriesId) {
+            last++;
+        }
+        int chunkOffset = (int) buffer.getLong(entry(first) + 3 * Long.BYTES);
+        int chunkLength = (int) buffer.getLong(entry(first) + 4 * Long.BYTES);
+        int rawLength = (int) (buffer.getLong(entry(last) + 5 * Long.BYTES)
+                + buffer.getLong(entry(last) + 6 * Long.BYTES));
+
+        byte[] deflated = new byte[chunkLength];
+        ByteBuffer source = buffer.duplicate();
+        source.position(chunkOffset);
+        source.get(deflated);
+
+        byte[] raw = new byte[rawLength];
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            int n = 0;
+            while(n < rawLength && !inflater.finished()) {
+                int read = inflater.inflate(raw, n, rawLength - n);
+                if(read == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    break;
+                }
+                n += read;
+            }
+            if(n != rawLength) {
+                throw new IllegalStateException("Chunk of series " + seriesId + " is truncated");
+            }
+        } catch(DataFormatException e) {
+            throw new IllegalStateException("Chunk of series " + seriesId + " is corrupted", e);
+        } finally {
+            inflater.end();
+        }
+        return ByteBuffer.wrap(raw);
+    }
+
+    /**
+     * @return Amount of blocks in the segment
+     */
+    public int getBlockCount() {
+        return entries;
+    }
+
+    /**
+     * @return Earliest block timestamp of all the blocks, or Long.MAX_VALUE if the segment is empty
+     */
+    public long getFirstTimestamp() {
+        long first = Long.MAX_VALUE;
+        for(int i = 0; i < entries; i++) {
+            first = Math.min(first, buffer.getLong(entry(i) + Long.BYTES));
+        }
+        return first;
+    }
+
+    /**
+     * @return Latest timestamp of all the blocks, or Long.MIN_VALUE if the segment is empty
+     */
+    public long getLastTimestamp() {
+        long last = Long.MIN_VALUE;
+        for(int i = 0; i < entries; i++) {
+            last = Math.max(last, buffer.getLong(entry(i) + 2 * Long.BYTES));
+        }
+        return last;
+    }
+
+    /**
+     * @return Size of the segment in bytes
+     */
+    public long getSizeInBytes() {
+        return buffer.capacity();
+    }
+}
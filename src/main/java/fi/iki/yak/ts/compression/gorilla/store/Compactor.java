@@ -0,0 +1,193 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import fi.iki.yak.ts.compression.gorilla.Blocks;
+import fi.iki.yak.ts.compression.gorilla.GorillaCompressor;
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.LongArrayOutput;
+
+/**
+ * Merges the adjacent sealed blocks of a series into larger blocks in the background. Every block restarts the
+ * compression with full headers, a full first value and an empty XOR context, so for example two hour blocks take
+ * noticeably more space than the same points in daily blocks.
+ *
+ * Blocks are merged into blocks aligned to the target block size, once the series has moved past the end of the
+ * target block. The points are streamed through {@link Blocks#merge}, so the memory usage does not depend on the
+ * block sizes. The work runs on a fixed amount of low priority threads and the bytes read and written are rate
+ * limited, so the compaction does not starve the ingest. Readers which hold the replaced blocks can keep using them.
+ * Blocks frozen by a {@link TieredStorage}, as they are being moved to a segment, are left as they are.
+ *
+ * @author Michael Burman
+ */
+public class Compactor implements AutoCloseable {
+
+    private final TimeSeriesStore store;
+    private final long targetBlockSize;
+    private final int threads;
+    private final RateLimiter rateLimiter;
+
+    private final ExecutorService executor;
+    private final ScheduledExecutorService scheduler;
+    private volatile RuntimeException lastFailure;
+
+    /**
+     * @param store Store to compact
+     * @param targetBlockSize Size of the merged blocks, a multiple of the block size of the store
+     * @param threads Amount of threads merging the blocks
+     * @param bytesPerSecond Limit for the bytes read and written by all the threads, zero or less for no limit
+     */
+    public Compactor(TimeSeriesStore store, long targetBlockSize, int threads, long bytesPerSecond) {
+        if(targetBlockSize % store.getBlockSize() != 0 || targetBlockSize > TimeSeriesStore.MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Target block size must be a multiple of " + store.getBlockSize()
+                    + " and at most " + TimeSeriesStore.MAX_BLOCK_SIZE + ", was " + targetBlockSize);
+        }
+        if(threads < 1) {
+            throw new IllegalArgumentException("Amount of threads must be positive, was " + threads);
+        }
+        this.store = store;
+        this.targetBlockSize = targetBlockSize;
+        this.threads = threads;
+        this.rateLimiter = new RateLimiter(bytesPerSecond);
+        executor = Executors.newFixedThreadPool(threads, r -> background(r, "gorilla-compactor"));
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> background(r, "gorilla-compactor-scheduler"));
+    }
+
+    private static Thread background(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    }
+
+    /**
+     * Starts compacting all the series periodically.
+     *
+     * @param interval Milliseconds between the compactions
+     */
+    public void start(long interval) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                compactAll();
+            } catch(InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch(RuntimeException e) {
+                // A failed compaction must not end the periodic ones, retried on the next run
+                lastFailure = e;
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Failure of the latest failed periodic compaction, or null if none has failed
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Compacts all the series, spread over the compaction threads, and waits for the compaction to finish.
+     *
+     * @return Amount of merged blocks written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public int compactAll() throws InterruptedException {
+        long[] seriesIds = store.getSeriesIds();
+        List<Future<Integer>> futures = new ArrayList<>(threads);
+        for(int t = 0; t < threads; t++) {
+            int first = t;
+            futures.add(executor.submit(() -> {
+                int merged = 0;
+                for(int i = first; i < seriesIds.length; i += threads) {
+                    merged += compact(seriesIds[i]);
+                }
+                return merged;
+            }));
+        }
+        int merged = 0;
+        try {
+            for (Future<Integer> future : futures) {
+                merged += future.get();
+            }
+        } catch(ExecutionException e) {
+            throw new IllegalStateException("Compaction failed", e.getCause());
+        }
+        return merged;
+    }
+
+    /**
+     * Compacts the series in the calling thread. Only target blocks which the series has moved past are merged,
+     * as no more points can arrive to them.
+     *
+     * @param seriesId Id of the series
+     * @return Amount of merged blocks written
+     * @throws InterruptedException if interrupted while waiting for the rate limit
+     */
+    public int compact(long seriesId) throws InterruptedException {
+        List<Block> blocks = store.getBlocks(seriesId);
+        long lastTimestamp = store.getLastTimestamp(seriesId);
+        int merged = 0;
+
+        int start = 0;
+        while(start < blocks.size()) {
+            long windowStart = windowStart(blocks.get(start));
+            int end = start + 1;
+            while(end < blocks.size() && windowStart(blocks.get(end)) == windowStart) {
+                end++;
+            }
+            if(end - start > 1 && windowStart + targetBlockSize <= lastTimestamp) {
+                Block block = merge(seriesId, windowStart, blocks.subList(start, end));
+                if(store.replaceBlocks(seriesId, blocks.subList(start, end), block)) {
+                    merged++;
+                }
+            }
+            start = end;
+        }
+        return merged;
+    }
+
+    private long windowStart(Block block) {
+        return block.getBlockTimestamp() - Math.floorMod(block.getBlockTimestamp(), targetBlockSize);
+    }
+
+    private Block merge(long seriesId, long windowStart, List<Block> blocks) throws InterruptedException {
+        GorillaDecompressor[] inputs = new GorillaDecompressor[blocks.size()];
+        long bytes = 0;
+        for(int i = 0; i < inputs.length; i++) {
+            inputs[i] = blocks.get(i).decompressor();
+            bytes += blocks.get(i).getSizeInBytes();
+        }
+        rateLimiter.acquire(bytes);
+
+        LongArrayOutput output = new LongArrayOutput((int) (bytes / Long.BYTES));
+        int count = Blocks.merge(inputs, new GorillaCompressor(windowStart, output), Blocks.DuplicatePolicy.LAST);
+        long[] data = output.getLongArray();
+        rateLimiter.acquire((long) data.length * Long.BYTES);
+
+        return new Block(seriesId, windowStart, blocks.get(blocks.size() - 1).getLastTimestamp(), count, data);
+    }
+
+    /**
+     * Stops the periodic compaction and waits for a running one to finish. If interrupted while waiting, returns
+     * with the interrupt status set.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+            executor.shutdown();
+            executor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            executor.shutdown();
+            Thread.currentThread().interrupt();
+        }
+    }
+}
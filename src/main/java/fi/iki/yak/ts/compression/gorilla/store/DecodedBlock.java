@@ -0,0 +1,63 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+
+/**
+ * Points of a block decoded to primitive arrays. The arrays are shared by all the readers of a cached block and
+ * must not be modified.
+ *
+ * @author Michael Burman
+ */
+public final class DecodedBlock {
+
+    // Object headers and the references of this object and its two arrays
+    private final static int OVERHEAD_BYTES = 64;
+
+    private final long[] timestamps;
+    private final long[] values;
+
+    DecodedBlock(long[] timestamps, long[] values) {
+        this.timestamps = timestamps;
+        this.values = values;
+    }
+
+    /**
+     * Decodes all the points of the block.
+     *
+     * @param block Block to decode
+     * @return Decoded points
+     */
+    public static DecodedBlock decode(Block block) {
+        int count = block.getCount();
+        long[] timestamps = new long[count];
+        long[] values = new long[count];
+        GorillaDecompressor d = block.decompressor();
+        for(int i = 0; i < count && d.nextPair(); i++) {
+            timestamps[i] = d.getTimestamp();
+            values[i] = d.getValue();
+        }
+        return new DecodedBlock(timestamps, values);
+    }
+
+    public long[] getTimestamps() {
+        return timestamps;
+    }
+
+    /**
+     * @return Raw values, use Double.longBitsToDouble for double series
+     */
+    public long[] getValues() {
+        return values;
+    }
+
+    public int getCount() {
+        return timestamps.length;
+    }
+
+    /**
+     * @return Approximate heap usage of the decoded points
+     */
+    public long getSizeInBytes() {
+        return OVERHEAD_BYTES + 2L * timestamps.length * Long.BYTES;
+    }
+}
@@ -0,0 +1,269 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import fi.iki.yak.ts.compression.gorilla.MemoryBudget;
+import fi.iki.yak.ts.compression.gorilla.MemoryBudgetExceededException;
+
+/**
+ * Moves points from many producer threads to a {@link TimeSeriesStore} through preallocated ring buffers, without
+ * locks on the producer side. Each ring is drained by its own consumer thread and a series always goes to the same
+ * ring, chosen by the shard of the series, so every shard of the store is written by a single consumer and the
+ * shard locks are not contended. The points of a series are added in the order they were published.
+ *
+ * When a ring is full, the {@link Backpressure} policy either makes the producer wait for space or rejects the
+ * point. Points can be published before {@link #start()}, they are added once the consumers run. A point which the
+ * store fails to add is counted and the consumer continues with the next one.
+ *
+ * @author Michael Burman
+ */
+public class IngestPipeline implements AutoCloseable {
+
+    /**
+     * What a producer does when the ring of the series is full
+     */
+    public enum Backpressure {
+        /**
+         * Wait until the consumer has made space
+         */
+        BLOCK,
+        /**
+         * Return false from publish without waiting
+         */
+        REJECT
+    }
+
+    // Idle rounds before yielding and before parking
+    private final static int SPINS = 100;
+    private final static int YIELDS = 200;
+    private final static long PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(50);
+
+    private final TimeSeriesStore store;
+    private final RingBuffer[] rings;
+    private final int ringMask;
+    private final int batchSize;
+    private final Backpressure backpressure;
+    private final Thread[] consumers;
+
+    private final LongAdder rejected = new LongAdder();
+    private final LongAdder outOfOrder = new LongAdder();
+    private final LongAdder overBudget = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private volatile RuntimeException lastFailure;
+
+    private volatile boolean running = false;
+    private volatile boolean started = false;
+    private volatile boolean closed = false;
+
+    /**
+     * @param store Store to add the points to
+     * @param consumers Amount of rings and consumer threads, a power of two and at most the amount of shards
+     * @param ringSize Amount of points each ring holds, a power of two
+     * @param batchSize Maximum amount of points a consumer drains before releasing the slots to the producers
+     * @param backpressure Policy for full rings
+     */
+    public IngestPipeline(TimeSeriesStore store, int consumers, int ringSize, int batchSize,
+                          Backpressure backpressure) {
+        if(consumers < 1 || Integer.bitCount(consumers) != 1 || consumers > store.getShardCount()) {
+            throw new IllegalArgumentException("Amount of consumers must be a power of two and at most "
+                    + store.getShardCount() + ", was " + consumers);
+        }
+        if(batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive, was " + batchSize);
+        }
+        this.store = store;
+        this.batchSize = batchSize;
+        this.backpressure = backpressure;
+        rings = new RingBuffer[consumers];
+        this.consumers = new Thread[consumers];
+        for(int i = 0; i < consumers; i++) {
+            RingBuffer ring = new RingBuffer(ringSize);
+            rings[i] = ring;
+            Thread t = new Thread(() -> consume(ring), "gorilla-ingest-" + i);
+            t.setDaemon(true);
+            this.consumers[i] = t;
+        }
+        ringMask = consumers - 1;
+    }
+
+    /**
+     * Starts the consumer threads.
+     */
+    public void start() {
+        running = true;
+        started = true;
+        for (Thread consumer : consumers) {
+            consumer.start();
+        }
+    }
+
+    /**
+     * Publishes a point to the ring of its series.
+     *
+     * @param seriesId Id of the series
+     * @param timestamp Timestamp of the point
+     * @param value Raw value of the point
+     * @return false if the ring was full and the policy is {@link Backpressure#REJECT}
+     * @throws IllegalStateException if the pipeline is closed
+     */
+    public boolean publish(long seriesId, long timestamp, long value) {
+        if(closed) {
+            throw new IllegalStateException("Pipeline is closed");
+        }
+        RingBuffer ring = rings[store.shardIndex(seriesId) & ringMask];
+        long sequence = ring.tryClaim();
+        int idle = 0;
+        while(sequence < 0) {
+            if(backpressure == Backpressure.REJECT) {
+                rejected.increment();
+                return false;
+            }
+            if(closed) {
+                throw new IllegalStateException("Pipeline is closed");
+            }
+            idle = idle(idle);
+            sequence = ring.tryClaim();
+        }
+        ring.publish(sequence, seriesId, timestamp, value);
+        return true;
+    }
+
+    /**
+     * Publishes a double value, see {@link #publish(long, long, long)}
+     */
+    public boolean publish(long seriesId, long timestamp, double value) {
+        return publish(seriesId, timestamp, Double.doubleToRawLongBits(value));
+    }
+
+    private static int idle(int idle) {
+        if(idle < SPINS) {
+            // Busy spin
+        } else if(idle < YIELDS) {
+            Thread.yield();
+        } else {
+            LockSupport.parkNanos(PARK_NANOS);
+        }
+        return idle + 1;
+    }
+
+    private void add(long seriesId, long timestamp, long value) {
+        try {
+            if(!store.addValue(seriesId, timestamp, value)) {
+                outOfOrder.increment();
+            }
+        } catch(MemoryBudgetExceededException e) {
+            overBudget.increment();
+        } catch(RuntimeException e) {
+            // For example a failing block sink, the rest of the ring must still be drained
+            failed.increment();
+            lastFailure = e;
+        }
+    }
+
+    private void consume(RingBuffer ring) {
+        PointConsumer add = this::add;
+        int idle = 0;
+        while(true) {
+            if(ring.drain(add, batchSize) > 0) {
+                idle = 0;
+            } else if(!running && ring.getConsumed() == ring.getClaimed()) {
+                return;
+            } else {
+                idle = idle(idle);
+            }
+        }
+    }
+
+    /**
+     * Waits until every point published before the call has been added to the store. If the pipeline was never
+     * started, the points are added in the calling thread.
+     */
+    public void flush() {
+        if(!started) {
+            drainInCallingThread();
+            return;
+        }
+        long[] targets = new long[rings.length];
+        for(int i = 0; i < rings.length; i++) {
+            targets[i] = rings[i].getClaimed();
+        }
+        for(int i = 0; i < rings.length; i++) {
+            int idle = 0;
+            while(rings[i].getConsumed() < targets[i]) {
+                idle = idle(idle);
+            }
+        }
+    }
+
+    /**
+     * @return Amount of points rejected because their ring was full
+     */
+    public long getRejectedCount() {
+        return rejected.sum();
+    }
+
+    /**
+     * @return Amount of points the store rejected for being older than the last point of their series
+     */
+    public long getOutOfOrderCount() {
+        return outOfOrder.sum();
+    }
+
+    /**
+     * @return Amount of points the store rejected because the memory budget was exhausted, see
+     * {@link TimeSeriesStore#setMemoryBudget(MemoryBudget, java.util.function.LongFunction)}
+     */
+    public long getOverBudgetCount() {
+        return overBudget.sum();
+    }
+
+    /**
+     * @return Amount of points the store failed to add for any other reason, see {@link #getLastFailure()}
+     */
+    public long getFailedCount() {
+        return failed.sum();
+    }
+
+    /**
+     * @return Latest failure of adding a point to the store, or null if none has failed
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Adds the published points to the store and stops the consumers. If the pipeline was never started, the points
+     * are added in the calling thread. Publishing to a closed pipeline fails, points published concurrently with the
+     * close may be lost. If interrupted while waiting for the consumers, returns with the interrupt status set.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        running = false;
+        if(!started) {
+            drainInCallingThread();
+            return;
+        }
+        try {
+            for (Thread consumer : consumers) {
+                consumer.join();
+            }
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Without the consumer threads, each ring still has a single consumer: the thread holding the lock.
+     */
+    private synchronized void drainInCallingThread() {
+        PointConsumer add = this::add;
+        for (RingBuffer ring : rings) {
+            while(ring.drain(add, batchSize) > 0) {
+                // Drain until empty
+            }
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+/**
+ * Open addressing hash map from long keys to non-negative int values, stored in two primitive arrays. Unlike a
+ * {@code HashMap<Long, V>}, there are no boxed keys or entry objects, so a mapping takes 12 bytes (at the load
+ * factor, 18 bytes) and the GC does not need to scan it. Uses linear probing and backward shift deletion. Not
+ * thread-safe.
+ *
+ * @author Michael Burman
+ */
+class LongIntMap {
+
+    public final static int NOT_FOUND = -1;
+
+    private final static int MIN_CAPACITY = 16;
+
+    private long[] keys;
+    // Value + 1, zero marks an empty slot
+    private int[] values;
+    private int mask;
+    private int size = 0;
+    private int resizeAt;
+
+    LongIntMap() {
+        this(MIN_CAPACITY);
+    }
+
+    /**
+     * @param expectedSize Amount of mappings to allocate space for
+     */
+    LongIntMap(int expectedSize) {
+        allocate(Math.max(MIN_CAPACITY, Integer.highestOneBit(Math.max(1, expectedSize) * 3 / 2) << 1));
+    }
+
+    private void allocate(int capacity) {
+        keys = new long[capacity];
+        values = new int[capacity];
+        mask = capacity - 1;
+        resizeAt = capacity / 3 * 2;
+    }
+
+    /**
+     * Uses the MurmurHash3 finalizer, which is independent of the shard selection of the store. Otherwise all the
+     * keys of a shard would share the low bits of their slots.
+     */
+    private int slot(long key) {
+        long h = key;
+        h = (h ^ (h >>> 33)) * 0xFF51AFD7ED558CCDL;
+        h = (h ^ (h >>> 33)) * 0xC4CEB9FE1A85EC53L;
+        return (int) (h ^ (h >>> 33)) & mask;
+    }
+
+    /**
+     * @return Value of the key or {@link #NOT_FOUND}
+     */
+    int get(long key) {
+        for(int i = slot(key); values[i] != 0; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                return values[i] - 1;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @param value Non-negative value
+     * @return Previous value of the key or {@link #NOT_FOUND}
+     */
+    int put(long key, int value) {
+        if(value < 0) {
+            throw new IllegalArgumentException("Value must not be negative, was " + value);
+        }
+        int i = slot(key);
+        for(; values[i] != 0; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                int previous = values[i] - 1;
+                values[i] = value + 1;
+                return previous;
+            }
+        }
+        keys[i] = key;
+        values[i] = value + 1;
+        if(++size > resizeAt) {
+            rehash();
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * @return Removed value of the key or {@link #NOT_FOUND}
+     */
+    int remove(long key) {
+        int i = slot(key);
+        for(; values[i] != 0; i = (i + 1) & mask) {
+            if(keys[i] == key) {
+                int removed = values[i] - 1;
+                shiftBack(i);
+                size--;
+                return removed;
+            }
+        }
+        return NOT_FOUND;
+    }
+
+    /**
+     * Moves the following entries of the probe sequence back to the emptied slot, so that lookups never stop at it
+     */
+    private void shiftBack(int empty) {
+        int i = empty;
+        while(true) {
+            i = (i + 1) & mask;
+            if(values[i] == 0) {
+                break;
+            }
+            int home = slot(keys[i]);
+            // Entry can move to the empty slot only if its home slot is not between the empty slot and itself
+            if(((i - home) & mask) >= ((i - empty) & mask)) {
+                keys[empty] = keys[i];
+                values[empty] = values[i];
+                empty = i;
+            }
+        }
+        values[empty] = 0;
+    }
+
+    private void rehash() {
+        long[] oldKeys = keys;
+        int[] oldValues = values;
+        allocate(keys.length * 2);
+        for(int j = 0; j < oldKeys.length; j++) {
+            if(oldValues[j] != 0) {
+                int i = slot(oldKeys[j]);
+                while(values[i] != 0) {
+                    i = (i + 1) & mask;
+                }
+                keys[i] = oldKeys[j];
+                values[i] = oldValues[j];
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+}
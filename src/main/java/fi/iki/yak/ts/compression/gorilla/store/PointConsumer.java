@@ -0,0 +1,11 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+/**
+ * Receives points of any series, for example from a log replay or an ingest queue.
+ *
+ * @author Michael Burman
+ */
+@FunctionalInterface
+public interface PointConsumer {
+    void accept(long seriesId, long timestamp, long value);
+}
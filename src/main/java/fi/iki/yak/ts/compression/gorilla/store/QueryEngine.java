@@ -0,0 +1,210 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.OpenBlock;
+
+/**
+ * Aggregates the points of many series over a time range in parallel. The blocks overlapping the range, including
+ * snapshots of the open blocks, are sorted by group and split recursively over a {@link ForkJoinPool}, so idle
+ * workers steal the remaining blocks of busy ones. Each task aggregates its blocks to partial count, sum, minimum
+ * and maximum arrays per time bucket for only the groups of its blocks, and merges them to the result of the query.
+ *
+ * Values are aggregated as doubles. Sealed blocks are read through a {@link BlockCache} when one is given.
+ *
+ * @author Michael Burman
+ */
+public class QueryEngine {
+
+    // Tasks per worker thread, enough for work stealing to even out blocks of different sizes
+    private final static int TASKS_PER_THREAD = 8;
+
+    private final TimeSeriesStore store;
+    private final ForkJoinPool pool;
+    private final BlockCache cache;
+
+    /**
+     * Creates an engine using the common pool and no cache.
+     */
+    public QueryEngine(TimeSeriesStore store) {
+        this(store, ForkJoinPool.commonPool(), null);
+    }
+
+    /**
+     * @param store Store to query
+     * @param pool Pool to decode the blocks in
+     * @param cache Cache of decoded blocks, or null
+     */
+    public QueryEngine(TimeSeriesStore store, ForkJoinPool pool, BlockCache cache) {
+        this.store = store;
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * Aggregates all the series to a single group.
+     *
+     * @see #query(long[], int[], int, long, long, long)
+     */
+    public QueryResult query(long[] seriesIds, long start, long end, long step) {
+        return query(seriesIds, new int[seriesIds.length], 1, start, end, step);
+    }
+
+    /**
+     * Aggregates the series by group, for example by the value of a tag.
+     *
+     * @param seriesIds Ids of the series
+     * @param groups Group of each series, between 0 and groupCount - 1
+     * @param groupCount Amount of groups
+     * @param start Start of the range, inclusive
+     * @param end End of the range, exclusive
+     * @param step Length of a time bucket
+     * @return Aggregates aligned to the buckets
+     */
+    public QueryResult query(long[] seriesIds, int[] groups, int groupCount, long start, long end, long step) {
+        if(seriesIds.length != groups.length) {
+            throw new IllegalArgumentException("Every series must have a group");
+        }
+        if(end <= start || step < 1) {
+            throw new IllegalArgumentException("Range must not be empty and step must be positive");
+        }
+        long buckets = (end - start + step - 1) / step;
+        if(buckets > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Too many buckets: " + buckets);
+        }
+
+        List<Source> sources = new ArrayList<>();
+        List<Block> blocks = new ArrayList<>();
+        for(int i = 0; i < seriesIds.length; i++) {
+            if(groups[i] < 0 || groups[i] >= groupCount) {
+                throw new IllegalArgumentException("Group " + groups[i] + " is not between 0 and " + groupCount);
+            }
+            // Blocks and the snapshot under one lock, a block sealed in between would be in neither
+            OpenBlock.Snapshot snapshot = store.snapshot(seriesIds[i], blocks);
+            for (Block block : blocks) {
+                if(block.getBlockTimestamp() < end && block.getLastTimestamp() >= start) {
+                    sources.add(new Source(groups[i], block, null));
+                }
+            }
+            blocks.clear();
+            if(snapshot != null && snapshot.getCount() > 0) {
+                sources.add(new Source(groups[i], null, snapshot));
+            }
+        }
+        // Each task covers a narrow range of groups
+        sources.sort(Comparator.comparingInt(source -> source.group));
+
+        QueryResult result = new QueryResult(start, step, (int) buckets, groupCount);
+        if(sources.isEmpty()) {
+            return result;
+        }
+        Query query = new Query(sources, result, start, end, step, (int) buckets);
+        int threshold = Math.max(1, sources.size() / (pool.getParallelism() * TASKS_PER_THREAD));
+        pool.invoke(new AggregateTask(query, 0, sources.size(), threshold));
+        return result;
+    }
+
+    private static final class Source {
+        final int group;
+        final Block block;
+        final OpenBlock.Snapshot snapshot;
+
+        Source(int group, Block block, OpenBlock.Snapshot snapshot) {
+            this.group = group;
+            this.block = block;
+            this.snapshot = snapshot;
+        }
+    }
+
+    private static final class Query {
+        final List<Source> sources;
+        final QueryResult result;
+        final long start;
+        final long end;
+        final long step;
+        final int buckets;
+
+        Query(List<Source> sources, QueryResult result, long start, long end, long step, int buckets) {
+            this.sources = sources;
+            this.result = result;
+            this.start = start;
+            this.end = end;
+            this.step = step;
+            this.buckets = buckets;
+        }
+    }
+
+    private final class AggregateTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Query query;
+        private final int from;
+        private final int to;
+        private final int threshold;
+
+        AggregateTask(Query query, int from, int to, int threshold) {
+            this.query = query;
+            this.from = from;
+            this.to = to;
+            this.threshold = threshold;
+        }
+
+        @Override
+        protected void compute() {
+            if(to - from <= threshold) {
+                // The sources are sorted by group, the partial result only needs their range
+                int firstGroup = query.sources.get(from).group;
+                int lastGroup = query.sources.get(to - 1).group;
+                QueryResult partial = new QueryResult(query.start, query.step, query.buckets, firstGroup,
+                        lastGroup - firstGroup + 1);
+                for(int i = from; i < to; i++) {
+                    aggregate(query.sources.get(i), partial);
+                }
+                synchronized(query.result) {
+                    query.result.merge(partial);
+                }
+                return;
+            }
+            int mid = (from + to) >>> 1;
+            invokeAll(new AggregateTask(query, from, mid, threshold), new AggregateTask(query, mid, to, threshold));
+        }
+
+        private void aggregate(Source source, QueryResult result) {
+            if(source.block != null && cache != null) {
+                DecodedBlock decoded = cache.get(source.block);
+                long[] timestamps = decoded.getTimestamps();
+                long[] values = decoded.getValues();
+                for(int i = 0; i < timestamps.length && timestamps[i] < query.end; i++) {
+                    if(timestamps[i] >= query.start) {
+                        result.add(source.group, timestamps[i], Double.longBitsToDouble(values[i]));
+                    }
+                }
+                return;
+            }
+
+            GorillaDecompressor d;
+            int count;
+            if(source.block != null) {
+                d = source.block.decompressor();
+                count = source.block.getCount();
+            } else {
+                d = source.snapshot.decompressor();
+                count = source.snapshot.getCount();
+            }
+            for(int i = 0; i < count && d.nextPair(); i++) {
+                long timestamp = d.getTimestamp();
+                if(timestamp >= query.end) {
+                    break;
+                }
+                if(timestamp >= query.start) {
+                    result.add(source.group, timestamp, Double.longBitsToDouble(d.getValue()));
+                }
+            }
+        }
+    }
+}
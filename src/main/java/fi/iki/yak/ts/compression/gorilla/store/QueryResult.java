@@ -0,0 +1,148 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.Arrays;
+
+/**
+ * Aggregates of a range query, per group and per time bucket. Bucket i of every group covers the timestamps from
+ * start + i * step (inclusive) to start + (i + 1) * step (exclusive). Empty buckets have a count of zero, a sum of
+ * zero and NaN as the minimum and maximum.
+ *
+ * @author Michael Burman
+ */
+public final class QueryResult {
+
+    private final long start;
+    private final long step;
+    private final int buckets;
+    private final int firstGroup;
+    private final int groups;
+
+    // Group major, index is (group - firstGroup) * buckets + bucket
+    private final long[] counts;
+    private final double[] sums;
+    private final double[] mins;
+    private final double[] maxs;
+
+    QueryResult(long start, long step, int buckets, int groups) {
+        this(start, step, buckets, 0, groups);
+    }
+
+    /**
+     * Creates partial aggregates of the groups from firstGroup to firstGroup + groups - 1.
+     */
+    QueryResult(long start, long step, int buckets, int firstGroup, int groups) {
+        this.start = start;
+        this.step = step;
+        this.buckets = buckets;
+        this.firstGroup = firstGroup;
+        this.groups = groups;
+        int size = Math.multiplyExact(buckets, groups);
+        counts = new long[size];
+        sums = new double[size];
+        mins = new double[size];
+        maxs = new double[size];
+        Arrays.fill(mins, Double.POSITIVE_INFINITY);
+        Arrays.fill(maxs, Double.NEGATIVE_INFINITY);
+    }
+
+    private int offset(int group) {
+        return (group - firstGroup) * buckets;
+    }
+
+    void add(int group, long timestamp, double value) {
+        int i = offset(group) + (int) ((timestamp - start) / step);
+        counts[i]++;
+        sums[i] += value;
+        if(value < mins[i]) {
+            mins[i] = value;
+        }
+        if(value > maxs[i]) {
+            maxs[i] = value;
+        }
+    }
+
+    /**
+     * Merges partial aggregates of another part of the same query. The groups of the other result must be a subset of
+     * the groups of this one.
+     */
+    void merge(QueryResult other) {
+        int base = offset(other.firstGroup);
+        for(int j = 0; j < other.counts.length; j++) {
+            if(other.counts[j] > 0) {
+                int i = base + j;
+                counts[i] += other.counts[j];
+                sums[i] += other.sums[j];
+                mins[i] = Math.min(mins[i], other.mins[j]);
+                maxs[i] = Math.max(maxs[i], other.maxs[j]);
+            }
+        }
+    }
+
+    private double[] range(double[] values, int group, boolean emptyAsNaN) {
+        int offset = offset(group);
+        double[] result = Arrays.copyOfRange(values, offset, offset + buckets);
+        if(emptyAsNaN) {
+            for(int b = 0; b < buckets; b++) {
+                if(counts[offset + b] == 0) {
+                    result[b] = Double.NaN;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return Amount of points in each bucket of the group
+     */
+    public long[] getCounts(int group) {
+        int offset = offset(group);
+        return Arrays.copyOfRange(counts, offset, offset + buckets);
+    }
+
+    public double[] getSums(int group) {
+        return range(sums, group, false);
+    }
+
+    public double[] getMins(int group) {
+        return range(mins, group, true);
+    }
+
+    public double[] getMaxs(int group) {
+        return range(maxs, group, true);
+    }
+
+    /**
+     * @return Average of each bucket of the group, NaN for the empty buckets
+     */
+    public double[] getAverages(int group) {
+        double[] averages = new double[buckets];
+        for(int b = 0; b < buckets; b++) {
+            int i = offset(group) + b;
+            averages[b] = counts[i] == 0 ? Double.NaN : sums[i] / counts[i];
+        }
+        return averages;
+    }
+
+    /**
+     * @return Start timestamp of the bucket
+     */
+    public long getBucketTimestamp(int bucket) {
+        return start + bucket * step;
+    }
+
+    public int getBucketCount() {
+        return buckets;
+    }
+
+    public int getGroupCount() {
+        return groups;
+    }
+
+    public long getStart() {
+        return start;
+    }
+
+    public long getStep() {
+        return step;
+    }
+}
@@ -0,0 +1,50 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the throughput of background work to a number of bytes per second. A caller pays for its bytes in advance
+ * and sleeps until the time reserved by the earlier callers has passed, so the limit holds across threads.
+ *
+ * @author Michael Burman
+ */
+class RateLimiter {
+
+    private final double nanosPerByte;
+
+    private long nextFree = System.nanoTime();
+
+    /**
+     * @param bytesPerSecond Allowed bytes per second, zero or less for no limit
+     */
+    RateLimiter(long bytesPerSecond) {
+        nanosPerByte = bytesPerSecond > 0 ? (double) TimeUnit.SECONDS.toNanos(1) / bytesPerSecond : 0;
+    }
+
+    private synchronized long reserve(long bytes) {
+        long now = System.nanoTime();
+        if(nextFree - now < 0) {
+            // Unused time is not saved up, which would allow bursts after idle periods
+            nextFree = now;
+        }
+        long wait = nextFree - now;
+        nextFree += (long) (bytes * nanosPerByte);
+        return wait;
+    }
+
+    /**
+     * Blocks until the bytes can be processed within the limit.
+     *
+     * @param bytes Amount of bytes about to be read or written
+     * @throws InterruptedException if interrupted while waiting
+     */
+    void acquire(long bytes) throws InterruptedException {
+        if(nanosPerByte == 0) {
+            return;
+        }
+        long wait = reserve(bytes);
+        if(wait > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+}
@@ -0,0 +1,200 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.LongUnaryOperator;
+import java.util.function.Predicate;
+
+/**
+ * Removes sealed blocks from a {@link TimeSeriesStore} once they are older than the time to live of their series,
+ * and the oldest blocks of all the series when the sealed blocks take more than the byte budget. The removed blocks
+ * are dropped, or demoted to a {@link BlockSink} such as a {@link SegmentWriter}.
+ *
+ * The sweep runs on a low priority background thread and locks the shards only for a slice of their series at a
+ * time, so appends to the open blocks wait at most for one slice. The removed blocks are given to the sink after
+ * the lock is released. Open blocks are never removed. Series left with neither sealed blocks nor an open block
+ * are removed from the store.
+ *
+ * Blocks which the sink fails to accept are put back in the store and retried on the next sweep, the failure is
+ * available from {@link #getLastFailure()}.
+ *
+ * @author Michael Burman
+ */
+public class RetentionManager implements AutoCloseable {
+
+    /**
+     * Time to live which keeps the blocks forever
+     */
+    public final static long FOREVER = Long.MAX_VALUE;
+
+    // Series handled while holding a shard lock
+    private final static int SLICE = 1024;
+
+    private final TimeSeriesStore store;
+    private final LongUnaryOperator ttl;
+    private final long maxBytes;
+    private final BlockSink demoteSink;
+    private final LongSupplier clock;
+
+    private final ScheduledExecutorService scheduler;
+    private volatile RuntimeException lastFailure;
+
+    /**
+     * Creates a manager with the same time to live for every series, using the wall clock in milliseconds.
+     *
+     * @param store Store to remove the blocks from
+     * @param ttl Milliseconds to keep a block after its last point, or {@link #FOREVER}
+     * @param maxBytes Budget for the sealed blocks, or Long.MAX_VALUE for no budget
+     */
+    public RetentionManager(TimeSeriesStore store, long ttl, long maxBytes) {
+        this(store, seriesId -> ttl, maxBytes, null, System::currentTimeMillis);
+    }
+
+    /**
+     * @param store Store to remove the blocks from
+     * @param ttl Time to live of a series' blocks after their last point, by series id. Can be used to give the
+     *            series of a namespace the same time to live.
+     * @param maxBytes Budget for the sealed blocks, or Long.MAX_VALUE for no budget
+     * @param demoteSink Sink for the removed blocks, or null to drop them
+     * @param clock Current time in the unit of the timestamps
+     */
+    public RetentionManager(TimeSeriesStore store, LongUnaryOperator ttl, long maxBytes, BlockSink demoteSink,
+                            LongSupplier clock) {
+        if(maxBytes < 0) {
+            throw new IllegalArgumentException("Byte budget must not be negative, was " + maxBytes);
+        }
+        this.store = store;
+        this.ttl = ttl;
+        this.maxBytes = maxBytes;
+        this.demoteSink = demoteSink;
+        this.clock = clock;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gorilla-retention");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Starts sweeping periodically.
+     *
+     * @param interval Milliseconds between the sweeps
+     */
+    public void start(long interval) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                sweep();
+            } catch(RuntimeException e) {
+                // A failed sweep must not end the periodic ones, retried on the next run
+                lastFailure = e;
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Latest failure of a sweep or of the demote sink, or null if none has failed
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Removes the expired blocks and then, if the sealed blocks are over the budget, the oldest blocks of all the
+     * series.
+     *
+     * @return Amount of removed blocks, not counting the blocks put back after failing to demote them
+     */
+    public int sweep() {
+        long now = clock.getAsLong();
+        int removed = remove(block -> {
+            long seriesTtl = ttl.applyAsLong(block.getSeriesId());
+            return seriesTtl != FOREVER && block.getLastTimestamp() < now - seriesTtl;
+        });
+
+        long excess = store.getSealedBytes() - maxBytes;
+        if(excess > 0) {
+            long cutoff = budgetCutoff(excess);
+            removed += remove(block -> floor(block.getLastTimestamp()) <= cutoff);
+        }
+        return removed;
+    }
+
+    private long floor(long timestamp) {
+        return timestamp - Math.floorMod(timestamp, store.getBlockSize());
+    }
+
+    /**
+     * Finds the block interval, by the last timestamps, up to which the blocks must be removed to free the bytes.
+     * Blocks are counted per interval rather than sorted one by one, so the sweep may remove up to one interval of
+     * blocks more than needed.
+     */
+    private long budgetCutoff(long excess) {
+        TreeMap<Long, long[]> bytesByTime = new TreeMap<>();
+        for(int s = 0; s < store.getShardCount(); s++) {
+            for(int from = 0; from < store.getShardSize(s); from += SLICE) {
+                store.visitBlocks(s, from, from + SLICE,
+                        block -> bytesByTime.computeIfAbsent(floor(block.getLastTimestamp()), t -> new long[1])[0]
+                                += block.getSizeInBytes());
+            }
+        }
+        long freed = 0;
+        long cutoff = Long.MIN_VALUE;
+        for (Map.Entry<Long, long[]> entry : bytesByTime.entrySet()) {
+            if(freed >= excess) {
+                break;
+            }
+            freed += entry.getValue()[0];
+            cutoff = entry.getKey();
+        }
+        return cutoff;
+    }
+
+    private int remove(Predicate<Block> expired) {
+        int removed = 0;
+        List<Block> blocks = new ArrayList<>();
+        List<Block> failed = new ArrayList<>();
+        for(int s = 0; s < store.getShardCount(); s++) {
+            for(int from = 0; from < store.getShardSize(s); from += SLICE) {
+                store.removeBlocks(s, from, from + SLICE, expired, blocks);
+                if(demoteSink != null) {
+                    for (Block block : blocks) {
+                        try {
+                            demoteSink.accept(block);
+                        } catch(RuntimeException e) {
+                            lastFailure = e;
+                            failed.add(block);
+                        }
+                    }
+                }
+                if(!failed.isEmpty()) {
+                    store.returnBlocks(failed);
+                }
+                removed += blocks.size() - failed.size();
+                blocks.clear();
+                failed.clear();
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * Stops the periodic sweeps and waits for a running one to finish. If interrupted while waiting, returns with
+     * the interrupt status set.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
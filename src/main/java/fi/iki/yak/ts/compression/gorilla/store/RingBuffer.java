@@ -0,0 +1,104 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Preallocated multi-producer, single-consumer ring of points. Producers claim a sequence with a CAS, write the
+ * point to the parallel arrays and mark the slot available with the lap of the sequence. The consumer reads the
+ * slots in sequence order as long as they are available and releases them in batches.
+ *
+ * @author Michael Burman
+ */
+class RingBuffer {
+
+    // The claim and consumed sequences are in the same array, a cache line apart from each other and the header
+    private final static int CLAIM = 8;
+    private final static int CONSUMED = 16;
+
+    private final long[] seriesIds;
+    private final long[] timestamps;
+    private final long[] values;
+    private final AtomicIntegerArray available;
+    private final AtomicLongArray sequences = new AtomicLongArray(CONSUMED + 8);
+
+    private final int capacity;
+    private final int mask;
+    private final int shift;
+
+    /**
+     * @param capacity Amount of slots, must be a power of two
+     */
+    RingBuffer(int capacity) {
+        if(capacity < 1 || Integer.bitCount(capacity) != 1) {
+            throw new IllegalArgumentException("Ring size must be a power of two, was " + capacity);
+        }
+        this.capacity = capacity;
+        mask = capacity - 1;
+        shift = Integer.numberOfTrailingZeros(capacity);
+        seriesIds = new long[capacity];
+        timestamps = new long[capacity];
+        values = new long[capacity];
+        available = new AtomicIntegerArray(capacity);
+        for(int i = 0; i < capacity; i++) {
+            available.lazySet(i, -1);
+        }
+    }
+
+    /**
+     * @return Claimed sequence or -1 if the ring is full
+     */
+    long tryClaim() {
+        while(true) {
+            long claim = sequences.get(CLAIM);
+            if(claim - sequences.get(CONSUMED) >= capacity) {
+                return -1;
+            }
+            if(sequences.compareAndSet(CLAIM, claim, claim + 1)) {
+                return claim;
+            }
+        }
+    }
+
+    void publish(long sequence, long seriesId, long timestamp, long value) {
+        int i = (int) sequence & mask;
+        seriesIds[i] = seriesId;
+        timestamps[i] = timestamp;
+        values[i] = value;
+        available.lazySet(i, (int) (sequence >>> shift));
+    }
+
+    /**
+     * Called only from the consumer thread.
+     *
+     * @param consumer Receives the points
+     * @param max Maximum amount of points to drain
+     * @return Amount of drained points
+     */
+    int drain(PointConsumer consumer, int max) {
+        long next = sequences.get(CONSUMED);
+        int drained = 0;
+        while(drained < max) {
+            int i = (int) next & mask;
+            if(available.get(i) != (int) (next >>> shift)) {
+                break;
+            }
+            consumer.accept(seriesIds[i], timestamps[i], values[i]);
+            next++;
+            drained++;
+        }
+        if(drained > 0) {
+            // Releases the slots to the producers
+            sequences.lazySet(CONSUMED, next);
+        }
+        return drained;
+    }
+
+    long getClaimed() {
+        return sequences.get(CLAIM);
+    }
+
+    long getConsumed() {
+        return sequences.get(CONSUMED);
+    }
+}
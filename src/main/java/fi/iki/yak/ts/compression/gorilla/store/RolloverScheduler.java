@@ -0,0 +1,152 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Seals the blocks of a {@link TimeSeriesStore} at their aligned block boundaries, also for the series which stop
+ * receiving points, and hands all the sealed blocks to a {@link BlockSink} on a background executor.
+ *
+ * To avoid sealing every series at the same moment, each series is sealed at its own offset inside the stagger
+ * window after the boundary, and each check locks only one shard at a time. Blocks which are rolled over by a new
+ * point are only closed by the writer and handed to the sink executor, which copies them to their exact length and
+ * gives them to the sink.
+ *
+ * The queue of the sink executor is bounded. When it is full, the thread handing over the block does the work
+ * itself, which slows down the writers instead of buffering blocks without a limit.
+ *
+ * @author Michael Burman
+ */
+public class RolloverScheduler implements AutoCloseable {
+
+    private final TimeSeriesStore store;
+    private final BlockSink sink;
+    private final long staggerWindow;
+    private final long checkInterval;
+    private final LongSupplier clock;
+
+    final static int SINK_QUEUE_SIZE = 4096;
+
+    private final ScheduledExecutorService scheduler;
+    private final ExecutorService sinkExecutor;
+    private volatile Thread sinkThread;
+    private volatile RuntimeException lastFailure;
+
+    /**
+     * Creates a scheduler using the wall clock in milliseconds.
+     *
+     * @param store Store to seal the blocks of
+     * @param sink Sink for the sealed blocks
+     * @param staggerWindow Milliseconds to spread the sealing over after each boundary
+     * @param checkInterval Milliseconds between the checks for ended blocks
+     */
+    public RolloverScheduler(TimeSeriesStore store, BlockSink sink, long staggerWindow, long checkInterval) {
+        this(store, sink, staggerWindow, checkInterval, System::currentTimeMillis);
+    }
+
+    /**
+     * @param store Store to seal the blocks of
+     * @param sink Sink for the sealed blocks
+     * @param staggerWindow Length of the window to spread the sealing over, in the unit of the timestamps
+     * @param checkInterval Milliseconds between the checks for ended blocks
+     * @param clock Current time in the unit of the timestamps
+     */
+    public RolloverScheduler(TimeSeriesStore store, BlockSink sink, long staggerWindow, long checkInterval,
+                             LongSupplier clock) {
+        if(staggerWindow < 0) {
+            throw new IllegalArgumentException("Stagger window must not be negative, was " + staggerWindow);
+        }
+        if(checkInterval < 1) {
+            throw new IllegalArgumentException("Check interval must be positive, was " + checkInterval);
+        }
+        this.store = store;
+        this.sink = sink;
+        this.staggerWindow = staggerWindow;
+        this.checkInterval = checkInterval;
+        this.clock = clock;
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> daemon(r, "gorilla-rollover"));
+        sinkExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(SINK_QUEUE_SIZE), r -> sinkThread = daemon(r, "gorilla-block-sink"),
+                (r, executor) -> r.run());
+    }
+
+    private static Thread daemon(Runnable r, String name) {
+        Thread t = new Thread(r, name);
+        t.setDaemon(true);
+        return t;
+    }
+
+    /**
+     * Starts the periodic checks and the delivery of the sealed blocks to the sink.
+     */
+    public void start() {
+        store.setBlockSink(this::deliver);
+        store.setRolloverExecutor(sinkExecutor);
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                check();
+            } catch(RuntimeException e) {
+                // A failed check must not cancel the following ones, the shards it did not finish are checked again
+                lastFailure = e;
+            }
+        }, checkInterval, checkInterval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Failure of the latest failed periodic check, or null if none has failed
+     */
+    public RuntimeException getLastFailure() {
+        return lastFailure;
+    }
+
+    private void deliver(Block block) {
+        if(Thread.currentThread() == sinkThread) {
+            // Handed over block, already in its turn
+            sink.accept(block);
+        } else {
+            // A full queue or a closed executor runs the delivery in this thread rather than lose the block
+            sinkExecutor.execute(() -> sink.accept(block));
+        }
+    }
+
+    /**
+     * Seals the blocks which have ended by now, one shard at a time. Called periodically after {@link #start()}.
+     *
+     * @return Amount of sealed blocks
+     */
+    public int check() {
+        long now = clock.getAsLong();
+        int sealed = 0;
+        for(int i = 0; i < store.getShardCount(); i++) {
+            sealed += store.sealExpired(i, now, staggerWindow);
+        }
+        return sealed;
+    }
+
+    /**
+     * Stops the checks and waits for the already sealed blocks to be delivered to the sink. Open blocks are not
+     * sealed. If interrupted while waiting, returns with the interrupt status set.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        store.setRolloverExecutor(null);
+        store.setBlockSink(null);
+        sinkExecutor.shutdown();
+        try {
+            sinkExecutor.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
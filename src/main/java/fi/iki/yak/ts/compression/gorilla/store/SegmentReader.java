@@ -0,0 +1,184 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.iki.yak.ts.compression.gorilla.ByteBufferLongInput;
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+
+/**
+ * Reads a segment file written by the {@link SegmentWriter}. The file is memory mapped, the index is binary
+ * searched in place and the blocks are decoded straight from the mapped memory.
+ *
+ * @author Michael Burman
+ */
+public class SegmentReader {
+
+    private final MappedByteBuffer buffer;
+    private final int entries;
+    private final int indexOffset;
+
+    /**
+     * @param path Path of a closed segment
+     * @throws IOException if the file can not be mapped or is not a segment
+     */
+    public SegmentReader(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < SegmentWriter.TRAILER_BYTES || size > SegmentWriter.MAX_SEGMENT_SIZE) {
+                throw new IOException(path + " is not a segment, size " + size);
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+        }
+        int trailer = buffer.limit() - SegmentWriter.TRAILER_BYTES;
+        if(buffer.getLong(trailer + 2 * Long.BYTES) != SegmentWriter.MAGIC) {
+            throw new IOException(path + " is not a closed segment");
+        }
+        entries = (int) buffer.getLong(trailer);
+        indexOffset = (int) buffer.getLong(trailer + Long.BYTES);
+    }
+
+    private int entry(int index) {
+        return indexOffset + index * SegmentWriter.ENTRY_BYTES;
+    }
+
+    private long seriesId(int index) {
+        return buffer.getLong(entry(index));
+    }
+
+    /**
+     * @return Index of the first entry of the series or of the next series, if it is not in the segment
+     */
+    private int lowerBound(long seriesId) {
+        int low = 0;
+        int high = entries;
+        while(low < high) {
+            int mid = (low + high) >>> 1;
+            if(seriesId(mid) < seriesId) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Finds the blocks of the series which overlap the time range.
+     *
+     * @param seriesId Id of the series
+     * @param start Start of the range, inclusive
+     * @param end End of the range, inclusive
+     * @return Blocks in time order, backed by the mapped file
+     */
+    public List<SegmentBlock> find(long seriesId, long start, long end) {
+        List<SegmentBlock> blocks = new ArrayList<>();
+        for(int i = lowerBound(seriesId); i < entries && seriesId(i) == seriesId; i++) {
+            int entry = entry(i);
+            long blockStart = buffer.getLong(entry + Long.BYTES);
+            if(blockStart > end) {
+                break;
+            }
+            long blockEnd = buffer.getLong(entry + 2 * Long.BYTES);
+            if(blockEnd < start) {
+                continue;
+            }
+            blocks.add(block(i));
+        }
+        return blocks;
+    }
+
+    /**
+     * @param seriesId Id of the series
+     * @return All the blocks of the series in time order
+     */
+    public List<SegmentBlock> find(long seriesId) {
+        return find(seriesId, Long.MIN_VALUE, Long.MAX_VALUE);
+    }
+
+    /**
+     * @return Amount of blocks in the segment
+     */
+    public int getBlockCount() {
+        return entries;
+    }
+
+    /**
+     * @return Latest timestamp of all the blocks, or Long.MIN_VALUE if the segment is empty
+     */
+    public long getLastTimestamp() {
+        long last = Long.MIN_VALUE;
+        for(int i = 0; i < entries; i++) {
+            last = Math.max(last, buffer.getLong(entry(i) + 2 * Long.BYTES));
+        }
+        return last;
+    }
+
+    /**
+     * @return Block at the position of the index, the blocks are sorted by series id and start
+     */
+    SegmentBlock block(int index) {
+        int entry = entry(index);
+        int offset = (int) buffer.getLong(entry + 3 * Long.BYTES);
+        int length = (int) buffer.getLong(entry + 4 * Long.BYTES);
+        ByteBuffer slice = buffer.duplicate();
+        slice.position(offset).limit(offset + length);
+        return new SegmentBlock(seriesId(index), buffer.getLong(entry + Long.BYTES),
+                buffer.getLong(entry + 2 * Long.BYTES), slice.slice());
+    }
+
+    /**
+     * Block inside a mapped segment
+     */
+    public static final class SegmentBlock {
+        private final long seriesId;
+        private final long start;
+        private final long end;
+        private final ByteBuffer data;
+
+        SegmentBlock(long seriesId, long start, long end, ByteBuffer data) {
+            this.seriesId = seriesId;
+            this.start = start;
+            this.end = end;
+            this.data = data;
+        }
+
+        /**
+         * @return Decompressor reading the block directly from the mapped file
+         */
+        public GorillaDecompressor decompressor() {
+            return new GorillaDecompressor(new ByteBufferLongInput(data));
+        }
+
+        public long getSeriesId() {
+            return seriesId;
+        }
+
+        /**
+         * @return Block timestamp
+         */
+        public long getStart() {
+            return start;
+        }
+
+        /**
+         * @return Timestamp of the last point
+         */
+        public long getEnd() {
+            return end;
+        }
+
+        /**
+         * @return Read-only view of the block in the mapped file
+         */
+        public ByteBuffer getData() {
+            return data.asReadOnlyBuffer();
+        }
+    }
+}
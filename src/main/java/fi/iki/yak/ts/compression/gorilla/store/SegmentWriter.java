@@ -0,0 +1,168 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * Appends sealed blocks to a segment file. When the writer is closed, an index of the blocks sorted by series id
+ * and start time is written after the blocks, followed by a fixed size trailer. The segment is immutable
+ * afterwards and is read with the {@link SegmentReader}.
+ *
+ * Layout, all big endian:
+ * <pre>
+ * block words ...
+ * index entries: series id, start (block timestamp), end (last timestamp), offset, length in bytes (8 bytes each)
+ * trailer: amount of entries, offset of the index, magic (8 bytes each)
+ * </pre>
+ *
+ * @author Michael Burman
+ */
+public class SegmentWriter implements BlockSink, AutoCloseable {
+
+    public final static long MAGIC = 0x474F52494C534547L; // "GORILSEG"
+
+    public final static int ENTRY_BYTES = 5 * Long.BYTES;
+    public final static int TRAILER_BYTES = 3 * Long.BYTES;
+
+    // Segments are mapped in one piece, which limits their size
+    public final static long MAX_SEGMENT_SIZE = Integer.MAX_VALUE;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+
+    private long position = 0;
+
+    // Index entries as parallel primitive arrays
+    private long[] seriesIds = new long[256];
+    private long[] starts = new long[256];
+    private long[] ends = new long[256];
+    private long[] offsets = new long[256];
+    private long[] lengths = new long[256];
+    private int entries = 0;
+
+    private boolean closed = false;
+
+    /**
+     * Creates a new segment file, replacing an existing one.
+     *
+     * @param path Path of the segment
+     * @throws IOException if the file can not be created
+     */
+    public SegmentWriter(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING);
+    }
+
+    /**
+     * Appends a sealed block to the segment.
+     *
+     * @param block Sealed block
+     * @throws IOException if writing fails
+     */
+    public synchronized void append(Block block) throws IOException {
+        if(closed) {
+            throw new IllegalStateException("Segment is closed");
+        }
+        long[] data = block.getData();
+        long length = (long) data.length * Long.BYTES;
+        if(position + length + (long) (entries + 1) * ENTRY_BYTES + TRAILER_BYTES > MAX_SEGMENT_SIZE) {
+            throw new IllegalStateException("Segment is full");
+        }
+        for (long word : data) {
+            if(!buffer.hasRemaining()) {
+                writeBuffer();
+            }
+            buffer.putLong(word);
+        }
+
+        if(entries == seriesIds.length) {
+            int size = entries * 2;
+            seriesIds = Arrays.copyOf(seriesIds, size);
+            starts = Arrays.copyOf(starts, size);
+            ends = Arrays.copyOf(ends, size);
+            offsets = Arrays.copyOf(offsets, size);
+            lengths = Arrays.copyOf(lengths, size);
+        }
+        seriesIds[entries] = block.getSeriesId();
+        starts[entries] = block.getBlockTimestamp();
+        ends[entries] = block.getLastTimestamp();
+        offsets[entries] = position;
+        lengths[entries] = length;
+        entries++;
+        position += length;
+    }
+
+    /**
+     * Appends the block, for use as the sink of the store.
+     *
+     * @param block Sealed block
+     * @throws UncheckedIOException if writing fails
+     */
+    @Override
+    public void accept(Block block) {
+        try {
+            append(block);
+        } catch(IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private void writeBuffer() throws IOException {
+        buffer.flip();
+        while(buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    /**
+     * @return Size of the segment so far, without the index
+     */
+    public synchronized long size() {
+        return position;
+    }
+
+    /**
+     * Writes the index and the trailer and closes the file.
+     *
+     * @throws IOException if writing fails
+     */
+    @Override
+    public synchronized void close() throws IOException {
+        if(closed) {
+            return;
+        }
+        closed = true;
+        try {
+            Integer[] order = new Integer[entries];
+            for(int i = 0; i < entries; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, (a, b) -> {
+                int c = Long.compare(seriesIds[a], seriesIds[b]);
+                return c != 0 ? c : Long.compare(starts[a], starts[b]);
+            });
+
+            for (int i : order) {
+                if(buffer.remaining() < ENTRY_BYTES) {
+                    writeBuffer();
+                }
+                buffer.putLong(seriesIds[i]).putLong(starts[i]).putLong(ends[i]).putLong(offsets[i])
+                        .putLong(lengths[i]);
+            }
+            if(buffer.remaining() < TRAILER_BYTES) {
+                writeBuffer();
+            }
+            buffer.putLong(entries).putLong(position).putLong(MAGIC);
+            writeBuffer();
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+}
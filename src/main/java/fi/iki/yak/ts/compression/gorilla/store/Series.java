@@ -0,0 +1,153 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.function.LongFunction;
+
+import fi.iki.yak.ts.compression.gorilla.MemoryBudget;
+import fi.iki.yak.ts.compression.gorilla.MemoryBudgetExceededException;
+import fi.iki.yak.ts.compression.gorilla.OpenBlock;
+
+/**
+ * Open block and the sealed blocks of a single series. Not thread-safe, guarded by the lock of its shard.
+ *
+ * @author Michael Burman
+ */
+class Series {
+
+    final long seriesId;
+    private final Shard shard;
+
+    private OpenBlock openBlock;
+    private MemoryBudget.Tenant tenant;
+    private long lastTimestamp = Long.MIN_VALUE;
+
+    final List<Block> blocks = new ArrayList<>();
+    Series(long seriesId, Shard shard) {
+        this.seriesId = seriesId;
+        this.shard = shard;
+    }
+
+    /**
+     * @param rolloverExecutor Executor to hand the block rolled over by the point to, or null to seal it in place
+     * @param tenants Memory budget account of the series, resolved only when a block is opened, or null
+     * @return false if the point is older than the last point of the series
+     * @throws MemoryBudgetExceededException if the open block could not grow, the point is not added
+     */
+    boolean add(long timestamp, long value, long blockSize, BlockSink sink, Executor rolloverExecutor,
+                LongFunction<MemoryBudget.Tenant> tenants) {
+        if(timestamp < lastTimestamp) {
+            return false;
+        }
+        if(openBlock == null || timestamp >= openBlock.getBlockTimestamp() + blockSize) {
+            if(openBlock != null && rolloverExecutor != null) {
+                handOver(sink, rolloverExecutor);
+            } else {
+                seal(sink);
+            }
+            open(timestamp - Math.floorMod(timestamp, blockSize), blockSize, tenants);
+        }
+        try {
+            openBlock.addValue(timestamp, value);
+        } catch(MemoryBudgetExceededException e) {
+            if(tenant == null || tenant.getBudget().getPolicy() != MemoryBudget.Policy.SPILL
+                    || openBlock.getCount() == 0) {
+                throw e;
+            }
+            // Seal the block early, which releases its buffer, and continue the same window in a new block
+            long blockTimestamp = openBlock.getBlockTimestamp();
+            seal(sink);
+            open(blockTimestamp, blockSize, tenants);
+            openBlock.addValue(timestamp, value);
+        }
+        lastTimestamp = timestamp;
+        return true;
+    }
+
+    private void open(long blockTimestamp, long blockSize, LongFunction<MemoryBudget.Tenant> tenants) {
+        tenant = tenants == null ? null : tenants.apply(seriesId);
+        openBlock = new OpenBlock(blockTimestamp, OpenBlock.DEFAULT_ALLOCATION, tenant);
+        shard.earliestBlockEnd = Math.min(shard.earliestBlockEnd, blockTimestamp + blockSize);
+    }
+
+    /**
+     * Closes the open block, if there is one, and adds it to the sealed blocks.
+     *
+     * @param sink Sink to give the sealed block to, or null
+     * @return The sealed block or null if there was no open block
+     */
+    Block seal(BlockSink sink) {
+        if(openBlock == null) {
+            return null;
+        }
+        Block block = new Block(seriesId, openBlock.getBlockTimestamp(), openBlock.getLastTimestamp(),
+                openBlock.getCount(), openBlock.close());
+        blocks.add(block);
+        shard.sealedBytes += block.getSizeInBytes();
+        openBlock = null;
+        if(sink != null) {
+            sink.accept(block);
+        }
+        return block;
+    }
+
+    /**
+     * Seals the open block without copying it and hands it to the executor, which copies it to its exact length,
+     * replaces the block with the copy and gives the copy to the sink. Until then, readers see the block backed by
+     * the larger array of the open block.
+     */
+    private void handOver(BlockSink sink, Executor executor) {
+        OpenBlock closing = openBlock;
+        Block shared = new Block(seriesId, closing.getBlockTimestamp(), closing.getLastTimestamp(),
+                closing.getCount(), closing.closeWithoutCopy());
+        blocks.add(shared);
+        shard.sealedBytes += shared.getSizeInBytes();
+        openBlock = null;
+        executor.execute(() -> {
+            Block block = new Block(seriesId, shared.getBlockTimestamp(), shared.getLastTimestamp(),
+                    shared.getCount(), closing.close());
+            shard.lock.lock();
+            try {
+                // The block may have been compacted or removed meanwhile, then there is nothing to replace
+                int i = blocks.lastIndexOf(shared);
+                if(i >= 0) {
+                    blocks.set(i, block);
+                    shard.sealedBytes += block.getSizeInBytes() - shared.getSizeInBytes();
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            if(sink != null) {
+                sink.accept(block);
+            }
+        });
+    }
+
+    /**
+     * Fills an empty series with restored blocks.
+     *
+     * @param openBlock Restored open block or null
+     */
+    void restore(List<Block> sealed, OpenBlock openBlock, MemoryBudget.Tenant tenant, long lastTimestamp,
+                 long blockSize) {
+        for (Block block : sealed) {
+            blocks.add(block);
+            shard.sealedBytes += block.getSizeInBytes();
+        }
+        this.openBlock = openBlock;
+        this.tenant = tenant;
+        this.lastTimestamp = lastTimestamp;
+        if(openBlock != null) {
+            shard.earliestBlockEnd = Math.min(shard.earliestBlockEnd, openBlock.getBlockTimestamp() + blockSize);
+        }
+    }
+
+    OpenBlock getOpenBlock() {
+        return openBlock;
+    }
+
+    long getLastTimestamp() {
+        return lastTimestamp;
+    }
+}
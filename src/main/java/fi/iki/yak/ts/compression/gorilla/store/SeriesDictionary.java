@@ -0,0 +1,318 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Maps metric names, as UTF-8 bytes, to dense series ids starting from zero. The names are stored off-heap and the
+ * lookups hash and compare the bytes in place, so resolving the series of a point does not allocate a String.
+ *
+ * Lookups of known names take no locks: the hash table slots are published with release semantics after the name
+ * bytes, so a reader which finds the slot also sees the name. A miss is checked again under the insert lock before
+ * the name is added. Each slot stores the hash of the name next to the id, so a lookup compares bytes only with
+ * names which have the same hash.
+ *
+ * @author Michael Burman
+ */
+public class SeriesDictionary {
+
+    public final static int NOT_FOUND = -1;
+
+    public final static long MAGIC = 0x474F524944494354L; // "GORIDICT"
+
+    private final static int INITIAL_SLOTS = 1024;
+    private final static int INITIAL_NAME_BYTES = 64 * 1024;
+
+    private final ReentrantLock insertLock = new ReentrantLock();
+
+    // Hash in the upper 32 bits and id + 1 in the lower, zero marks an empty slot
+    private volatile AtomicLongArray slots = new AtomicLongArray(INITIAL_SLOTS);
+    // Each name is stored as its length followed by the bytes
+    private volatile ByteBuffer names = ByteBuffer.allocateDirect(INITIAL_NAME_BYTES);
+    private volatile int[] offsets = new int[INITIAL_SLOTS / 2];
+
+    // Guarded by the insert lock
+    private int size = 0;
+    private int namesEnd = 0;
+
+    /**
+     * @param name UTF-8 bytes of the name between the position and the limit, the position is not modified
+     * @return Id of the name or {@link #NOT_FOUND}
+     */
+    public int get(ByteBuffer name) {
+        int hash = hash(name);
+        int id = find(slots, name, hash);
+        if(id != NOT_FOUND) {
+            return id;
+        }
+        // An insert may not be visible yet
+        insertLock.lock();
+        try {
+            return find(slots, name, hash);
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the id of the name, adding the name if it is not known.
+     *
+     * @param name UTF-8 bytes of the name between the position and the limit, the position is not modified
+     * @return Id of the name
+     */
+    public int getOrCreate(ByteBuffer name) {
+        int hash = hash(name);
+        int id = find(slots, name, hash);
+        if(id != NOT_FOUND) {
+            return id;
+        }
+        insertLock.lock();
+        try {
+            id = find(slots, name, hash);
+            if(id == NOT_FOUND) {
+                id = insert(name, hash);
+            }
+            return id;
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    /**
+     * Convenience method which encodes the name, not for the ingest path.
+     */
+    public int getOrCreate(String name) {
+        return getOrCreate(ByteBuffer.wrap(name.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    /**
+     * @param id Id of a name
+     * @return The name
+     */
+    public String getName(int id) {
+        if(id < 0 || id >= size()) {
+            throw new IllegalArgumentException("Unknown id " + id);
+        }
+        ByteBuffer buffer = names;
+        int offset = offsets[id];
+        byte[] bytes = new byte[buffer.getInt(offset)];
+        for(int i = 0; i < bytes.length; i++) {
+            bytes[i] = buffer.get(offset + Integer.BYTES + i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return Amount of names
+     */
+    public int size() {
+        insertLock.lock();
+        try {
+            return size;
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    /**
+     * @return Off-heap bytes used by the names
+     */
+    public long getSizeInBytes() {
+        return names.capacity();
+    }
+
+    private static int hash(ByteBuffer name) {
+        int h = 0x811C9DC5;
+        for(int i = name.position(); i < name.limit(); i++) {
+            h = (h ^ name.get(i)) * 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85EBCA6B;
+        return h ^ (h >>> 13);
+    }
+
+    private int find(AtomicLongArray table, ByteBuffer name, int hash) {
+        int mask = table.length() - 1;
+        for(int i = hash & mask; ; i = (i + 1) & mask) {
+            long slot = table.get(i);
+            if(slot == 0) {
+                return NOT_FOUND;
+            }
+            if((int) (slot >>> 32) == hash) {
+                int id = (int) slot - 1;
+                if(matches(id, name)) {
+                    return id;
+                }
+            }
+        }
+    }
+
+    private boolean matches(int id, ByteBuffer name) {
+        // Read after the slot, so these are at least as new as the slot's insert
+        ByteBuffer buffer = names;
+        int offset = offsets[id];
+        int length = name.remaining();
+        if(buffer.getInt(offset) != length) {
+            return false;
+        }
+        offset += Integer.BYTES;
+        int start = name.position();
+        for(int i = 0; i < length; i++) {
+            if(buffer.get(offset + i) != name.get(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int insert(ByteBuffer name, int hash) {
+        int length = name.remaining();
+        if((long) namesEnd + Integer.BYTES + length > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Dictionary is full");
+        }
+        ByteBuffer buffer = names;
+        if(namesEnd + Integer.BYTES + length > buffer.capacity()) {
+            long capacity = Math.max((long) buffer.capacity() * 2, (long) namesEnd + Integer.BYTES + length);
+            ByteBuffer grown = ByteBuffer.allocateDirect((int) Math.min(capacity, Integer.MAX_VALUE));
+            ByteBuffer copy = buffer.duplicate();
+            copy.position(0).limit(namesEnd);
+            grown.put(copy);
+            names = buffer = grown;
+        }
+        buffer.putInt(namesEnd, length);
+        for(int i = 0; i < length; i++) {
+            buffer.put(namesEnd + Integer.BYTES + i, name.get(name.position() + i));
+        }
+
+        int id = size;
+        if(id == offsets.length) {
+            offsets = Arrays.copyOf(offsets, id * 2);
+        }
+        offsets[id] = namesEnd;
+        namesEnd += Integer.BYTES + length;
+        size++;
+
+        if(size > slots.length() / 3 * 2) {
+            rehash();
+        }
+        // Release the name and the offset before the slot
+        place(slots, hash, id);
+        return id;
+    }
+
+    private static void place(AtomicLongArray table, int hash, int id) {
+        int mask = table.length() - 1;
+        int i = hash & mask;
+        while(table.get(i) != 0) {
+            i = (i + 1) & mask;
+        }
+        table.lazySet(i, ((long) hash << 32) | ((id + 1) & 0xFFFFFFFFL));
+    }
+
+    private void rehash() {
+        AtomicLongArray table = slots;
+        AtomicLongArray grown = new AtomicLongArray(table.length() * 2);
+        for(int i = 0; i < table.length(); i++) {
+            long slot = table.get(i);
+            if(slot != 0) {
+                place(grown, (int) (slot >>> 32), (int) slot - 1);
+            }
+        }
+        slots = grown;
+    }
+
+    /**
+     * Writes the names to a file, in the order of their ids, replacing an existing file. Inserts wait for the
+     * snapshot.
+     *
+     * @param path Path of the snapshot
+     * @throws IOException if writing fails, the existing file is left as it was and the temporary file is removed
+     */
+    public void writeTo(Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        boolean moved = false;
+        insertLock.lock();
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                ByteBuffer header = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES);
+                header.putLong(MAGIC).putInt(size).putInt(namesEnd).flip();
+                ByteBuffer content = names.duplicate();
+                content.position(0).limit(namesEnd);
+                while(header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while(content.hasRemaining()) {
+                    channel.write(content);
+                }
+                channel.force(true);
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            insertLock.unlock();
+            if(!moved) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        StoreSnapshot.syncDirectory(path.toAbsolutePath().getParent());
+    }
+
+    /**
+     * Reads a snapshot written with {@link #writeTo(Path)}. The names get the same ids as before.
+     *
+     * @param path Path of the snapshot
+     * @return Dictionary with the names of the snapshot
+     * @throws IOException if reading fails or the file is not a snapshot
+     */
+    public static SeriesDictionary readFrom(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            ByteBuffer header = ByteBuffer.allocate(Long.BYTES + 2 * Integer.BYTES);
+            readFully(channel, header);
+            if(header.getLong(0) != MAGIC) {
+                throw new IOException(path + " is not a dictionary snapshot");
+            }
+            int count = header.getInt(Long.BYTES);
+            int bytes = header.getInt(Long.BYTES + Integer.BYTES);
+            if(count < 0 || bytes < 0) {
+                throw new IOException(path + " is corrupted");
+            }
+            ByteBuffer content = ByteBuffer.allocateDirect(Math.max(bytes, INITIAL_NAME_BYTES));
+            content.limit(bytes);
+            readFully(channel, content);
+
+            SeriesDictionary dictionary = new SeriesDictionary();
+            int offset = 0;
+            for(int i = 0; i < count; i++) {
+                content.limit(bytes);
+                int length = offset + Integer.BYTES <= bytes ? content.getInt(offset) : -1;
+                if(length < 0 || offset + Integer.BYTES + length > bytes) {
+                    throw new IOException(path + " is truncated");
+                }
+                content.limit(offset + Integer.BYTES + length).position(offset + Integer.BYTES);
+                if(dictionary.getOrCreate(content) != i) {
+                    throw new IOException(path + " has duplicate names");
+                }
+                offset += Integer.BYTES + length;
+            }
+            return dictionary;
+        }
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while(buffer.hasRemaining()) {
+            if(channel.read(buffer) < 0) {
+                throw new IOException("Unexpected end of the snapshot");
+            }
+        }
+    }
+}
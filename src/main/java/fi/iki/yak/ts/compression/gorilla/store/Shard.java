@@ -0,0 +1,85 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.util.Arrays;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Lock-striped segment of the store. All access to the series of the shard happens while holding the lock.
+ *
+ * The series are kept in a dense array, indexed by a primitive {@link LongIntMap} from the series id, instead of a
+ * map with boxed keys and entry objects per series.
+ *
+ * @author Michael Burman
+ */
+class Shard {
+
+    final ReentrantLock lock = new ReentrantLock();
+
+    private final LongIntMap index = new LongIntMap();
+    private Series[] series = new Series[16];
+    private int size = 0;
+
+    /**
+     * No open block of the shard ends before this, the rollover can skip the shard until then
+     */
+    long earliestBlockEnd = Long.MAX_VALUE;
+
+    /**
+     * Size of the sealed blocks of the shard
+     */
+    long sealedBytes = 0;
+
+    /**
+     * @return The series or null if the shard does not have it
+     */
+    Series get(long seriesId) {
+        int i = index.get(seriesId);
+        return i == LongIntMap.NOT_FOUND ? null : series[i];
+    }
+
+    Series getOrCreate(long seriesId) {
+        int i = index.get(seriesId);
+        if(i != LongIntMap.NOT_FOUND) {
+            return series[i];
+        }
+        if(size == series.length) {
+            series = Arrays.copyOf(series, size * 2);
+        }
+        Series s = new Series(seriesId, this);
+        series[size] = s;
+        index.put(seriesId, size++);
+        return s;
+    }
+
+    /**
+     * Removes the series, the last series of the array takes its place.
+     *
+     * @return The removed series or null if the shard does not have it
+     */
+    Series remove(long seriesId) {
+        int i = index.remove(seriesId);
+        if(i == LongIntMap.NOT_FOUND) {
+            return null;
+        }
+        Series removed = series[i];
+        Series last = series[--size];
+        series[size] = null;
+        if(i != size) {
+            series[i] = last;
+            index.put(last.seriesId, i);
+        }
+        return removed;
+    }
+
+    /**
+     * @param i Index between 0 and size - 1
+     * @return Series at the index, the order changes when series are removed
+     */
+    Series at(int i) {
+        return series[i];
+    }
+
+    int size() {
+        return size;
+    }
+}
@@ -0,0 +1,343 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+
+import fi.iki.yak.ts.compression.gorilla.MemoryBudgetExceededException;
+import fi.iki.yak.ts.compression.gorilla.OpenBlock;
+
+/**
+ * Writes all the blocks of a {@link TimeSeriesStore}, sealed and open, to a single file and restores them. The open
+ * blocks are saved with the state of their compressor, so the restored store continues appending to them. Neither
+ * writing nor restoring decodes any points, the compressed words are copied as they are.
+ *
+ * The shards are captured one at a time while holding their lock, the file is written after each shard without
+ * holding any locks. The snapshot is written next to the target file and moved in place once complete, so a crash
+ * leaves the previous snapshot intact. The directory is synced after the move, so the new snapshot survives a crash
+ * once write returns. Restoring maps the file, validates every record and then copies the words of each block with
+ * bulk reads.
+ *
+ * Layout, all big endian longs:
+ * <pre>
+ * header: magic, version, block size
+ * series: length of the record in longs, series id, last timestamp, amount of sealed blocks, open block timestamp,
+ *         length of the open block state (0 if there is no open block)
+ *   sealed blocks: block timestamp, last timestamp, amount of points, amount of words, words ...
+ *   open block state, see {@link OpenBlock#saveState()}
+ * trailer: amount of series, magic
+ * </pre>
+ *
+ * @author Michael Burman
+ */
+public final class StoreSnapshot {
+
+    public final static long MAGIC = 0x474F52494C534E50L; // "GORILSNP"
+    public final static long VERSION = 1;
+
+    private final static int HEADER_WORDS = 3;
+    private final static int TRAILER_WORDS = 2;
+    private final static int SERIES_WORDS = 6;
+    private final static int BLOCK_WORDS = 4;
+
+    // The file is mapped in windows of this size for restoring, a single series must fit in one
+    final static long MAP_WINDOW = 1L << 30;
+
+    private StoreSnapshot() {
+    }
+
+    /**
+     * Writes a snapshot of the store, replacing an existing file.
+     *
+     * @param store Store to snapshot
+     * @param path Path of the snapshot file
+     * @return Size of the snapshot in bytes
+     * @throws IOException if writing fails, the existing file is left as it was and the temporary file is removed
+     */
+    public static long write(TimeSeriesStore store, Path path) throws IOException {
+        Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+        long size;
+        boolean moved = false;
+        try {
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                    StandardOpenOption.TRUNCATE_EXISTING)) {
+                Output out = new Output(channel);
+                out.putLong(MAGIC);
+                out.putLong(VERSION);
+                out.putLong(store.getBlockSize());
+
+                long seriesCount = 0;
+                List<SeriesState> captured = new ArrayList<>();
+                for(int i = 0; i < store.getShardCount(); i++) {
+                    store.visitSeries(i, series -> captured.add(new SeriesState(series)));
+                    for (SeriesState series : captured) {
+                        series.write(out);
+                    }
+                    seriesCount += captured.size();
+                    captured.clear();
+                }
+
+                out.putLong(seriesCount);
+                out.putLong(MAGIC);
+                out.flush();
+                channel.force(true);
+                size = channel.position();
+            }
+            Files.move(tmp, path, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            moved = true;
+        } finally {
+            if(!moved) {
+                Files.deleteIfExists(tmp);
+            }
+        }
+        syncDirectory(path.toAbsolutePath().getParent());
+        return size;
+    }
+
+    /**
+     * Makes the rename durable. Not every platform can open a directory for syncing, there the rename is left to
+     * the file system.
+     */
+    static void syncDirectory(Path dir) {
+        try (FileChannel channel = FileChannel.open(dir, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch(IOException e) {
+            // Not supported
+        }
+    }
+
+    /**
+     * Restores the series of a snapshot to the store. The store must have the same block size as the store the
+     * snapshot was taken from, and none of the series may have points in it yet. The whole file is validated before
+     * any series is restored, so a corrupted snapshot leaves the store as it was.
+     *
+     * @param path Path of the snapshot file
+     * @param store Store to restore the series to
+     * @return Amount of restored series
+     * @throws IOException if the file can not be read or is not a complete snapshot
+     * @throws IllegalArgumentException if the block size of the store does not match the snapshot
+     * @throws IllegalStateException if a series of the snapshot already has points in the store, or if the open
+     * blocks do not fit in the memory budget of the store. In the latter case the series restored before it stay in
+     * the store.
+     */
+    public static int restore(Path path, TimeSeriesStore store) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if(size < (HEADER_WORDS + TRAILER_WORDS) * Long.BYTES || size % Long.BYTES != 0) {
+                throw new IOException("Not a complete snapshot: " + path);
+            }
+            LongBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_WORDS * Long.BYTES)
+                    .asLongBuffer();
+            long end = size - TRAILER_WORDS * Long.BYTES;
+            LongBuffer trailer = channel.map(FileChannel.MapMode.READ_ONLY, end, TRAILER_WORDS * Long.BYTES)
+                    .asLongBuffer();
+            if(header.get(0) != MAGIC || trailer.get(1) != MAGIC) {
+                throw new IOException("Not a complete snapshot: " + path);
+            }
+            if(header.get(1) != VERSION) {
+                throw new IOException("Unsupported snapshot version " + header.get(1) + ": " + path);
+            }
+            if(header.get(2) != store.getBlockSize()) {
+                throw new IllegalArgumentException("Snapshot has a block size of " + header.get(2) + ", store has "
+                        + store.getBlockSize());
+            }
+
+            long seriesCount = trailer.get(0);
+            readSeries(channel, path, end, seriesCount, store, false);
+            readSeries(channel, path, end, seriesCount, store, true);
+            return (int) seriesCount;
+        }
+    }
+
+    /**
+     * Reads the series records between the header and the trailer.
+     *
+     * @param restore false to only validate the records and check that the series are not in the store yet
+     */
+    private static void readSeries(FileChannel channel, Path path, long end, long seriesCount,
+                                   TimeSeriesStore store, boolean restore) throws IOException {
+        long offset = HEADER_WORDS * Long.BYTES;
+        LongBuffer window = null;
+        long windowStart = 0;
+        long windowEnd = 0;
+        for(long i = 0; i < seriesCount; i++) {
+            if(offset + SERIES_WORDS * Long.BYTES > end) {
+                throw new IOException("Corrupted snapshot at offset " + offset + ": " + path);
+            }
+            if(offset + SERIES_WORDS * Long.BYTES > windowEnd) {
+                windowStart = offset;
+                windowEnd = Math.min(end, offset + MAP_WINDOW);
+                window = map(channel, windowStart, windowEnd);
+            }
+            long length = window.get((int) ((offset - windowStart) / Long.BYTES)) * Long.BYTES;
+            if(length < SERIES_WORDS * Long.BYTES || length > end - offset || length > MAP_WINDOW) {
+                throw new IOException("Corrupted snapshot at offset " + offset + ": " + path);
+            }
+            if(offset + length > windowEnd) {
+                windowStart = offset;
+                windowEnd = Math.min(end, offset + MAP_WINDOW);
+                window = map(channel, windowStart, windowEnd);
+            }
+            int position = (int) ((offset - windowStart) / Long.BYTES);
+            window.limit(position + (int) (length / Long.BYTES)).position(position);
+            try {
+                readSeries(window, store, restore);
+            } catch(BufferUnderflowException | IllegalArgumentException e) {
+                throw new IOException("Corrupted snapshot at offset " + offset + ": " + path, e);
+            }
+            window.limit(window.capacity());
+            offset += length;
+        }
+        if(offset != end) {
+            throw new IOException("Corrupted snapshot at offset " + offset + ": " + path);
+        }
+    }
+
+    private static LongBuffer map(FileChannel channel, long start, long end) throws IOException {
+        return channel.map(FileChannel.MapMode.READ_ONLY, start, end - start).asLongBuffer();
+    }
+
+    private static void readSeries(LongBuffer in, TimeSeriesStore store, boolean restore) {
+        in.get(); // Length of the record
+        long seriesId = in.get();
+        long lastTimestamp = in.get();
+        long sealedCount = in.get();
+        long openBlockTimestamp = in.get();
+        long openStateLength = in.get();
+        if(sealedCount < 0 || sealedCount > in.remaining() / BLOCK_WORDS) {
+            throw new IllegalArgumentException("Invalid amount of blocks " + sealedCount);
+        }
+        if(!restore && store.hasPoints(seriesId)) {
+            throw new IllegalStateException("Series " + seriesId + " already has points");
+        }
+
+        List<Block> blocks = restore ? new ArrayList<>((int) sealedCount) : null;
+        for(long i = 0; i < sealedCount; i++) {
+            long blockTimestamp = in.get();
+            long blockLastTimestamp = in.get();
+            int count = (int) in.get();
+            long words = in.get();
+            if(words < 0 || words > in.remaining()) {
+                throw new IllegalArgumentException("Invalid block length " + words);
+            }
+            if(restore) {
+                long[] data = new long[(int) words];
+                in.get(data);
+                blocks.add(new Block(seriesId, blockTimestamp, blockLastTimestamp, count, data));
+            } else {
+                in.position(in.position() + (int) words);
+            }
+        }
+        if(openStateLength != in.remaining()) {
+            throw new IllegalArgumentException("Invalid open block state length " + openStateLength);
+        }
+        if(openStateLength > 0) {
+            OpenBlock.validateState(in);
+        }
+        if(restore) {
+            try {
+                store.restoreSeries(seriesId, blocks, openBlockTimestamp, openStateLength == 0 ? null : in,
+                        lastTimestamp);
+            } catch(MemoryBudgetExceededException e) {
+                throw new IllegalStateException("Open block of series " + seriesId
+                        + " does not fit in the memory budget", e);
+            }
+        }
+    }
+
+    /**
+     * Blocks of a series captured under the shard lock. Sealed blocks are immutable and shared, the open block is
+     * copied with its state.
+     */
+    private static class SeriesState {
+        private final long seriesId;
+        private final long lastTimestamp;
+        private final Block[] blocks;
+        private final long openBlockTimestamp;
+        private final long[] openState;
+
+        SeriesState(Series series) {
+            seriesId = series.seriesId;
+            lastTimestamp = series.getLastTimestamp();
+            blocks = series.blocks.toArray(new Block[0]);
+            OpenBlock openBlock = series.getOpenBlock();
+            openBlockTimestamp = openBlock == null ? 0 : openBlock.getBlockTimestamp();
+            openState = openBlock == null ? null : openBlock.saveState();
+        }
+
+        void write(Output out) throws IOException {
+            long length = SERIES_WORDS + (openState == null ? 0 : openState.length);
+            for (Block block : blocks) {
+                length += BLOCK_WORDS + block.getData().length;
+            }
+            if(length * Long.BYTES > MAP_WINDOW) {
+                throw new IllegalStateException("Series " + seriesId + " is too large for a snapshot");
+            }
+            out.putLong(length);
+            out.putLong(seriesId);
+            out.putLong(lastTimestamp);
+            out.putLong(blocks.length);
+            out.putLong(openBlockTimestamp);
+            out.putLong(openState == null ? 0 : openState.length);
+            for (Block block : blocks) {
+                out.putLong(block.getBlockTimestamp());
+                out.putLong(block.getLastTimestamp());
+                out.putLong(block.getCount());
+                out.putLong(block.getData().length);
+                out.putLongs(block.getData());
+            }
+            if(openState != null) {
+                out.putLongs(openState);
+            }
+        }
+    }
+
+    /**
+     * Collects the longs to a large buffer, which is written to the channel whenever it fills up
+     */
+    private static class Output {
+        private final FileChannel channel;
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        private final LongBuffer longs = buffer.asLongBuffer();
+
+        Output(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        void putLong(long value) throws IOException {
+            if(!longs.hasRemaining()) {
+                flush();
+            }
+            longs.put(value);
+        }
+
+        void putLongs(long[] values) throws IOException {
+            int offset = 0;
+            while(offset < values.length) {
+                if(!longs.hasRemaining()) {
+                    flush();
+                }
+                int length = Math.min(values.length - offset, longs.remaining());
+                longs.put(values, offset, length);
+                offset += length;
+            }
+        }
+
+        void flush() throws IOException {
+            buffer.limit(longs.position() * Long.BYTES).position(0);
+            while(buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+            buffer.clear();
+            longs.clear();
+        }
+    }
+}
@@ -0,0 +1,584 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.zip.Deflater;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+
+/**
+ * Moves the sealed blocks of a {@link TimeSeriesStore} through three tiers as they age. Hot blocks are the
+ * {@code long[]} blocks of the store. Once the last point of a block is older than the warm age, the block is
+ * written to a segment file, which is memory mapped, and removed from the store. Once all the blocks of a warm
+ * segment are older than the cold age, the segment is recompressed with {@link Deflater} to a {@link ColdSegment}.
+ *
+ * Reads return a {@link GorillaDecompressor} per block from all the tiers. Reading a series from a cold segment
+ * inflates all of its blocks in the segment, those are promoted to memory and kept in a least recently used set up
+ * to a byte limit, so repeated reads of the same series do not inflate them again. The {@link QueryEngine} and the
+ * {@link RetentionManager} only see the blocks in the store, tiered blocks are read with {@link #read} and expired
+ * with {@link #setTtl} a whole segment at a time.
+ *
+ * Migrations run on a low priority background thread. Readers never wait for them: a segment is published before
+ * its blocks are removed from the previous tier, and blocks found in both tiers during the switch are returned
+ * once. Blocks older than the warm age are frozen in the store before they are copied, so a {@link Compactor} can
+ * not merge them into blocks the segments do not know about.
+ *
+ * @author Michael Burman
+ */
+public class TieredStorage implements AutoCloseable {
+
+    public enum Tier {
+        HOT, WARM, COLD
+    }
+
+    public final static long DEFAULT_MAX_PROMOTED_BYTES = 64 * 1024 * 1024;
+
+    // Warm segments are rolled at this size, well below the limit of a mapped segment
+    private final static long SEGMENT_ROLL_SIZE = 256 * 1024 * 1024;
+
+    private final static String WARM_PREFIX = "warm-";
+    private final static String COLD_PREFIX = "cold-";
+    private final static String SUFFIX = ".seg";
+
+    // Series handled while holding a shard lock
+    private final static int SLICE = 1024;
+
+    private final TimeSeriesStore store;
+    private final Path directory;
+    private final long warmAge;
+    private final long coldAge;
+    private final long maxPromotedBytes;
+    private final LongSupplier clock;
+
+    // Replaced as a whole, so readers see a consistent set of segments without locking
+    private volatile Tiers tiers;
+    private long nextSequence;
+
+    private final Map<PromotionKey, List<SegmentReader.SegmentBlock>> promoted =
+            new LinkedHashMap<>(16, 0.75f, true);
+    private long promotedBytes = 0;
+    private long promotions = 0;
+
+    private volatile long ttl = RetentionManager.FOREVER;
+
+    private final ScheduledExecutorService scheduler;
+    private volatile Exception lastFailure;
+
+    /**
+     * Creates tiered storage using the wall clock in milliseconds.
+     *
+     * @param store Store of the hot blocks
+     * @param directory Directory of the segment files, existing segments in it are opened
+     * @param warmAge Milliseconds after the last point of a block, after which it is moved to a warm segment
+     * @param coldAge Milliseconds after the last point of a warm segment, after which it is recompressed
+     * @throws IOException if the existing segments can not be opened
+     */
+    public TieredStorage(TimeSeriesStore store, Path directory, long warmAge, long coldAge) throws IOException {
+        this(store, directory, warmAge, coldAge, DEFAULT_MAX_PROMOTED_BYTES, System::currentTimeMillis);
+    }
+
+    /**
+     * @param store Store of the hot blocks
+     * @param directory Directory of the segment files, existing segments in it are opened
+     * @param warmAge Age after the last point of a block, after which it is moved to a warm segment
+     * @param coldAge Age after the last point of a warm segment, after which it is recompressed
+     * @param maxPromotedBytes Bytes of inflated cold blocks kept in memory
+     * @param clock Current time in the unit of the timestamps
+     * @throws IOException if the existing segments can not be opened
+     */
+    public TieredStorage(TimeSeriesStore store, Path directory, long warmAge, long coldAge, long maxPromotedBytes,
+                         LongSupplier clock) throws IOException {
+        if(warmAge < 0 || coldAge < warmAge) {
+            throw new IllegalArgumentException("Ages must satisfy 0 <= warm age <= cold age, were " + warmAge + " and "
+                    + coldAge);
+        }
+        this.store = store;
+        this.directory = directory;
+        this.warmAge = warmAge;
+        this.coldAge = coldAge;
+        this.maxPromotedBytes = maxPromotedBytes;
+        this.clock = clock;
+        Files.createDirectories(directory);
+        tiers = open();
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "gorilla-tiering");
+            t.setDaemon(true);
+            t.setPriority(Thread.MIN_PRIORITY);
+            return t;
+        });
+    }
+
+    /**
+     * Opens the segments of the directory. A warm segment which was already recompressed, but not deleted, is
+     * deleted now.
+     */
+    private Tiers open() throws IOException {
+        TreeMap<Long, Path> warmPaths = new TreeMap<>();
+        TreeMap<Long, Path> coldPaths = new TreeMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(directory)) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if(name.endsWith(".tmp")) {
+                    Files.delete(file);
+                } else if(name.startsWith(WARM_PREFIX) && name.endsWith(SUFFIX)) {
+                    warmPaths.put(sequence(name, WARM_PREFIX), file);
+                } else if(name.startsWith(COLD_PREFIX) && name.endsWith(SUFFIX)) {
+                    coldPaths.put(sequence(name, COLD_PREFIX), file);
+                }
+            }
+        }
+        List<Warm> warm = new ArrayList<>();
+        for (Map.Entry<Long, Path> entry : warmPaths.entrySet()) {
+            if(coldPaths.containsKey(entry.getKey())) {
+                Files.delete(entry.getValue());
+            } else {
+                warm.add(new Warm(entry.getKey(), entry.getValue(), new SegmentReader(entry.getValue())));
+            }
+        }
+        List<Cold> cold = new ArrayList<>();
+        for (Map.Entry<Long, Path> entry : coldPaths.entrySet()) {
+            cold.add(new Cold(entry.getKey(), new ColdSegment(entry.getValue())));
+        }
+        nextSequence = Math.max(warmPaths.isEmpty() ? 0 : warmPaths.lastKey() + 1,
+                coldPaths.isEmpty() ? 0 : coldPaths.lastKey() + 1);
+        return new Tiers(warm, cold);
+    }
+
+    private static long sequence(String name, String prefix) throws IOException {
+        try {
+            return Long.parseLong(name.substring(prefix.length(), name.length() - SUFFIX.length()));
+        } catch(NumberFormatException e) {
+            throw new IOException("Unexpected segment name " + name, e);
+        }
+    }
+
+    private Path path(String prefix, long sequence) {
+        return directory.resolve(String.format("%s%016d%s", prefix, sequence, SUFFIX));
+    }
+
+    /**
+     * Starts migrating periodically.
+     *
+     * @param interval Milliseconds between the migrations
+     */
+    public void start(long interval) {
+        scheduler.scheduleWithFixedDelay(() -> {
+            try {
+                migrate();
+            } catch(IOException | RuntimeException e) {
+                // A failed migration must not end the periodic ones, retried on the next run
+                lastFailure = e;
+            }
+        }, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Failure of the latest failed periodic migration, or null if none has failed
+     */
+    public Exception getLastFailure() {
+        return lastFailure;
+    }
+
+    /**
+     * Sets the time to live of the warm and cold segments, usually the same as the TTL of the
+     * {@link RetentionManager}. A segment is deleted by the next migration once its last point is older than the TTL,
+     * so its blocks may live up to one segment longer than the TTL.
+     *
+     * @param ttl Age after the last point of a segment, after which it is deleted, or
+     * {@link RetentionManager#FOREVER}
+     */
+    public void setTtl(long ttl) {
+        this.ttl = ttl;
+    }
+
+    /**
+     * Moves the blocks older than the warm age from the store to warm segments, recompresses the warm segments
+     * older than the cold age and deletes the segments older than the TTL.
+     *
+     * @return Amount of blocks moved from the store
+     * @throws IOException if writing a segment fails, the blocks stay where they were
+     */
+    public synchronized int migrate() throws IOException {
+        long now = clock.getAsLong();
+        int moved = demoteHot(now - warmAge);
+        demoteWarm(now - coldAge);
+        long ttl = this.ttl;
+        if(ttl != RetentionManager.FOREVER) {
+            expire(now - ttl);
+        }
+        return moved;
+    }
+
+    private int demoteHot(long cutoff) throws IOException {
+        // Frozen before they are collected, compaction can not replace them while they are copied
+        store.freezeBefore(cutoff);
+        List<Block> aged = new ArrayList<>();
+        for(int s = 0; s < store.getShardCount(); s++) {
+            for(int from = 0; from < store.getShardSize(s); from += SLICE) {
+                store.visitBlocks(s, from, from + SLICE, block -> {
+                    if(block.getLastTimestamp() < cutoff) {
+                        aged.add(block);
+                    }
+                });
+            }
+        }
+        int moved = 0;
+        int i = 0;
+        while(i < aged.size()) {
+            int first = i;
+            long sequence = nextSequence++;
+            Path path = path(WARM_PREFIX, sequence);
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (SegmentWriter writer = new SegmentWriter(tmp)) {
+                for(; i < aged.size() && writer.size() < SEGMENT_ROLL_SIZE; i++) {
+                    writer.append(aged.get(i));
+                }
+            }
+            Files.move(tmp, path);
+            Warm segment = new Warm(sequence, path, new SegmentReader(path));
+
+            Tiers current = tiers;
+            List<Warm> warm = new ArrayList<>(current.warm);
+            warm.add(segment);
+            tiers = new Tiers(warm, current.cold);
+            moved += remove(aged.subList(first, i));
+        }
+        return moved;
+    }
+
+    private int remove(List<Block> blocks) {
+        Set<Block> moved = Collections.newSetFromMap(new IdentityHashMap<>());
+        moved.addAll(blocks);
+        List<Block> removed = new ArrayList<>();
+        for(int s = 0; s < store.getShardCount(); s++) {
+            for(int from = 0; from < store.getShardSize(s); from += SLICE) {
+                store.removeBlocks(s, from, from + SLICE, moved::contains, removed);
+            }
+        }
+        return removed.size();
+    }
+
+    private void demoteWarm(long cutoff) throws IOException {
+        for (Warm segment : tiers.warm) {
+            if(segment.lastTimestamp >= cutoff) {
+                continue;
+            }
+            Path path = path(COLD_PREFIX, segment.sequence);
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            ColdSegment.write(segment.reader, tmp, Deflater.BEST_COMPRESSION);
+            Files.move(tmp, path);
+            Cold cold = new Cold(segment.sequence, new ColdSegment(path));
+
+            Tiers current = tiers;
+            List<Warm> warm = new ArrayList<>(current.warm);
+            warm.remove(segment);
+            List<Cold> colds = new ArrayList<>(current.cold);
+            colds.add(cold);
+            tiers = new Tiers(warm, colds);
+            // Readers still using the mapping keep it until it is garbage collected
+            Files.delete(segment.path);
+        }
+    }
+
+    private void expire(long cutoff) throws IOException {
+        Tiers current = tiers;
+        List<Warm> warm = new ArrayList<>();
+        List<Warm> expiredWarm = new ArrayList<>();
+        for (Warm segment : current.warm) {
+            if(segment.lastTimestamp < cutoff) {
+                expiredWarm.add(segment);
+            } else {
+                warm.add(segment);
+            }
+        }
+        List<Cold> cold = new ArrayList<>();
+        List<Cold> expiredCold = new ArrayList<>();
+        for (Cold segment : current.cold) {
+            if(segment.lastTimestamp < cutoff) {
+                expiredCold.add(segment);
+            } else {
+                cold.add(segment);
+            }
+        }
+        if(expiredWarm.isEmpty() && expiredCold.isEmpty()) {
+            return;
+        }
+        tiers = new Tiers(warm, cold);
+
+        for (Warm segment : expiredWarm) {
+            Files.delete(segment.path);
+        }
+        for (Cold segment : expiredCold) {
+            synchronized(promoted) {
+                Iterator<Map.Entry<PromotionKey, List<SegmentReader.SegmentBlock>>> entries =
+                        promoted.entrySet().iterator();
+                while(entries.hasNext()) {
+                    Map.Entry<PromotionKey, List<SegmentReader.SegmentBlock>> entry = entries.next();
+                    if(entry.getKey().sequence == segment.sequence) {
+                        for (SegmentReader.SegmentBlock block : entry.getValue()) {
+                            promotedBytes -= block.getData().remaining();
+                        }
+                        entries.remove();
+                    }
+                }
+            }
+            Files.delete(path(COLD_PREFIX, segment.sequence));
+        }
+    }
+
+    /**
+     * Reads the sealed blocks of the series which overlap the time range, from all the tiers. The open block is not
+     * included, see {@link TimeSeriesStore#snapshot(long)}.
+     *
+     * @param seriesId Id of the series
+     * @param start Start of the range, inclusive
+     * @param end End of the range, inclusive
+     * @return Decompressors of the blocks in time order
+     */
+    public List<GorillaDecompressor> read(long seriesId, long start, long end) {
+        // The store is read before the tiers. Blocks are removed from the store only after their segment is
+        // published, so a block moved in between is found in both rather than in neither.
+        List<Block> hot = new ArrayList<>();
+        for (Block block : store.getBlocks(seriesId)) {
+            if(block.getLastTimestamp() >= start && block.getBlockTimestamp() <= end) {
+                hot.add(block);
+            }
+        }
+        Tiers current = tiers;
+
+        List<GorillaDecompressor> decompressors = new ArrayList<>();
+        for (Cold cold : current.cold) {
+            if(cold.lastTimestamp < start || cold.firstTimestamp > end) {
+                continue;
+            }
+            for (SegmentReader.SegmentBlock block : promote(cold, seriesId)) {
+                if(block.getEnd() >= start && block.getStart() <= end && !contains(hot, block)) {
+                    decompressors.add(block.decompressor());
+                }
+            }
+        }
+        for (Warm warm : current.warm) {
+            for (SegmentReader.SegmentBlock block : warm.reader.find(seriesId, start, end)) {
+                if(!contains(hot, block)) {
+                    decompressors.add(block.decompressor());
+                }
+            }
+        }
+        for (Block block : hot) {
+            decompressors.add(block.decompressor());
+        }
+        return decompressors;
+    }
+
+    private static boolean contains(List<Block> hot, SegmentReader.SegmentBlock block) {
+        for (Block b : hot) {
+            if(b.getBlockTimestamp() == block.getStart() && b.getLastTimestamp() == block.getEnd()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return All the blocks of the series in the cold segment, inflated or taken from the promoted blocks
+     */
+    private List<SegmentReader.SegmentBlock> promote(Cold cold, long seriesId) {
+        PromotionKey key = new PromotionKey(cold.sequence, seriesId);
+        synchronized(promoted) {
+            List<SegmentReader.SegmentBlock> blocks = promoted.get(key);
+            if(blocks != null) {
+                return blocks;
+            }
+        }
+        List<SegmentReader.SegmentBlock> blocks = cold.segment.find(seriesId);
+        if(blocks.isEmpty()) {
+            return blocks;
+        }
+        long bytes = 0;
+        for (SegmentReader.SegmentBlock block : blocks) {
+            bytes += block.getData().remaining();
+        }
+        synchronized(promoted) {
+            if(promoted.put(key, blocks) == null) {
+                promotedBytes += bytes;
+                promotions++;
+            }
+            Iterator<List<SegmentReader.SegmentBlock>> eldest = promoted.values().iterator();
+            while(promotedBytes > maxPromotedBytes && eldest.hasNext()) {
+                for (SegmentReader.SegmentBlock block : eldest.next()) {
+                    promotedBytes -= block.getData().remaining();
+                }
+                eldest.remove();
+            }
+        }
+        return blocks;
+    }
+
+    /**
+     * @param tier Tier
+     * @return Bytes taken by the blocks of the tier, in memory for the hot tier and on disk for the others
+     */
+    public long getSizeInBytes(Tier tier) {
+        Tiers current = tiers;
+        long bytes = 0;
+        switch(tier) {
+            case HOT:
+                bytes = store.getSealedBytes();
+                break;
+            case WARM:
+                for (Warm warm : current.warm) {
+                    bytes += warm.size;
+                }
+                break;
+            case COLD:
+                for (Cold cold : current.cold) {
+                    bytes += cold.segment.getSizeInBytes();
+                }
+                break;
+        }
+        return bytes;
+    }
+
+    /**
+     * @param tier Tier
+     * @return Amount of blocks in the tier
+     */
+    public long getBlockCount(Tier tier) {
+        Tiers current = tiers;
+        long blocks = 0;
+        switch(tier) {
+            case HOT:
+                for(int s = 0; s < store.getShardCount(); s++) {
+                    long[] count = new long[1];
+                    for(int from = 0; from < store.getShardSize(s); from += SLICE) {
+                        store.visitBlocks(s, from, from + SLICE, block -> count[0]++);
+                    }
+                    blocks += count[0];
+                }
+                break;
+            case WARM:
+                for (Warm warm : current.warm) {
+                    blocks += warm.reader.getBlockCount();
+                }
+                break;
+            case COLD:
+                for (Cold cold : current.cold) {
+                    blocks += cold.segment.getBlockCount();
+                }
+                break;
+        }
+        return blocks;
+    }
+
+    /**
+     * @return Bytes of the inflated cold blocks kept in memory
+     */
+    public long getPromotedBytes() {
+        synchronized(promoted) {
+            return promotedBytes;
+        }
+    }
+
+    /**
+     * @return Amount of times a series of a cold segment was inflated
+     */
+    public long getPromotionCount() {
+        synchronized(promoted) {
+            return promotions;
+        }
+    }
+
+    /**
+     * Stops the periodic migrations and waits for a running one to finish. If interrupted while waiting, returns
+     * with the interrupt status set.
+     */
+    @Override
+    public void close() {
+        scheduler.shutdown();
+        try {
+            scheduler.awaitTermination(1, TimeUnit.MINUTES);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static final class Tiers {
+        final List<Warm> warm;
+        final List<Cold> cold;
+
+        Tiers(List<Warm> warm, List<Cold> cold) {
+            this.warm = warm;
+            this.cold = cold;
+        }
+    }
+
+    private static final class Warm {
+        final long sequence;
+        final Path path;
+        final SegmentReader reader;
+        final long lastTimestamp;
+        final long size;
+
+        Warm(long sequence, Path path, SegmentReader reader) throws IOException {
+            this.sequence = sequence;
+            this.path = path;
+            this.reader = reader;
+            this.lastTimestamp = reader.getLastTimestamp();
+            this.size = Files.size(path);
+        }
+    }
+
+    private static final class Cold {
+        final long sequence;
+        final ColdSegment segment;
+        final long firstTimestamp;
+        final long lastTimestamp;
+
+        Cold(long sequence, ColdSegment segment) {
+            this.sequence = sequence;
+            this.segment = segment;
+            this.firstTimestamp = segment.getFirstTimestamp();
+            this.lastTimestamp = segment.getLastTimestamp();
+        }
+    }
+
+    private static final class PromotionKey {
+        final long sequence;
+        final long seriesId;
+
+        PromotionKey(long sequence, long seriesId) {
+            this.sequence = sequence;
+            this.seriesId = seriesId;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if(!(o instanceof PromotionKey)) {
+                return false;
+            }
+            PromotionKey other = (PromotionKey) o;
+            return sequence == other.sequence && seriesId == other.seriesId;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(sequence, seriesId);
+        }
+    }
+}
@@ -0,0 +1,590 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.nio.LongBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.LongFunction;
+import java.util.function.Predicate;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaCompressor;
+import fi.iki.yak.ts.compression.gorilla.MemoryBudget;
+import fi.iki.yak.ts.compression.gorilla.MemoryBudgetExceededException;
+import fi.iki.yak.ts.compression.gorilla.OpenBlock;
+
+/**
+ * In-memory store of compressed series. Each series has an open {@link GorillaCompressor} for the current block
+ * and a list of sealed {@link Block}s. The series are spread over
+ * lock-striped shards, so threads appending to series in different shards do not contend.
+ *
+ * Blocks are aligned to the block size. A point past the end of the open block seals it and opens the next one.
+ * Points older than the last point of the series are rejected.
+ *
+ * @author Michael Burman
+ */
+public class TimeSeriesStore {
+
+    public final static int DEFAULT_SHARDS = 64;
+    public final static long DEFAULT_BLOCK_SIZE = TimeUnit.HOURS.toMillis(2);
+
+    // First delta of a block is stored with 27 bits, one value is reserved for the end of stream and one for the
+    // extended header marker
+    public final static long MAX_BLOCK_SIZE = (1 << 27) - 2;
+
+    private final Shard[] shards;
+    private final int shardMask;
+    private final long blockSize;
+
+    private volatile BlockSink blockSink;
+    private volatile Executor rolloverExecutor;
+    private volatile LongFunction<MemoryBudget.Tenant> tenants;
+
+    // Sealed blocks ending before this are not replaced any more, see freezeBefore
+    private volatile long frozenBefore = Long.MIN_VALUE;
+
+    public TimeSeriesStore() {
+        this(DEFAULT_SHARDS, DEFAULT_BLOCK_SIZE);
+    }
+
+    /**
+     * @param shards Amount of shards, must be a power of two
+     * @param blockSize Length of a block in the unit of the timestamps
+     */
+    public TimeSeriesStore(int shards, long blockSize) {
+        if(shards < 1 || Integer.bitCount(shards) != 1) {
+            throw new IllegalArgumentException("Amount of shards must be a power of two, was " + shards);
+        }
+        if(blockSize < 1 || blockSize > MAX_BLOCK_SIZE) {
+            throw new IllegalArgumentException("Block size must be between 1 and " + MAX_BLOCK_SIZE + ", was "
+                    + blockSize);
+        }
+        this.shards = new Shard[shards];
+        for(int i = 0; i < shards; i++) {
+            this.shards[i] = new Shard();
+        }
+        this.shardMask = shards - 1;
+        this.blockSize = blockSize;
+    }
+
+    int shardIndex(long seriesId) {
+        long h = seriesId * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & shardMask;
+    }
+
+    Shard shard(long seriesId) {
+        return shards[shardIndex(seriesId)];
+    }
+
+    /**
+     * Adds a new long value to the series.
+     *
+     * @param seriesId Id of the series
+     * @param timestamp Timestamp of the point
+     * @param value Value of the point
+     * @return false if the point was rejected for being older than the last point of the series
+     * @throws MemoryBudgetExceededException if the open block of the series could not grow within the memory
+     * budget, the point is not added
+     */
+    public boolean addValue(long seriesId, long timestamp, long value) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            return shard.getOrCreate(seriesId).add(timestamp, value, blockSize, blockSink, rolloverExecutor, tenants);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Adds a new double value to the series.
+     *
+     * @param seriesId Id of the series
+     * @param timestamp Timestamp of the point
+     * @param value Value of the point
+     * @return false if the point was rejected for being older than the last point of the series
+     */
+    public boolean addValue(long seriesId, long timestamp, double value) {
+        return addValue(seriesId, timestamp, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Seals the open block of the series.
+     *
+     * @param seriesId Id of the series
+     * @return The sealed block or null if the series had no open block
+     */
+    public Block seal(long seriesId) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.get(seriesId);
+            return series == null ? null : series.seal(blockSink);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Seals the open blocks of all the series.
+     *
+     * @return Amount of sealed blocks
+     */
+    public int sealAll() {
+        int sealed = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                for(int i = 0; i < shard.size(); i++) {
+                    if(shard.at(i).seal(blockSink) != null) {
+                        sealed++;
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return sealed;
+    }
+
+    /**
+     * @param seriesId Id of the series
+     * @return Sealed blocks of the series in time order, empty if the series is unknown
+     */
+    public List<Block> getBlocks(long seriesId) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.get(seriesId);
+            return series == null ? Collections.emptyList() : new ArrayList<>(series.blocks);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Replaces consecutive sealed blocks of the series with a block containing their points. The sink is not called,
+     * as the block has no new points.
+     *
+     * @param seriesId Id of the series
+     * @param replaced Consecutive blocks of the series, as returned by {@link #getBlocks(long)}
+     * @param block Block replacing them
+     * @return false if the series no longer has the replaced blocks or they are frozen
+     */
+    boolean replaceBlocks(long seriesId, List<Block> replaced, Block block) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.get(seriesId);
+            if(series == null || replaced.isEmpty() || replaced.get(0).getLastTimestamp() < frozenBefore) {
+                return false;
+            }
+            List<Block> blocks = series.blocks;
+            int first = blocks.indexOf(replaced.get(0));
+            if(first < 0 || first + replaced.size() > blocks.size()) {
+                return false;
+            }
+            for(int i = 1; i < replaced.size(); i++) {
+                if(blocks.get(first + i) != replaced.get(i)) {
+                    return false;
+                }
+            }
+            for (Block old : replaced) {
+                shard.sealedBytes -= old.getSizeInBytes();
+            }
+            blocks.subList(first + 1, first + replaced.size()).clear();
+            blocks.set(first, block);
+            shard.sealedBytes += block.getSizeInBytes();
+            return true;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Stops {@link #replaceBlocks} from replacing the sealed blocks whose last point is before the timestamp, so
+     * blocks which are being copied elsewhere stay as they are. Blocks replaced before the call are not affected.
+     *
+     * @param timestamp Blocks ending before this are frozen, the timestamp never moves backwards
+     */
+    void freezeBefore(long timestamp) {
+        if(timestamp > frozenBefore) {
+            frozenBefore = timestamp;
+        }
+    }
+
+    /**
+     * @param seriesId Id of the series
+     * @return Timestamp of the last point of the series or Long.MIN_VALUE if the series is unknown
+     */
+    long getLastTimestamp(long seriesId) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.get(seriesId);
+            return series == null ? Long.MIN_VALUE : series.getLastTimestamp();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Seals the open blocks of a shard which have ended. The sealing is staggered: each series is sealed at a
+     * fixed, pseudo-random offset inside the stagger window after its block has ended.
+     *
+     * @param shardIndex Index of the shard
+     * @param now Current time in the unit of the timestamps
+     * @param staggerWindow Length of the window to spread the sealing over
+     * @return Amount of sealed blocks
+     */
+    int sealExpired(int shardIndex, long now, long staggerWindow) {
+        Shard shard = shards[shardIndex];
+        shard.lock.lock();
+        try {
+            if(now < shard.earliestBlockEnd) {
+                return 0;
+            }
+            int sealed = 0;
+            long earliestBlockEnd = Long.MAX_VALUE;
+            BlockSink sink = blockSink;
+            for(int i = 0; i < shard.size(); i++) {
+                Series series = shard.at(i);
+                OpenBlock openBlock = series.getOpenBlock();
+                if(openBlock == null) {
+                    continue;
+                }
+                long blockEnd = openBlock.getBlockTimestamp() + blockSize;
+                if(now >= blockEnd + staggerOffset(series.seriesId, staggerWindow)) {
+                    series.seal(sink);
+                    sealed++;
+                } else {
+                    earliestBlockEnd = Math.min(earliestBlockEnd, blockEnd);
+                }
+            }
+            shard.earliestBlockEnd = earliestBlockEnd;
+            return sealed;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * @return Amount of series in the shard, the series are accessed by their index from 0 to size - 1
+     */
+    int getShardSize(int shardIndex) {
+        Shard shard = shards[shardIndex];
+        shard.lock.lock();
+        try {
+            return shard.size();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Calls the visitor for the sealed blocks of a slice of the shard's series, while holding the shard lock.
+     */
+    void visitBlocks(int shardIndex, int from, int to, Consumer<Block> visitor) {
+        Shard shard = shards[shardIndex];
+        shard.lock.lock();
+        try {
+            for(int i = from; i < Math.min(to, shard.size()); i++) {
+                shard.at(i).blocks.forEach(visitor);
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Calls the visitor for every series of the shard, while holding the shard lock.
+     */
+    void visitSeries(int shardIndex, Consumer<Series> visitor) {
+        Shard shard = shards[shardIndex];
+        shard.lock.lock();
+        try {
+            for(int i = 0; i < shard.size(); i++) {
+                visitor.accept(shard.at(i));
+            }
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * @param seriesId Id of the series
+     * @return true if the series has sealed blocks or an open block
+     */
+    boolean hasPoints(long seriesId) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.get(seriesId);
+            return series != null && (series.getOpenBlock() != null || !series.blocks.isEmpty());
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Restores a series which has no points in the store.
+     *
+     * @param openState Saved state of the open block, see {@link OpenBlock#saveState()}, or null
+     * @throws IllegalStateException if the series already has points
+     */
+    void restoreSeries(long seriesId, List<Block> blocks, long openBlockTimestamp, LongBuffer openState,
+                       long lastTimestamp) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.getOrCreate(seriesId);
+            if(series.getOpenBlock() != null || !series.blocks.isEmpty()) {
+                throw new IllegalStateException("Series " + seriesId + " already has points");
+            }
+            LongFunction<MemoryBudget.Tenant> tenants = this.tenants;
+            MemoryBudget.Tenant tenant = tenants == null ? null : tenants.apply(seriesId);
+            OpenBlock openBlock = openState == null ? null : OpenBlock.restore(openBlockTimestamp, openState, tenant);
+            series.restore(blocks, openBlock, tenant, lastTimestamp, blockSize);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes the oldest sealed blocks of a slice of the shard's series, for as long as the predicate selects them.
+     * Series which are left without blocks and have no open block are removed from the shard, a later point starts
+     * the series from scratch.
+     *
+     * @param removed Receives the removed blocks
+     * @return Amount of removed bytes
+     */
+    long removeBlocks(int shardIndex, int from, int to, Predicate<Block> expired, List<Block> removed) {
+        Shard shard = shards[shardIndex];
+        shard.lock.lock();
+        try {
+            long bytes = 0;
+            int i = from;
+            while(i < Math.min(to, shard.size())) {
+                Series series = shard.at(i);
+                List<Block> blocks = series.blocks;
+                int count = 0;
+                while(count < blocks.size() && expired.test(blocks.get(count))) {
+                    bytes += blocks.get(count).getSizeInBytes();
+                    removed.add(blocks.get(count));
+                    count++;
+                }
+                blocks.subList(0, count).clear();
+                if(count > 0 && blocks.isEmpty() && series.getOpenBlock() == null) {
+                    // The last series of the shard takes its place and is handled next
+                    shard.remove(series.seriesId);
+                } else {
+                    i++;
+                }
+            }
+            shard.sealedBytes -= bytes;
+            return bytes;
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Puts blocks removed with {@link #removeBlocks(int, int, int, Predicate, List)} back as the oldest blocks of
+     * their series, for example when they could not be demoted. The blocks must be in time order per series.
+     */
+    void returnBlocks(List<Block> returned) {
+        int i = 0;
+        while(i < returned.size()) {
+            long seriesId = returned.get(i).getSeriesId();
+            int end = i + 1;
+            while(end < returned.size() && returned.get(end).getSeriesId() == seriesId) {
+                end++;
+            }
+            Shard shard = shard(seriesId);
+            shard.lock.lock();
+            try {
+                List<Block> blocks = returned.subList(i, end);
+                shard.getOrCreate(seriesId).blocks.addAll(0, blocks);
+                for (Block block : blocks) {
+                    shard.sealedBytes += block.getSizeInBytes();
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+            i = end;
+        }
+    }
+
+    static long staggerOffset(long seriesId, long staggerWindow) {
+        if(staggerWindow <= 0) {
+            return 0;
+        }
+        long h = seriesId * 0xC2B2AE3D27D4EB4FL;
+        return Math.floorMod(h ^ (h >>> 29), staggerWindow);
+    }
+
+    /**
+     * Sets the sink which receives every block sealed by the store. The sink is called while holding the lock of
+     * the series' shard, so it must not block. Blocks handed to the rollover executor are given to the sink in the
+     * executor's thread instead.
+     *
+     * @param blockSink Sink for the sealed blocks, or null
+     */
+    public void setBlockSink(BlockSink blockSink) {
+        this.blockSink = blockSink;
+    }
+
+    /**
+     * Hands the blocks rolled over by new points to an executor. The writer only closes the block, the executor
+     * copies it to its exact length and gives it to the sink without holding the lock of the shard.
+     *
+     * @param rolloverExecutor Executor for the rolled over blocks, or null to seal them in the writer's thread
+     */
+    void setRolloverExecutor(Executor rolloverExecutor) {
+        this.rolloverExecutor = rolloverExecutor;
+    }
+
+    /**
+     * Reserves the buffers of the open blocks from a memory budget, all series are accounted to a single tenant.
+     *
+     * @param budget Memory budget, or null to stop the accounting of new blocks
+     * @see #setMemoryBudget(MemoryBudget, LongFunction)
+     */
+    public void setMemoryBudget(MemoryBudget budget) {
+        if(budget == null) {
+            setMemoryBudget(null, null);
+        } else {
+            MemoryBudget.Tenant tenant = budget.tenant("default");
+            this.tenants = seriesId -> tenant;
+        }
+    }
+
+    /**
+     * Reserves the buffers of the open blocks from a memory budget. Blocks opened before this are not accounted.
+     *
+     * What happens when a block can not grow depends on the policy of the budget. With
+     * {@link MemoryBudget.Policy#SPILL} the block is sealed early and the point goes to a new block of the same
+     * window, otherwise {@link #addValue(long, long, long)} throws a {@link MemoryBudgetExceededException}. With
+     * {@link MemoryBudget.Policy#BLOCK} the writer waits while holding the lock of the shard, so the memory must be
+     * released by the blocks sealed in the other shards.
+     *
+     * @param budget Memory budget, or null to stop the accounting of new blocks
+     * @param tenantOf Name of the tenant of a series, called when a block of the series is opened
+     */
+    public void setMemoryBudget(MemoryBudget budget, LongFunction<String> tenantOf) {
+        if(budget == null) {
+            this.tenants = null;
+        } else {
+            this.tenants = seriesId -> budget.tenant(tenantOf.apply(seriesId));
+        }
+    }
+
+    int getShardCount() {
+        return shards.length;
+    }
+
+    /**
+     * Takes a snapshot of the open block of the series. The snapshot is decoded without holding any locks, while the
+     * writers keep appending to the block.
+     *
+     * @param seriesId Id of the series
+     * @return Snapshot of the open block or null if the series has no open block
+     */
+    public OpenBlock.Snapshot snapshot(long seriesId) {
+        OpenBlock openBlock;
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.get(seriesId);
+            openBlock = series == null ? null : series.getOpenBlock();
+        } finally {
+            shard.lock.unlock();
+        }
+        return openBlock == null ? null : openBlock.snapshot();
+    }
+
+    /**
+     * Collects the sealed blocks of the series and takes a snapshot of its open block under the same lock, so a
+     * block sealed concurrently is either in the sealed blocks or in the snapshot.
+     *
+     * @param seriesId Id of the series
+     * @param sealed Sealed blocks of the series are added here in time order
+     * @return Snapshot of the open block or null if the series has no open block
+     */
+    OpenBlock.Snapshot snapshot(long seriesId, List<Block> sealed) {
+        Shard shard = shard(seriesId);
+        shard.lock.lock();
+        try {
+            Series series = shard.get(seriesId);
+            if(series == null) {
+                return null;
+            }
+            sealed.addAll(series.blocks);
+            OpenBlock openBlock = series.getOpenBlock();
+            return openBlock == null ? null : openBlock.snapshot();
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * @return Ids of the series in the store, in no particular order
+     */
+    public long[] getSeriesIds() {
+        long[] ids = new long[getSeriesCount()];
+        int i = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                for(int j = 0; j < shard.size(); j++) {
+                    if(i == ids.length) {
+                        ids = Arrays.copyOf(ids, ids.length * 2 + 1);
+                    }
+                    ids[i++] = shard.at(j).seriesId;
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return i == ids.length ? ids : Arrays.copyOf(ids, i);
+    }
+
+    /**
+     * @return Size of the sealed blocks in bytes
+     */
+    public long getSealedBytes() {
+        long bytes = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                bytes += shard.sealedBytes;
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return Amount of series in the store
+     */
+    public int getSeriesCount() {
+        int count = 0;
+        for (Shard shard : shards) {
+            shard.lock.lock();
+            try {
+                count += shard.size();
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        return count;
+    }
+
+    public long getBlockSize() {
+        return blockSize;
+    }
+}
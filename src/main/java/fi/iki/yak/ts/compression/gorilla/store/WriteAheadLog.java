@@ -0,0 +1,344 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Checksum;
+
+import fi.iki.yak.ts.compression.gorilla.Crc32c;
+
+/**
+ * Write-ahead log for the points of the open blocks. Points are appended to an in-memory batch and the batch is
+ * written and forced to the disk by whichever thread syncs first (group commit), so concurrent ingest threads share
+ * the cost of one fsync instead of paying one each.
+ *
+ * Each batch is stored as a header of the length in bytes and the CRC-32C of the records, followed by the records of
+ * 24 bytes each: series id, timestamp and the raw value. A batch torn by a crash fails the check and the log ends at
+ * the last complete batch. Checkpoint records have the timestamp {@link #CHECKPOINT} and the watermark of the
+ * series in place of the value.
+ *
+ * Typical use is to append the point, add it to the store and sync before acknowledging the write:
+ * <pre>
+ * long sequence = log.append(seriesId, timestamp, value);
+ * store.addValue(seriesId, timestamp, value);
+ * log.sync(sequence);
+ * </pre>
+ *
+ * Once the points of a sealed block are persisted elsewhere, {@link #checkpoint(long, long)} records a watermark
+ * for the series and replaying skips the points at or below it.
+ *
+ * @author Michael Burman
+ */
+public class WriteAheadLog implements AutoCloseable {
+
+    public final static int HEADER_BYTES = 2 * Integer.BYTES;
+    public final static int RECORD_BYTES = 3 * Long.BYTES;
+
+    /**
+     * Timestamp of the checkpoint records, points can not have it
+     */
+    public final static long CHECKPOINT = Long.MIN_VALUE;
+
+    private final static int INITIAL_BATCH_SIZE = 64 * 1024;
+
+    private final FileChannel channel;
+    private final Checksum checksum = Crc32c.newChecksum();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition synced = lock.newCondition();
+
+    // Guarded by the lock
+    private ByteBuffer batch = ByteBuffer.allocate(INITIAL_BATCH_SIZE);
+    private ByteBuffer spare = ByteBuffer.allocate(INITIAL_BATCH_SIZE);
+    private long appended = 0;
+    private long durable = 0;
+    private boolean syncing = false;
+    private IOException failure;
+
+    /**
+     * Opens the log for appending. A torn batch at the end of an existing log is cut away, call
+     * {@link #replay(Path, PointConsumer)} before opening the log to recover its points.
+     *
+     * @param path Path of the log file
+     * @throws IOException if the log can not be opened
+     */
+    public WriteAheadLog(Path path) throws IOException {
+        channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        long end = scan(channel, null);
+        channel.truncate(end);
+        channel.position(end);
+        batch.position(HEADER_BYTES);
+    }
+
+    /**
+     * Appends a point to the current batch. The point is durable only after {@link #sync(long)} has returned for
+     * the returned sequence.
+     *
+     * @param seriesId Id of the series
+     * @param timestamp Timestamp of the point
+     * @param value Raw value of the point
+     * @return Sequence number of the point
+     * @throws IllegalArgumentException if the timestamp is {@link #CHECKPOINT}
+     */
+    public long append(long seriesId, long timestamp, long value) {
+        if(timestamp == CHECKPOINT) {
+            throw new IllegalArgumentException("Timestamp " + timestamp + " is reserved for the checkpoints");
+        }
+        return appendRecord(seriesId, timestamp, value);
+    }
+
+    /**
+     * Records that the points of the series at or below the watermark are persisted elsewhere, for example after
+     * the sealed block holding them was written to a segment. Replaying skips those points. Like the points, the
+     * checkpoint is durable only after {@link #sync(long)} has returned for the returned sequence.
+     *
+     * @param seriesId Id of the series
+     * @param watermark Timestamp of the last persisted point, usually {@link Block#getLastTimestamp()}
+     * @return Sequence number of the checkpoint
+     */
+    public long checkpoint(long seriesId, long watermark) {
+        return appendRecord(seriesId, CHECKPOINT, watermark);
+    }
+
+    private long appendRecord(long seriesId, long timestamp, long value) {
+        lock.lock();
+        try {
+            if(batch.remaining() < RECORD_BYTES) {
+                ByteBuffer grown = ByteBuffer.allocate(batch.capacity() * 2);
+                batch.flip();
+                grown.put(batch);
+                batch = grown;
+            }
+            batch.putLong(seriesId).putLong(timestamp).putLong(value);
+            return ++appended;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends a double value, see {@link #append(long, long, long)}
+     */
+    public long append(long seriesId, long timestamp, double value) {
+        return append(seriesId, timestamp, Double.doubleToRawLongBits(value));
+    }
+
+    /**
+     * Blocks until the point with the sequence and all the points before it are on the disk. If no other thread is
+     * writing a batch, the calling thread writes everything appended so far, otherwise it waits for the running
+     * write and then possibly writes the next batch.
+     *
+     * @param sequence Sequence returned by append
+     * @throws IOException if writing the log has failed
+     */
+    public void sync(long sequence) throws IOException {
+        lock.lock();
+        try {
+            while(durable < sequence) {
+                if(failure != null) {
+                    throw new IOException("Write-ahead log has failed", failure);
+                }
+                if(syncing) {
+                    synced.awaitUninterruptibly();
+                    continue;
+                }
+                syncing = true;
+                ByteBuffer write = batch;
+                long batchEnd = appended;
+                batch = spare;
+                batch.clear().position(HEADER_BYTES);
+
+                IOException error = null;
+                lock.unlock();
+                try {
+                    writeBatch(write);
+                } catch(IOException e) {
+                    error = e;
+                } finally {
+                    lock.lock();
+                    spare = write;
+                    syncing = false;
+                    synced.signalAll();
+                }
+                if(error != null) {
+                    failure = error;
+                    throw error;
+                }
+                durable = batchEnd;
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Appends the point and waits until it is on the disk.
+     */
+    public void write(long seriesId, long timestamp, long value) throws IOException {
+        sync(append(seriesId, timestamp, value));
+    }
+
+    private void writeBatch(ByteBuffer write) throws IOException {
+        int length = write.position() - HEADER_BYTES;
+        if(length == 0) {
+            return;
+        }
+        checksum.reset();
+        checksum.update(write.array(), HEADER_BYTES, length);
+        write.putInt(0, length);
+        write.putInt(Integer.BYTES, (int) checksum.getValue());
+        write.flip();
+        while(write.hasRemaining()) {
+            channel.write(write);
+        }
+        channel.force(false);
+    }
+
+    /**
+     * Discards the points written to the disk. Call once all the logged points are persisted elsewhere, for example
+     * after sealing the open blocks to a segment. Points appended but not yet synced stay in the log.
+     *
+     * @throws IOException if truncating the log fails
+     */
+    public void reset() throws IOException {
+        lock.lock();
+        try {
+            while(syncing) {
+                synced.awaitUninterruptibly();
+            }
+            channel.truncate(0);
+            channel.position(0);
+            channel.force(true);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return Size of the log on the disk in bytes
+     */
+    public long size() throws IOException {
+        return channel.size();
+    }
+
+    /**
+     * Syncs the remaining points and closes the log.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            long sequence;
+            lock.lock();
+            try {
+                sequence = appended;
+            } finally {
+                lock.unlock();
+            }
+            sync(sequence);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads the complete batches of the log. A torn or corrupted batch ends the log. Points at or below the
+     * highest checkpoint of their series are skipped, wherever the checkpoint is in the log. The log is read twice,
+     * first for the checkpoints and then for the points.
+     *
+     * @param path Path of the log file
+     * @param consumer Receives the logged points in the appended order
+     * @return Amount of replayed points
+     * @throws IOException if the log can not be read
+     */
+    public static long replay(Path path, PointConsumer consumer) throws IOException {
+        if(!Files.exists(path)) {
+            return 0;
+        }
+        long[] points = new long[1];
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            Map<Long, Long> watermarks = new HashMap<>();
+            scan(channel, (seriesId, timestamp, value) -> {
+                if(timestamp == CHECKPOINT) {
+                    watermarks.merge(seriesId, value, Math::max);
+                }
+            });
+            scan(channel, (seriesId, timestamp, value) -> {
+                if(timestamp != CHECKPOINT && timestamp > watermarks.getOrDefault(seriesId, CHECKPOINT)) {
+                    consumer.accept(seriesId, timestamp, value);
+                    points[0]++;
+                }
+            });
+        }
+        return points[0];
+    }
+
+    /**
+     * Replays the log to the open blocks of the store. Points which are older than the blocks already in the store
+     * or at or below the watermark of a checkpoint are skipped.
+     *
+     * @param path Path of the log file
+     * @param store Store to rebuild
+     * @return Amount of replayed points
+     * @throws IOException if the log can not be read
+     */
+    public static long replay(Path path, TimeSeriesStore store) throws IOException {
+        return replay(path, store::addValue);
+    }
+
+    /**
+     * @return Position after the last complete batch
+     */
+    private static long scan(FileChannel channel, PointConsumer consumer) throws IOException {
+        Checksum checksum = Crc32c.newChecksum();
+        ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES);
+        ByteBuffer records = ByteBuffer.allocate(INITIAL_BATCH_SIZE);
+        long position = 0;
+        long size = channel.size();
+
+        while(position + HEADER_BYTES <= size) {
+            header.clear();
+            readFully(channel, header, position);
+            int length = header.getInt(0);
+            if(length <= 0 || length % RECORD_BYTES != 0 || position + HEADER_BYTES + length > size) {
+                break;
+            }
+            if(records.capacity() < length) {
+                records = ByteBuffer.allocate(length);
+            }
+            records.clear().limit(length);
+            readFully(channel, records, position + HEADER_BYTES);
+
+            checksum.reset();
+            checksum.update(records.array(), 0, length);
+            if((int) checksum.getValue() != header.getInt(Integer.BYTES)) {
+                break;
+            }
+            if(consumer != null) {
+                for(int i = 0; i < length; i += RECORD_BYTES) {
+                    consumer.accept(records.getLong(i), records.getLong(i + Long.BYTES),
+                            records.getLong(i + 2 * Long.BYTES));
+                }
+            }
+            position += HEADER_BYTES + length;
+        }
+        return position;
+    }
+
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while(buffer.hasRemaining()) {
+            int read = channel.read(buffer, position);
+            if(read < 0) {
+                throw new IOException("Unexpected end of the log");
+            }
+            position += read;
+        }
+    }
+}
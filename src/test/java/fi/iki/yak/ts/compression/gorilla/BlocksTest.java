@@ -0,0 +1,114 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the streaming merge and split of blocks.
+ *
+ * @author Michael Burman
+ */
+public class BlocksTest {
+
+    private static long[] compress(long blockStart, long[] timestamps, long[] values) {
+        LongArrayOutput output = new LongArrayOutput();
+        GorillaCompressor c = new GorillaCompressor(blockStart, output);
+        for(int i = 0; i < timestamps.length; i++) {
+            c.addValue(timestamps[i], values[i]);
+        }
+        c.close();
+        return output.getLongArray();
+    }
+
+    private static void assertBlock(Map<Long, Long> expected, long[] block) {
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(block));
+        for (Map.Entry<Long, Long> entry : expected.entrySet()) {
+            Pair pair = d.readPair();
+            assertEquals(entry.getKey().longValue(), pair.getTimestamp());
+            assertEquals(entry.getValue().longValue(), pair.getLongValue());
+        }
+        assertNull(d.readPair());
+    }
+
+    @Test
+    void testMerge() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        int amountOfBlocks = 5;
+        long[][] blocks = new long[amountOfBlocks][];
+        Map<Long, Long> first = new TreeMap<>();
+        Map<Long, Long> last = new TreeMap<>();
+
+        for(int b = 0; b < amountOfBlocks; b++) {
+            int amountOfPoints = b == 2 ? 0 : ThreadLocalRandom.current().nextInt(1, 2000);
+            long[] timestamps = new long[amountOfPoints];
+            long[] values = new long[amountOfPoints];
+            long now = blockStart;
+            for(int i = 0; i < amountOfPoints; i++) {
+                // Small intervals cause plenty of duplicate timestamps between the blocks
+                now += ThreadLocalRandom.current().nextInt(1, 10);
+                timestamps[i] = now;
+                values[i] = b * 100000 + i;
+                first.putIfAbsent(now, values[i]);
+                last.put(now, values[i]);
+            }
+            blocks[b] = compress(blockStart, timestamps, values);
+        }
+
+        for (Blocks.DuplicatePolicy policy : Blocks.DuplicatePolicy.values()) {
+            GorillaDecompressor[] inputs = new GorillaDecompressor[amountOfBlocks];
+            for(int b = 0; b < amountOfBlocks; b++) {
+                inputs[b] = new GorillaDecompressor(new LongArrayInput(blocks[b]));
+            }
+            LongArrayOutput output = new LongArrayOutput();
+            int count = Blocks.merge(inputs, new GorillaCompressor(blockStart, output), policy);
+
+            Map<Long, Long> expected = policy == Blocks.DuplicatePolicy.FIRST ? first : last;
+            assertEquals(expected.size(), count);
+            assertBlock(expected, output.getLongArray());
+        }
+    }
+
+    @Test
+    void testSplit() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        int amountOfPoints = 1000;
+        long[] timestamps = new long[amountOfPoints];
+        long[] values = new long[amountOfPoints];
+        for(int i = 0; i < amountOfPoints; i++) {
+            timestamps[i] = blockStart + 10 + i * 10;
+            values[i] = i;
+        }
+        long[] block = compress(blockStart, timestamps, values);
+
+        long[] splitPoints = { blockStart, timestamps[500], timestamps[500] - 5, timestamps[amountOfPoints - 1] + 1 };
+        for (long splitPoint : splitPoints) {
+            Map<Long, Long> expectedBefore = new TreeMap<>();
+            Map<Long, Long> expectedAfter = new TreeMap<>();
+            for(int i = 0; i < amountOfPoints; i++) {
+                (timestamps[i] < splitPoint ? expectedBefore : expectedAfter).put(timestamps[i], values[i]);
+            }
+
+            LongArrayOutput before = new LongArrayOutput();
+            LongArrayOutput after = new LongArrayOutput();
+            int count = Blocks.split(new GorillaDecompressor(new LongArrayInput(block)), splitPoint,
+                    new GorillaCompressor(blockStart, before), new GorillaCompressor(splitPoint - 1, after));
+
+            assertEquals(expectedBefore.size(), count);
+            assertBlock(expectedBefore, before.getLongArray());
+            assertBlock(expectedAfter, after.getLongArray());
+        }
+    }
+}
@@ -1,7 +1,10 @@
 package fi.iki.yak.ts.compression.gorilla;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
 import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 import java.nio.ByteBuffer;
 import java.time.LocalDateTime;
@@ -9,7 +12,9 @@ import java.time.Month;
 import java.time.ZoneOffset;
 import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
+import java.util.Map;
 import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.Checksum;
 
 import org.junit.jupiter.api.Test;
 
@@ -209,4 +214,586 @@ public class EncodeGorillaTest {
         }
         assertNull(d.readPair());
     }
+
+    /**
+     * Regular series should not store timestamps at all in the constant cadence mode
+     */
+    @Test
+    void testConstantCadenceEncoding() throws Exception {
+        int amountOfPoints = 10000;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        LongArrayOutput cadenceOutput = new LongArrayOutput();
+        LongArrayOutput output = new LongArrayOutput();
+        GorillaCompressor cc = new GorillaCompressor(blockStart, cadenceOutput,
+                GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE);
+        GorillaCompressor c = new GorillaCompressor(blockStart, output);
+
+        for(int i = 0; i < amountOfPoints; i++) {
+            cc.addValue(blockStart + 30 + i*15000, (long) (i % 3));
+            c.addValue(blockStart + 30 + i*15000, (long) (i % 3));
+        }
+        cc.close();
+        c.close();
+
+        assertTrue(cadenceOutput.getLongArray().length < output.getLongArray().length,
+                "Constant cadence block should be smaller");
+
+        LongArrayInput input = new LongArrayInput(cadenceOutput.getLongArray());
+        GorillaDecompressor d = new GorillaDecompressor(input);
+
+        for(int i = 0; i < amountOfPoints; i++) {
+            Pair pair = d.readPair();
+            assertEquals(blockStart + 30 + i*15000, pair.getTimestamp(),
+                    "Expected timestamp did not match at point " + i);
+            assertEquals(i % 3, pair.getLongValue());
+        }
+        assertNull(d.readPair());
+    }
+
+    /**
+     * Constant cadence mode must fall back to delta-of-delta encoding when the first irregular timestamp arrives
+     */
+    @Test
+    void testConstantCadenceFallback() throws Exception {
+        long now = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        Pair[] pairs = {
+                new Pair(now + 10, Double.doubleToRawLongBits(1.0)),
+                new Pair(now + 20, Double.doubleToRawLongBits(-2.0)),
+                new Pair(now + 30, Double.doubleToRawLongBits(-2.0)),
+                new Pair(now + 40, Double.doubleToRawLongBits(65537)),
+                new Pair(now + 400, Double.doubleToRawLongBits(2147483650.0)),
+                new Pair(now + 2300, Double.doubleToRawLongBits(-16384)),
+                new Pair(now + 4200, Double.doubleToRawLongBits(2.8)),
+                new Pair(now + 16500, Double.doubleToRawLongBits(-38.0))
+        };
+
+        int[] valueEncodings = { GorillaCompressor.VALUE_XOR, GorillaCompressor.VALUE_DICTIONARY };
+        for(int valueEncoding : valueEncodings) {
+            LongArrayOutput output = new LongArrayOutput();
+            GorillaCompressor c = new GorillaCompressor(now, output, GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE,
+                    valueEncoding);
+
+            Arrays.stream(pairs).forEach(p -> c.addValue(p.getTimestamp(), p.getDoubleValue()));
+            c.close();
+
+            LongArrayInput input = new LongArrayInput(output.getLongArray());
+            GorillaDecompressor d = new GorillaDecompressor(input);
+
+            for(int i = 0; i < pairs.length; i++) {
+                Pair pair = d.readPair();
+                assertEquals(pairs[i].getTimestamp(), pair.getTimestamp(), "Timestamp did not match");
+                assertEquals(pairs[i].getDoubleValue(), pair.getDoubleValue(), "Value did not match");
+            }
+            assertNull(d.readPair());
+        }
+    }
+
+    /**
+     * Blocks too short to find the interval should still be readable in the constant cadence mode
+     */
+    @Test
+    void testConstantCadenceShortBlocks() throws Exception {
+        long now = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        for(int points = 0; points < 3; points++) {
+            LongArrayOutput output = new LongArrayOutput();
+            GorillaCompressor c = new GorillaCompressor(now, output, GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE);
+            for(int i = 0; i < points; i++) {
+                c.addValue(now + 60 + i*60, (double) i);
+            }
+            c.close();
+
+            GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+            for(int i = 0; i < points; i++) {
+                Pair pair = d.readPair();
+                assertEquals(now + 60 + i*60, pair.getTimestamp(), "Timestamp did not match");
+                assertEquals((double) i, pair.getDoubleValue(), "Value did not match");
+            }
+            assertNull(d.readPair());
+        }
+    }
+
+    /**
+     * Alternating low cardinality values should compress better with the dictionary and survive dictionary
+     * replacements when there are more distinct values than fit the dictionary
+     */
+    @Test
+    void testDictionaryEncoding() throws Exception {
+        int amountOfPoints = 10000;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        double[] states = { 200.0, 404.0, 500.0, 302.0, 1.5 };
+        double[] values = new double[amountOfPoints];
+        for(int i = 0; i < amountOfPoints; i++) {
+            if(i > amountOfPoints / 2 && i % 100 == 0) {
+                values[i] = i; // Enough new values to cause dictionary replacements
+            } else {
+                values[i] = states[ThreadLocalRandom.current().nextInt(states.length)];
+            }
+        }
+
+        LongArrayOutput dictionaryOutput = new LongArrayOutput();
+        LongArrayOutput output = new LongArrayOutput();
+        GorillaCompressor dc = new GorillaCompressor(blockStart, dictionaryOutput,
+                GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE, GorillaCompressor.VALUE_DICTIONARY);
+        GorillaCompressor c = new GorillaCompressor(blockStart, output);
+
+        for(int i = 0; i < amountOfPoints; i++) {
+            dc.addValue(blockStart + 60 + i*60, values[i]);
+            c.addValue(blockStart + 60 + i*60, values[i]);
+        }
+        dc.close();
+        c.close();
+
+        assertTrue(dictionaryOutput.getLongArray().length < output.getLongArray().length,
+                "Dictionary encoded block should be smaller");
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(dictionaryOutput.getLongArray()));
+        for(int i = 0; i < amountOfPoints; i++) {
+            Pair pair = d.readPair();
+            assertEquals(blockStart + 60 + i*60, pair.getTimestamp(), "Expected timestamp did not match at point " + i);
+            assertEquals(values[i], pair.getDoubleValue(), "Expected value did not match at point " + i);
+        }
+        assertNull(d.readPair());
+    }
+
+    /**
+     * Counting values must give the same result for dictionary and XOR encoded blocks
+     */
+    @Test
+    void testCountValues() throws Exception {
+        long now = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        LongArrayOutput dictionaryOutput = new LongArrayOutput();
+        LongArrayOutput output = new LongArrayOutput();
+        GorillaCompressor dc = new GorillaCompressor(now, dictionaryOutput,
+                GorillaCompressor.TIMESTAMP_DELTA_OF_DELTA, GorillaCompressor.VALUE_DICTIONARY);
+        GorillaCompressor c = new GorillaCompressor(now, output);
+
+        for(int i = 0; i < 1000; i++) {
+            // 40 distinct values, each one 25 times
+            long value = (i * 7) % 40;
+            dc.addValue(now + i + 1, value);
+            c.addValue(now + i + 1, value);
+        }
+        dc.close();
+        c.close();
+
+        Map<Long, Long> dictionaryCounts = new GorillaDecompressor(new LongArrayInput(dictionaryOutput
+                .getLongArray())).countValues();
+        Map<Long, Long> counts = new GorillaDecompressor(new LongArrayInput(output.getLongArray())).countValues();
+
+        assertEquals(40, dictionaryCounts.size());
+        assertEquals(counts, dictionaryCounts);
+        for(long value = 0; value < 40; value++) {
+            assertEquals(25L, dictionaryCounts.get(value).longValue());
+        }
+    }
+
+    /**
+     * 32 bit float values should use less space than doubles and decode to float arrays
+     */
+    @Test
+    void testFloatEncoding() throws Exception {
+        int amountOfPoints = 10000;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        long[] timestamps = new long[amountOfPoints];
+        float[] values = new float[amountOfPoints];
+
+        LongArrayOutput floatOutput = new LongArrayOutput();
+        LongArrayOutput output = new LongArrayOutput();
+        GorillaCompressor fc = new GorillaCompressor(blockStart, floatOutput,
+                GorillaCompressor.TIMESTAMP_DELTA_OF_DELTA, GorillaCompressor.VALUE_XOR_32);
+        GorillaCompressor c = new GorillaCompressor(blockStart, output);
+
+        for(int i = 0; i < amountOfPoints; i++) {
+            timestamps[i] = blockStart + 60 + i*60 + ThreadLocalRandom.current().nextInt(10);
+            values[i] = (float) (i * Math.random());
+            fc.addValue(timestamps[i], values[i]);
+            c.addValue(timestamps[i], values[i]);
+        }
+        fc.close();
+        c.close();
+
+        assertTrue(floatOutput.getLongArray().length < output.getLongArray().length,
+                "32 bit block should be smaller");
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(floatOutput.getLongArray()));
+        long[] decodedTimestamps = new long[amountOfPoints + 1];
+        float[] decodedValues = new float[amountOfPoints + 1];
+        assertEquals(amountOfPoints, d.readFloats(decodedTimestamps, decodedValues));
+
+        assertArrayEquals(timestamps, Arrays.copyOf(decodedTimestamps, amountOfPoints));
+        assertArrayEquals(values, Arrays.copyOf(decodedValues, amountOfPoints));
+
+        d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        for(int i = 0; i < amountOfPoints; i++) {
+            assertEquals(values[i], (float) d.readPair().getDoubleValue(), "Value did not match at point " + i);
+        }
+    }
+
+    /**
+     * 32 bit int values, including negative ones, should survive the compression with every timestamp encoding
+     */
+    @Test
+    void testIntEncoding() throws Exception {
+        int amountOfPoints = 10000;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        int[] values = new int[amountOfPoints];
+        for(int i = 0; i < amountOfPoints; i++) {
+            values[i] = ThreadLocalRandom.current().nextInt(Integer.MIN_VALUE, Integer.MAX_VALUE);
+            if(i % 5 == 0) {
+                values[i] = i % 3 - 1;
+            }
+        }
+        values[amountOfPoints - 1] = Integer.MIN_VALUE;
+
+        int[] timestampEncodings = { GorillaCompressor.TIMESTAMP_DELTA_OF_DELTA,
+                GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE };
+        for(int timestampEncoding : timestampEncodings) {
+            LongArrayOutput output = new LongArrayOutput();
+            GorillaCompressor c = new GorillaCompressor(blockStart, output, timestampEncoding,
+                    GorillaCompressor.VALUE_XOR_32);
+            for(int i = 0; i < amountOfPoints; i++) {
+                c.addValue(blockStart + 60 + i*60, values[i]);
+            }
+            c.close();
+
+            GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+            Pair first = d.readPair();
+            assertEquals(blockStart + 60, first.getTimestamp());
+            assertEquals(values[0], first.getIntValue());
+
+            long[] decodedTimestamps = new long[amountOfPoints];
+            int[] decodedValues = new int[amountOfPoints];
+            assertEquals(amountOfPoints - 1, d.readInts(decodedTimestamps, decodedValues));
+            for(int i = 1; i < amountOfPoints; i++) {
+                assertEquals(blockStart + 60 + i*60, decodedTimestamps[i - 1], "Timestamp did not match at point " + i);
+                assertEquals(values[i], decodedValues[i - 1], "Value did not match at point " + i);
+            }
+            assertNull(d.readPair());
+        }
+    }
+
+    @Test
+    void testAdaptiveCodecSelection() throws Exception {
+        int amountOfPoints = 1000;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        double[] states = { 200.0, 404.0, 500.0 };
+        long[] regularTimestamps = new long[amountOfPoints];
+        double[] regularValues = new double[amountOfPoints];
+        long[] irregularTimestamps = new long[amountOfPoints];
+        double[] irregularValues = new double[amountOfPoints];
+
+        long now = blockStart + 60;
+        for(int i = 0; i < amountOfPoints; i++) {
+            regularTimestamps[i] = blockStart + 60 + i*60;
+            regularValues[i] = states[ThreadLocalRandom.current().nextInt(states.length)];
+            now += ThreadLocalRandom.current().nextInt(1, 1000);
+            irregularTimestamps[i] = now;
+            irregularValues[i] = ThreadLocalRandom.current().nextDouble();
+        }
+
+        LongArrayOutput output = new LongArrayOutput();
+        AdaptiveCompressor c = new AdaptiveCompressor(blockStart, output);
+        for(int i = 0; i < amountOfPoints; i++) {
+            c.addValue(regularTimestamps[i], regularValues[i]);
+        }
+        c.close();
+        assertEquals(GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE, c.getCompressor().getTimestampCodec().getId());
+        assertEquals(GorillaCompressor.VALUE_DICTIONARY, c.getCompressor().getValueCodec().getId());
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        for(int i = 0; i < amountOfPoints; i++) {
+            Pair pair = d.readPair();
+            assertEquals(regularTimestamps[i], pair.getTimestamp(), "Expected timestamp did not match at point " + i);
+            assertEquals(regularValues[i], pair.getDoubleValue(), "Expected value did not match at point " + i);
+        }
+        assertNull(d.readPair());
+
+        output = new LongArrayOutput();
+        c = new AdaptiveCompressor(blockStart, output);
+        for(int i = 0; i < amountOfPoints; i++) {
+            c.addValue(irregularTimestamps[i], irregularValues[i]);
+        }
+        c.close();
+        assertEquals(GorillaCompressor.TIMESTAMP_DELTA_OF_DELTA, c.getCompressor().getTimestampCodec().getId());
+        assertEquals(GorillaCompressor.VALUE_XOR, c.getCompressor().getValueCodec().getId());
+
+        d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        for(int i = 0; i < amountOfPoints; i++) {
+            Pair pair = d.readPair();
+            assertEquals(irregularTimestamps[i], pair.getTimestamp(), "Expected timestamp did not match at point " + i);
+            assertEquals(irregularValues[i], pair.getDoubleValue(), "Expected value did not match at point " + i);
+        }
+        assertNull(d.readPair());
+
+        // Shorter than the sample
+        output = new LongArrayOutput();
+        c = new AdaptiveCompressor(blockStart, output);
+        c.addValue(blockStart + 10, 1.0);
+        c.addValue(blockStart + 20, 2.0);
+        c.close();
+
+        d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        assertEquals(1.0, d.readPair().getDoubleValue());
+        assertEquals(2.0, d.readPair().getDoubleValue());
+        assertNull(d.readPair());
+    }
+
+    /**
+     * Stores the values as plain 64 bit longs
+     */
+    static class RawValueCodec implements ValueCodec {
+        static final int ID = 8;
+        private long value;
+
+        @Override
+        public int getId() {
+            return ID;
+        }
+
+        @Override
+        public ValueCodec newInstance() {
+            return new RawValueCodec();
+        }
+
+        @Override
+        public void writeFirst(long value, BitOutput out) {
+            write(value, out);
+        }
+
+        @Override
+        public void write(long value, BitOutput out) {
+            out.skipBit();
+            out.writeBits(value, 64);
+        }
+
+        @Override
+        public void writeEscape(int code, BitOutput out) {
+            out.writeBit();
+            out.writeBits(code, 6);
+        }
+
+        @Override
+        public void readFirst(BitInput in) {
+            read(in);
+        }
+
+        @Override
+        public int read(BitInput in) {
+            if(in.readBit()) {
+                return (int) in.getLong(6);
+            }
+            value = in.getLong(64);
+            return 0;
+        }
+
+        @Override
+        public long getValue() {
+            return value;
+        }
+    }
+
+    @Test
+    void testCustomValueCodec() throws Exception {
+        Codecs.register(new RawValueCodec());
+
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        for(TimestampCodec timestampCodec : new TimestampCodec[] { new DeltaOfDeltaTimestampCodec(),
+                new ConstantCadenceTimestampCodec() }) {
+            LongArrayOutput output = new LongArrayOutput();
+            GorillaCompressor c = new GorillaCompressor(blockStart, output, timestampCodec, new RawValueCodec());
+            for(int i = 0; i < 100; i++) {
+                // Cadence breaks at the point 50
+                c.addValue(blockStart + 60 + i*60 + (i >= 50 ? 1 : 0), (long) i * 31);
+            }
+            c.close();
+
+            GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+            for(int i = 0; i < 100; i++) {
+                Pair pair = d.readPair();
+                assertEquals(blockStart + 60 + i*60 + (i >= 50 ? 1 : 0), pair.getTimestamp());
+                assertEquals((long) i * 31, pair.getLongValue());
+            }
+            assertNull(d.readPair());
+            assertEquals(RawValueCodec.ID, d.getValueCodec().getId());
+        }
+    }
+
+    @Test
+    void testSummaryFooter() throws Exception {
+        int amountOfPoints = 1000;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        double[] values = new double[amountOfPoints];
+        double min = Double.MAX_VALUE;
+        double max = -Double.MAX_VALUE;
+        double sum = 0;
+        for(int i = 0; i < amountOfPoints; i++) {
+            values[i] = ThreadLocalRandom.current().nextDouble(-1000, 1000);
+            min = Math.min(min, values[i]);
+            max = Math.max(max, values[i]);
+            sum += values[i];
+        }
+
+        LongArrayOutput output = new LongArrayOutput();
+        ByteBufferBitOutput byteOutput = new ByteBufferBitOutput();
+        SummarizingCompressor c = new SummarizingCompressor(blockStart, output);
+        SummarizingCompressor bc = new SummarizingCompressor(blockStart, byteOutput,
+                GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE, GorillaCompressor.VALUE_XOR);
+        for(int i = 0; i < amountOfPoints; i++) {
+            c.addValue(blockStart + 100 + i*10, values[i]);
+            bc.addValue(blockStart + 100 + i*10, values[i]);
+        }
+        c.close();
+        bc.close();
+
+        ByteBuffer byteBuffer = byteOutput.getByteBuffer();
+        byteBuffer.flip();
+
+        BlockSummary[] summaries = { BlockSummary.readFooter(output.getLongArray()),
+                BlockSummary.readFooter(byteBuffer) };
+        for (BlockSummary summary : summaries) {
+            assertEquals(BlockSummary.VERSION, summary.getVersion());
+            assertEquals(blockStart, summary.getBlockTimestamp());
+            assertEquals(amountOfPoints, summary.getCount());
+            assertEquals(blockStart + 100, summary.getFirstTimestamp());
+            assertEquals(blockStart + 100 + (amountOfPoints - 1) * 10, summary.getLastTimestamp());
+            assertEquals(min, summary.getMin());
+            assertEquals(max, summary.getMax());
+            assertEquals(sum, summary.getSum());
+            assertTrue(summary.overlaps(blockStart, blockStart + 100));
+            assertFalse(summary.overlaps(summary.getLastTimestamp() + 1, Long.MAX_VALUE));
+        }
+        assertEquals(GorillaCompressor.TIMESTAMP_DELTA_OF_DELTA, summaries[0].getTimestampCodecId());
+        assertEquals(GorillaCompressor.TIMESTAMP_CONSTANT_CADENCE, summaries[1].getTimestampCodecId());
+
+        // Footer does not disturb the decompression
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        GorillaDecompressor bd = new GorillaDecompressor(new ByteBufferBitInput(byteBuffer));
+        for(int i = 0; i < amountOfPoints; i++) {
+            assertEquals(values[i], d.readPair().getDoubleValue());
+            assertEquals(values[i], bd.readPair().getDoubleValue());
+        }
+        assertNull(d.readPair());
+        assertNull(bd.readPair());
+
+        // Blocks without a footer
+        LongArrayOutput plainOutput = new LongArrayOutput();
+        GorillaCompressor pc = new GorillaCompressor(blockStart, plainOutput);
+        pc.addValue(blockStart + 1, 1.0);
+        pc.close();
+        assertNull(BlockSummary.readFooter(plainOutput.getLongArray()));
+
+        // Empty block
+        output = new LongArrayOutput();
+        c = new SummarizingCompressor(blockStart, output);
+        c.close();
+        BlockSummary summary = BlockSummary.readFooter(output.getLongArray());
+        assertEquals(0, summary.getCount());
+        assertTrue(Double.isNaN(summary.getMin()));
+        assertFalse(summary.overlaps(Long.MIN_VALUE, Long.MAX_VALUE));
+
+        // NaN values do not affect the min and max
+        output = new LongArrayOutput();
+        c = new SummarizingCompressor(blockStart, output);
+        c.addValue(blockStart + 1, Double.NaN);
+        c.addValue(blockStart + 2, 2.0);
+        c.addValue(blockStart + 3, Double.NaN);
+        c.addValue(blockStart + 4, -1.0);
+        c.close();
+        summary = BlockSummary.readFooter(output.getLongArray());
+        assertEquals(4, summary.getCount());
+        assertEquals(-1.0, summary.getMin());
+        assertEquals(2.0, summary.getMax());
+        assertTrue(Double.isNaN(summary.getSum()));
+    }
+
+    @Test
+    void testCrc32c() throws Exception {
+        Crc32c crc = new Crc32c();
+        byte[] check = "123456789".getBytes("US-ASCII");
+        crc.update(check, 0, check.length);
+        assertEquals(0xE3069283L, crc.getValue());
+
+        byte[] bytes = new byte[1021];
+        ThreadLocalRandom.current().nextBytes(bytes);
+        crc.reset();
+        crc.update(bytes, 0, 100);
+        crc.update(bytes, 100, bytes.length - 100);
+        Checksum checksum = Crc32c.newChecksum();
+        checksum.update(bytes, 0, bytes.length);
+        assertEquals(checksum.getValue(), crc.getValue());
+    }
+
+    @Test
+    void testBlockChecksum() throws Exception {
+        int amountOfPoints = 10000;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        LongArrayOutput output = new LongArrayOutput();
+        ByteBufferBitOutput byteOutput = new ByteBufferBitOutput();
+        ChecksumBitOutput checksumOutput = new ChecksumBitOutput(output);
+        ChecksumBitOutput byteChecksumOutput = new ChecksumBitOutput(byteOutput);
+        GorillaCompressor c = new GorillaCompressor(blockStart, checksumOutput);
+        SummarizingCompressor bc = new SummarizingCompressor(blockStart, byteChecksumOutput);
+
+        double[] values = new double[amountOfPoints];
+        for(int i = 0; i < amountOfPoints; i++) {
+            values[i] = ThreadLocalRandom.current().nextDouble();
+            c.addValue(blockStart + i * 10, values[i]);
+            bc.addValue(blockStart + i * 10, values[i]);
+        }
+        c.close();
+        checksumOutput.writeChecksum();
+        bc.close();
+        byteChecksumOutput.writeChecksum();
+
+        long[] block = output.getLongArray();
+        ByteBuffer byteBuffer = byteOutput.getByteBuffer();
+        byteBuffer.flip();
+
+        assertTrue(BlockChecksum.verify(block));
+        assertTrue(BlockChecksum.verify(byteBuffer));
+        assertEquals(amountOfPoints, BlockSummary.readFooter(byteBuffer).getCount());
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(block));
+        for(int i = 0; i < amountOfPoints; i++) {
+            assertEquals(values[i], d.readPair().getDoubleValue());
+        }
+        assertNull(d.readPair());
+
+        // Flip a single bit
+        int word = ThreadLocalRandom.current().nextInt(BlockChecksum.trailerIndex(block));
+        block[word] ^= 1L << ThreadLocalRandom.current().nextInt(64);
+        assertFalse(BlockChecksum.verify(block));
+
+        byteBuffer.put(20, (byte) (byteBuffer.get(20) ^ 0x10));
+        assertFalse(BlockChecksum.verify(byteBuffer));
+
+        // No checksum
+        LongArrayOutput plainOutput = new LongArrayOutput();
+        GorillaCompressor pc = new GorillaCompressor(blockStart, plainOutput);
+        pc.addValue(blockStart + 1, 1.0);
+        pc.close();
+        assertFalse(BlockChecksum.verify(plainOutput.getLongArray()));
+    }
 }
@@ -0,0 +1,282 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.store.Block;
+import fi.iki.yak.ts.compression.gorilla.store.TimeSeriesStore;
+
+/**
+ * Tests the shared memory budget of the compressor outputs.
+ *
+ * @author Michael Burman
+ */
+public class MemoryBudgetTest {
+
+    private static final long START = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC)
+            .toEpochMilli();
+
+    private static void assertReadable(long[] array, int count, long start) {
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(array));
+        for(int i = 0; i < count; i++) {
+            assertTrue(d.nextPair());
+            assertEquals(start + i * 1000, d.getTimestamp());
+            assertEquals(i * 31L, d.getValue());
+        }
+        assertFalse(d.nextPair());
+    }
+
+    @Test
+    void testRejectLeavesBlockIntact() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024, MemoryBudget.Policy.REJECT);
+        MemoryBudget.Tenant tenant = budget.tenant("a");
+
+        OpenBlock block = new OpenBlock(START, 32, tenant);
+        assertEquals(256, budget.getUsedBytes());
+
+        int count = 0;
+        try {
+            for(; count < 10_000; count++) {
+                block.addValue(START + count * 1000, count * 31L);
+            }
+            fail("Budget should have been exceeded");
+        } catch(MemoryBudgetExceededException e) {
+            // Expected
+        }
+        assertTrue(count > 0);
+        assertTrue(budget.getUsedBytes() <= budget.getMaxBytes());
+        assertEquals(count, block.getCount());
+
+        // The block can still be closed, even though that needs more memory than the budget allows
+        long[] array = block.close();
+        assertReadable(array, count, START);
+        assertEquals(0, budget.getUsedBytes());
+        assertEquals(0, tenant.getUsedBytes());
+    }
+
+    @Test
+    void testBlockWaitsForRelease() throws Exception {
+        MemoryBudget budget = new MemoryBudget(512, MemoryBudget.Policy.BLOCK, TimeUnit.SECONDS.toMillis(30));
+        LongArrayOutput first = new LongArrayOutput(32, budget.tenant("a"));
+        LongArrayOutput second = new LongArrayOutput(32, budget.tenant("b"));
+        assertEquals(512, budget.getUsedBytes());
+
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            // Needs another 256 bytes, which are available only after the first output is released
+            Future<?> growing = executor.submit(() -> second.ensureCapacity(32, false));
+            Thread.sleep(100);
+            assertFalse(growing.isDone());
+
+            first.release();
+            growing.get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(512, second.getAllocatedBytes());
+        assertEquals(512, budget.getUsedBytes());
+
+        Map<String, Long> usage = budget.getUsageByTenant();
+        assertEquals(Long.valueOf(0), usage.get("a"));
+        assertEquals(Long.valueOf(512), usage.get("b"));
+
+        second.release();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    void testBlockTimesOut() throws Exception {
+        MemoryBudget budget = new MemoryBudget(256, MemoryBudget.Policy.BLOCK, 50);
+        LongArrayOutput output = new LongArrayOutput(32, budget.tenant("a"));
+        long start = System.nanoTime();
+        try {
+            output.ensureCapacity(32, false);
+            fail("Budget should have been exceeded");
+        } catch(MemoryBudgetExceededException e) {
+            // Expected
+        }
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(50));
+        assertEquals(256, budget.getUsedBytes());
+    }
+
+    @Test
+    void testByteBufferOutput() throws Exception {
+        MemoryBudget budget = new MemoryBudget(4096, MemoryBudget.Policy.REJECT);
+        ByteBufferBitOutput output = new ByteBufferBitOutput(1024, budget.tenant("a"));
+        for(int i = 0; i < 256; i++) {
+            output.writeBits(i, 32);
+        }
+        // The buffer is full, it grows only when the next byte is written
+        assertEquals(1024, budget.getUsedBytes());
+        output.writeBits(256, 32);
+        assertEquals(2048, budget.getUsedBytes());
+        try {
+            for(int i = 0; i < 1024; i++) {
+                output.writeBits(i, 32);
+            }
+            fail("Budget should have been exceeded");
+        } catch(MemoryBudgetExceededException e) {
+            // Expected
+        }
+        assertEquals(4096, output.getByteBuffer().capacity());
+        output.release();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    void testByteBufferOutputAfterReject() throws Exception {
+        MemoryBudget budget = new MemoryBudget(4096, MemoryBudget.Policy.REJECT);
+        MemoryBudget.Tenant other = budget.tenant("b");
+        other.reserve(3072);
+        ByteBufferBitOutput output = new ByteBufferBitOutput(1024, budget.tenant("a"));
+        for(int i = 0; i < 1023; i++) {
+            output.writeBits(i, 8);
+        }
+        output.writeBits(0x7F, 7);
+        try {
+            output.writeBits(0xFFFFFFFFFFFFFFFFL, 64);
+            fail("Budget should have been exceeded");
+        } catch(MemoryBudgetExceededException e) {
+            // Expected, nothing of the value was written
+        }
+        ByteBuffer bb = output.getByteBuffer();
+        assertEquals(1023, bb.position());
+
+        other.release(3072);
+        output.writeBits(0x0F0F0F0F0F0F0F0FL, 64);
+        output.flush();
+
+        bb = output.getByteBuffer();
+        assertEquals(1032, bb.position());
+        for(int i = 0; i < 1023; i++) {
+            assertEquals((byte) i, bb.get(i));
+        }
+        // Seven bits of 0x7F followed by the value shifted by one bit
+        assertEquals((byte) 0xFE, bb.get(1023));
+        for(int i = 1024; i < 1032; i++) {
+            assertEquals((byte) 0x1E, bb.get(i));
+        }
+        output.release();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    void testByteBufferOutputCompressor() throws Exception {
+        MemoryBudget budget = new MemoryBudget(1024, MemoryBudget.Policy.REJECT);
+        ByteBufferBitOutput output = new ByteBufferBitOutput(256, budget.tenant("a"));
+        GorillaCompressor c = new GorillaCompressor(START, output);
+
+        // Random values are stored with all the 64 bits, reserving the whole point keeps the compressor consistent
+        Random random = new Random(7);
+        long[] values = new long[1024];
+        int count = 0;
+        try {
+            for(; count < values.length; count++) {
+                values[count] = random.nextLong();
+                output.ensureCapacity(24, false);
+                c.addValue(START + count * 1000, values[count]);
+            }
+            fail("Budget should have been exceeded");
+        } catch(MemoryBudgetExceededException e) {
+            // Expected
+        }
+        assertTrue(count > 0);
+        assertEquals(1024, budget.getUsedBytes());
+
+        output.ensureCapacity(16, true);
+        c.close();
+
+        ByteBuffer bb = output.getByteBuffer();
+        bb.flip();
+        GorillaDecompressor d = new GorillaDecompressor(new ByteBufferBitInput(bb));
+        for(int i = 0; i < count; i++) {
+            Pair pair = d.readPair();
+            assertEquals(START + i * 1000, pair.getTimestamp());
+            assertEquals(values[i], pair.getLongValue());
+        }
+        assertNull(d.readPair());
+        output.release();
+        assertEquals(0, budget.getUsedBytes());
+    }
+
+    @Test
+    void testStoreSpillsEarly() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(4, TimeUnit.HOURS.toMillis(2));
+        MemoryBudget budget = new MemoryBudget(4 * 1024, MemoryBudget.Policy.SPILL);
+        store.setMemoryBudget(budget, seriesId -> seriesId < 2 ? "first" : "second");
+
+        // An hour of points per second does not fit in the budget, the blocks are sealed early
+        int points = 3600;
+        for(int i = 0; i < points; i++) {
+            for(long s = 0; s < 4; s++) {
+                assertTrue(store.addValue(s, START + i * 1000, i * 31L));
+            }
+            assertTrue(budget.getUsedBytes() <= budget.getMaxBytes());
+        }
+        Map<String, Long> usage = budget.getUsageByTenant();
+        assertEquals(budget.getUsedBytes(), usage.get("first") + usage.get("second"));
+
+        store.sealAll();
+        assertEquals(0, budget.getUsedBytes());
+
+        for(long s = 0; s < 4; s++) {
+            List<Block> blocks = store.getBlocks(s);
+            assertTrue(blocks.size() > 1);
+            int i = 0;
+            for (Block block : blocks) {
+                assertEquals(START, block.getBlockTimestamp());
+                GorillaDecompressor d = block.decompressor();
+                while(d.nextPair()) {
+                    assertEquals(START + i * 1000, d.getTimestamp());
+                    assertEquals(i * 31L, d.getValue());
+                    i++;
+                }
+            }
+            assertEquals(points, i);
+        }
+    }
+
+    @Test
+    void testStoreRejects() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(1, TimeUnit.HOURS.toMillis(2));
+        MemoryBudget budget = new MemoryBudget(1024, MemoryBudget.Policy.REJECT);
+        store.setMemoryBudget(budget);
+
+        int added = 0;
+        try {
+            for(; added < 10_000; added++) {
+                store.addValue(1, START + added * 1000, added * 31L);
+            }
+            fail("Budget should have been exceeded");
+        } catch(MemoryBudgetExceededException e) {
+            // Expected
+        }
+        // Rejected point does not change the series, the next one is still accepted once there is room
+        store.seal(1);
+        assertEquals(0, budget.getUsedBytes());
+        assertTrue(store.addValue(1, START + added * 1000, added * 31L));
+
+        store.seal(1);
+        List<Block> blocks = store.getBlocks(1);
+        assertEquals(2, blocks.size());
+        assertEquals(added, blocks.get(0).getCount());
+        assertReadable(blocks.get(0).getData(), added, START);
+    }
+}
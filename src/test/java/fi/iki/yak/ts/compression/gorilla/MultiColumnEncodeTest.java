@@ -0,0 +1,132 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * These are generic tests to test that input matches the output after compression + decompression cycle, using
+ * the multi column block.
+ *
+ * @author Michael Burman
+ */
+public class MultiColumnEncodeTest {
+
+    @Test
+    void testMultiColumnEncoding() throws Exception {
+        int amountOfPoints = 5000;
+        int columns = 20;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        long[] timestamps = new long[amountOfPoints];
+        double[][] values = new double[columns][amountOfPoints];
+
+        long now = blockStart + 10;
+        for(int i = 0; i < amountOfPoints; i++) {
+            now += 10000 + ThreadLocalRandom.current().nextInt(-5, 5);
+            timestamps[i] = now;
+            for(int j = 0; j < columns; j++) {
+                values[j][i] = j % 2 == 0 ? ThreadLocalRandom.current().nextDouble() : j * 100.0 + i % 7;
+            }
+        }
+
+        LongArrayOutput output = new LongArrayOutput();
+        MultiColumnCompressor c = new MultiColumnCompressor(blockStart, output, columns);
+        double[] row = new double[columns];
+        for(int i = 0; i < amountOfPoints; i++) {
+            for(int j = 0; j < columns; j++) {
+                row[j] = values[j][i];
+            }
+            c.addValues(timestamps[i], row);
+        }
+        c.close();
+
+        long[] compressed = output.getLongArray();
+
+        MultiColumnDecompressor d = new MultiColumnDecompressor(new LongArrayInput(compressed));
+        assertEquals(blockStart, d.getBlockTimestamp());
+        assertEquals(columns, d.getColumnCount());
+        assertArrayEquals(timestamps, d.getTimestamps());
+
+        double[][] decoded = d.readDoubleColumns();
+        assertEquals(columns, decoded.length);
+        for(int j = 0; j < columns; j++) {
+            assertArrayEquals(values[j], decoded[j], "Column " + j + " did not match");
+        }
+
+        // Subset, in other than column order
+        d = new MultiColumnDecompressor(new LongArrayInput(compressed));
+        decoded = d.readDoubleColumns(17, 3, 4);
+        assertEquals(3, decoded.length);
+        assertArrayEquals(values[17], decoded[0]);
+        assertArrayEquals(values[3], decoded[1]);
+        assertArrayEquals(values[4], decoded[2]);
+    }
+
+    @Test
+    void testSharedTimestampsAreSmaller() throws Exception {
+        int amountOfPoints = 1000;
+        int columns = 10;
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        LongArrayOutput multiOutput = new LongArrayOutput();
+        MultiColumnCompressor mc = new MultiColumnCompressor(blockStart, multiOutput, columns);
+        LongArrayOutput[] outputs = new LongArrayOutput[columns];
+        GorillaCompressor[] compressors = new GorillaCompressor[columns];
+        for(int j = 0; j < columns; j++) {
+            outputs[j] = new LongArrayOutput();
+            compressors[j] = new GorillaCompressor(blockStart, outputs[j]);
+        }
+
+        long[] row = new long[columns];
+        long now = blockStart;
+        for(int i = 0; i < amountOfPoints; i++) {
+            now += 1000 + ThreadLocalRandom.current().nextInt(100);
+            for(int j = 0; j < columns; j++) {
+                row[j] = j;
+                compressors[j].addValue(now, row[j]);
+            }
+            mc.addValues(now, row);
+        }
+        mc.close();
+
+        int separateLength = 0;
+        for(int j = 0; j < columns; j++) {
+            compressors[j].close();
+            separateLength += outputs[j].getLongArray().length;
+        }
+        assertTrue(multiOutput.getLongArray().length * 2 < separateLength,
+                "Shared timestamps should take less space than separate blocks");
+
+        MultiColumnDecompressor d = new MultiColumnDecompressor(new LongArrayInput(multiOutput.getLongArray()));
+        long[][] decoded = d.readColumns(columns - 1);
+        for(int i = 0; i < amountOfPoints; i++) {
+            assertEquals(columns - 1, decoded[0][i]);
+        }
+    }
+
+    @Test
+    void testEmptyMultiColumnBlock() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        LongArrayOutput output = new LongArrayOutput();
+        MultiColumnCompressor c = new MultiColumnCompressor(blockStart, output, 3);
+        c.close();
+
+        MultiColumnDecompressor d = new MultiColumnDecompressor(new LongArrayInput(output.getLongArray()));
+        assertEquals(0, d.getTimestamps().length);
+        long[][] decoded = d.readColumns();
+        assertEquals(3, decoded.length);
+        assertEquals(0, decoded[2].length);
+    }
+}
@@ -0,0 +1,134 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.LongBuffer;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests reading an open block while it is being written.
+ *
+ * @author Michael Burman
+ */
+public class OpenBlockTest {
+
+    private static long value(int i) {
+        // Mix of repeating and changing values to exercise all the XOR cases
+        return i % 3 == 0 ? i / 3 : i * 31L;
+    }
+
+    @Test
+    void testSnapshot() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        OpenBlock block = new OpenBlock(blockStart);
+        assertEquals(0, block.snapshot().getCount());
+
+        for(int i = 0; i < 1000; i++) {
+            block.addValue(blockStart + 1 + i * 10, value(i));
+            OpenBlock.Snapshot snapshot = block.snapshot();
+            // Each point takes at least two bits, so at most 32 points can wait in the uncommitted word
+            assertTrue(snapshot.getCount() > i - 32 && snapshot.getCount() <= i + 1);
+        }
+
+        OpenBlock.Snapshot snapshot = block.snapshot();
+        GorillaDecompressor d = snapshot.decompressor();
+        for(int i = 0; i < snapshot.getCount(); i++) {
+            assertTrue(d.nextPair());
+            assertEquals(blockStart + 1 + i * 10, d.getTimestamp());
+            assertEquals(value(i), d.getValue());
+        }
+
+        d = new GorillaDecompressor(new LongArrayInput(block.close()));
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(value(i), d.readPair().getLongValue());
+        }
+        assertNull(d.readPair());
+    }
+
+    @Test
+    void testSaveAndRestore() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        // Restoring at every point covers all the positions inside a word
+        OpenBlock reference = new OpenBlock(blockStart);
+        for(int i = 0; i < 200; i++) {
+            reference.addValue(blockStart + 1 + i * 10, value(i));
+        }
+        long[] expected = reference.close();
+
+        for(int split = 0; split < 200; split++) {
+            OpenBlock block = new OpenBlock(blockStart);
+            for(int i = 0; i < split; i++) {
+                block.addValue(blockStart + 1 + i * 10, value(i));
+            }
+            OpenBlock restored = OpenBlock.restore(blockStart, LongBuffer.wrap(block.saveState()), null);
+            assertEquals(split, restored.getCount());
+            assertEquals(block.snapshot().getCount(), restored.snapshot().getCount());
+            for(int i = split; i < 200; i++) {
+                restored.addValue(blockStart + 1 + i * 10, value(i));
+            }
+            assertArrayEquals(expected, restored.close(), "Restored block differs after " + split + " points");
+        }
+    }
+
+    @Test
+    void testConcurrentReaders() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+        int amountOfPoints = 500000;
+
+        // Small initial size to cause plenty of array expansions during the reads
+        OpenBlock block = new OpenBlock(blockStart, 4);
+        AtomicBoolean done = new AtomicBoolean();
+
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        List<Future<Integer>> readers = new ArrayList<>();
+        for(int r = 0; r < 3; r++) {
+            readers.add(executor.submit(() -> {
+                int snapshots = 0;
+                int previousCount = 0;
+                while(!done.get()) {
+                    OpenBlock.Snapshot snapshot = block.snapshot();
+                    assertTrue(snapshot.getCount() >= previousCount, "Committed count must not decrease");
+                    previousCount = snapshot.getCount();
+
+                    GorillaDecompressor d = snapshot.decompressor();
+                    for(int i = 0; i < snapshot.getCount(); i++) {
+                        assertTrue(d.nextPair());
+                        assertEquals(blockStart + 1 + i * 10L, d.getTimestamp(), "Timestamp did not match at " + i);
+                        assertEquals(value(i), d.getValue(), "Value did not match at " + i);
+                    }
+                    snapshots++;
+                }
+                return snapshots;
+            }));
+        }
+
+        for(int i = 0; i < amountOfPoints; i++) {
+            block.addValue(blockStart + 1 + i * 10L, value(i));
+        }
+        done.set(true);
+        for (Future<Integer> reader : readers) {
+            assertTrue(reader.get() > 0);
+        }
+        executor.shutdown();
+
+        assertTrue(block.snapshot().getCount() > amountOfPoints - 32);
+    }
+}
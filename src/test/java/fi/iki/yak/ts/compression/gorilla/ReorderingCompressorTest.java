@@ -0,0 +1,128 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that the out of order points are written in order or to the late value sink.
+ *
+ * @author Michael Burman
+ */
+public class ReorderingCompressorTest {
+
+    @Test
+    void testReordering() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        int amountOfPoints = 10000;
+        long window = 5000;
+        List<Pair> pairs = new ArrayList<>();
+        for(int i = 0; i < amountOfPoints; i++) {
+            pairs.add(new Pair(blockStart + 1000 + i * 1000, Double.doubleToRawLongBits(i)));
+        }
+
+        // Shuffle inside slices shorter than the window, so nothing arrives late
+        List<Pair> arrival = new ArrayList<>(pairs);
+        for(int i = 0; i < amountOfPoints; i += 4) {
+            Collections.shuffle(arrival.subList(i, Math.min(i + 4, amountOfPoints)));
+        }
+
+        LongArrayOutput output = new LongArrayOutput();
+        List<Pair> late = new ArrayList<>();
+        ReorderingCompressor c = new ReorderingCompressor(new GorillaCompressor(blockStart, output), window, 1024,
+                (timestamp, value) -> late.add(new Pair(timestamp, value)));
+        for (Pair pair : arrival) {
+            c.addValue(pair.getTimestamp(), pair.getDoubleValue());
+            assertTrue(c.getBufferedCount() <= window / 1000 + 1);
+        }
+
+        // Too late
+        c.addValue(blockStart + 1000, 1.0);
+        c.close();
+
+        assertEquals(1, late.size());
+        assertEquals(blockStart + 1000, late.get(0).getTimestamp());
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        for (Pair expected : pairs) {
+            Pair pair = d.readPair();
+            assertEquals(expected.getTimestamp(), pair.getTimestamp());
+            assertEquals(expected.getDoubleValue(), pair.getDoubleValue());
+        }
+        assertNull(d.readPair());
+    }
+
+    @Test
+    void testFullBuffer() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        LongArrayOutput output = new LongArrayOutput();
+        List<Pair> late = new ArrayList<>();
+        ReorderingCompressor c = new ReorderingCompressor(new GorillaCompressor(blockStart, output), Long.MAX_VALUE,
+                16, (timestamp, value) -> late.add(new Pair(timestamp, value)));
+
+        long[] timestamps = new long[1000];
+        for(int i = 0; i < timestamps.length; i++) {
+            timestamps[i] = blockStart + 1 + ThreadLocalRandom.current().nextInt(100000);
+            c.addValue(timestamps[i], (long) i);
+            assertTrue(c.getBufferedCount() <= 16);
+        }
+        c.close();
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        int count = 0;
+        long previous = Long.MIN_VALUE;
+        Pair pair;
+        while((pair = d.readPair()) != null) {
+            assertTrue(pair.getTimestamp() >= previous, "Timestamps must be in order");
+            assertEquals(timestamps[(int) pair.getLongValue()], pair.getTimestamp());
+            previous = pair.getTimestamp();
+            count++;
+        }
+        assertEquals(timestamps.length, count + late.size());
+    }
+
+    @Test
+    void testFloatValues() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        LongArrayOutput output = new LongArrayOutput();
+        List<Pair> late = new ArrayList<>();
+        GorillaCompressor compressor = new GorillaCompressor(blockStart, output,
+                GorillaCompressor.TIMESTAMP_DELTA_OF_DELTA, GorillaCompressor.VALUE_XOR_32);
+        ReorderingCompressor c = new ReorderingCompressor(compressor, 1000, 16,
+                (timestamp, value) -> late.add(new Pair(timestamp, value)));
+
+        // Doubles are converted by the codec of the compressor, also when they arrive out of order
+        c.addValue(blockStart + 20, 2.5);
+        c.addValue(blockStart + 10, 1.5);
+        c.addValue(blockStart + 30, 3.5);
+        c.addValue(blockStart + 2000, 4.5);
+        c.addValue(blockStart + 5, 0.5);
+        c.close();
+
+        assertEquals(1, late.size());
+        assertEquals(0.5f, late.get(0).getFloatValue());
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        float[] expected = { 1.5f, 2.5f, 3.5f, 4.5f };
+        for (float value : expected) {
+            assertEquals(value, d.readPair().getFloatValue());
+        }
+        assertNull(d.readPair());
+    }
+}
@@ -0,0 +1,116 @@
+package fi.iki.yak.ts.compression.gorilla;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.Comparator;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests that 1.x blocks transcoded to the 2.x format contain the same points.
+ *
+ * @author Michael Burman
+ */
+public class TranscoderTest {
+
+    private static byte[] createBlock(long blockStart, Pair[] pairs) {
+        ByteBufferBitOutput output = new ByteBufferBitOutput();
+        Compressor c = new Compressor(blockStart, output);
+        for (Pair pair : pairs) {
+            c.addValue(pair.getTimestamp(), pair.getDoubleValue());
+        }
+        c.close();
+
+        ByteBuffer byteBuffer = output.getByteBuffer();
+        byteBuffer.flip();
+        byte[] bytes = new byte[byteBuffer.remaining()];
+        byteBuffer.get(bytes);
+        return bytes;
+    }
+
+    private static Pair[] createPairs(long blockStart, int amountOfPoints) {
+        Pair[] pairs = new Pair[amountOfPoints];
+        long now = blockStart;
+        for(int i = 0; i < amountOfPoints; i++) {
+            now += ThreadLocalRandom.current().nextInt(1, 100000);
+            pairs[i] = new Pair(now, Double.doubleToRawLongBits(ThreadLocalRandom.current().nextDouble()));
+        }
+        return pairs;
+    }
+
+    private static void assertBlock(long blockStart, Pair[] pairs, byte[] block) {
+        GorillaDecompressor d = new GorillaDecompressor(new ByteBufferBitInput(block));
+        for(int i = 0; i < pairs.length; i++) {
+            Pair pair = d.readPair();
+            assertEquals(pairs[i].getTimestamp(), pair.getTimestamp(), "Timestamp did not match at point " + i);
+            assertEquals(pairs[i].getLongValue(), pair.getLongValue(), "Value did not match at point " + i);
+        }
+        assertNull(d.readPair());
+        assertEquals(blockStart, ByteBuffer.wrap(block).getLong(), "Block timestamp did not match");
+    }
+
+    @Test
+    void testTranscode() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        Pair[] pairs = createPairs(blockStart, 10000);
+        LongArrayOutput output = new LongArrayOutput();
+        assertEquals(pairs.length, Transcoder.transcode(new ByteBufferBitInput(createBlock(blockStart, pairs)),
+                output));
+
+        GorillaDecompressor d = new GorillaDecompressor(new LongArrayInput(output.getLongArray()));
+        for(int i = 0; i < pairs.length; i++) {
+            Pair pair = d.readPair();
+            assertEquals(pairs[i].getTimestamp(), pair.getTimestamp(), "Timestamp did not match at point " + i);
+            assertEquals(pairs[i].getLongValue(), pair.getLongValue(), "Value did not match at point " + i);
+        }
+        assertNull(d.readPair());
+
+        // Empty block
+        byte[] empty = Transcoder.transcode(createBlock(blockStart, new Pair[0]));
+        assertBlock(blockStart, new Pair[0], empty);
+    }
+
+    @Test
+    void testTranscodeDirectory() throws Exception {
+        long blockStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS)
+                .toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        Path source = Files.createTempDirectory("gorilla-1x");
+        Path target = source.resolveSibling(source.getFileName() + "-2x");
+        try {
+            int amountOfBlocks = 20;
+            Pair[][] blocks = new Pair[amountOfBlocks][];
+            for(int i = 0; i < amountOfBlocks; i++) {
+                blocks[i] = createPairs(blockStart, ThreadLocalRandom.current().nextInt(1000));
+                Files.write(source.resolve("block-" + i), createBlock(blockStart, blocks[i]));
+            }
+
+            assertEquals(amountOfBlocks, Transcoder.transcodeDirectory(source, target, 4));
+
+            for(int i = 0; i < amountOfBlocks; i++) {
+                assertBlock(blockStart, blocks[i], Files.readAllBytes(target.resolve("block-" + i)));
+            }
+        } finally {
+            delete(source);
+            delete(target);
+        }
+    }
+
+    private static void delete(Path directory) throws Exception {
+        if(Files.exists(directory)) {
+            Files.walk(directory)
+                    .sorted(Comparator.reverseOrder())
+                    .forEach(p -> p.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaCompressor;
+import fi.iki.yak.ts.compression.gorilla.LongArrayOutput;
+
+/**
+ * Tests the byte bounded segmented LRU cache of decoded blocks.
+ *
+ * @author Michael Burman
+ */
+public class BlockCacheTest {
+
+    private static final int POINTS = 100;
+
+    private static Block createBlock(long seriesId) {
+        long blockTimestamp = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        LongArrayOutput output = new LongArrayOutput();
+        GorillaCompressor c = new GorillaCompressor(blockTimestamp, output);
+        for(int i = 0; i < POINTS; i++) {
+            c.addValue(blockTimestamp + i * 1000L, seriesId * POINTS + i);
+        }
+        c.close();
+        return new Block(seriesId, blockTimestamp, blockTimestamp + (POINTS - 1) * 1000L, POINTS,
+                output.getLongArray());
+    }
+
+    private static List<Block> createBlocks(int amount) {
+        List<Block> blocks = new ArrayList<>();
+        for(long s = 0; s < amount; s++) {
+            blocks.add(createBlock(s));
+        }
+        return blocks;
+    }
+
+    private static void verify(Block block, DecodedBlock decoded) {
+        assertEquals(POINTS, decoded.getCount());
+        for(int i = 0; i < POINTS; i++) {
+            assertEquals(block.getBlockTimestamp() + i * 1000L, decoded.getTimestamps()[i]);
+            assertEquals(block.getSeriesId() * POINTS + i, decoded.getValues()[i]);
+        }
+    }
+
+    @Test
+    void testHitsAndEvictions() throws Exception {
+        List<Block> blocks = createBlocks(20);
+        long blockBytes = DecodedBlock.decode(blocks.get(0)).getSizeInBytes();
+        BlockCache cache = new BlockCache(10 * blockBytes, 1);
+
+        DecodedBlock decoded = cache.get(blocks.get(0));
+        verify(blocks.get(0), decoded);
+        assertSame(decoded, cache.get(blocks.get(0)));
+        assertEquals(1, cache.getMissCount());
+        assertEquals(1, cache.getHitCount());
+
+        for (Block block : blocks) {
+            verify(block, cache.get(block));
+        }
+        assertEquals(10, cache.getBlockCount());
+        assertEquals(10, cache.getEvictionCount());
+        assertTrue(cache.getSizeInBytes() <= 10 * blockBytes);
+
+        cache.invalidate(blocks.get(19));
+        assertNull(cache.getIfPresent(blocks.get(19)));
+        assertEquals(9 * blockBytes, cache.getSizeInBytes());
+    }
+
+    @Test
+    void testScanResistance() throws Exception {
+        List<Block> blocks = createBlocks(100);
+        long blockBytes = DecodedBlock.decode(blocks.get(0)).getSizeInBytes();
+        BlockCache cache = new BlockCache(10 * blockBytes, 1);
+
+        // Dashboard reading the same five blocks repeatedly
+        for(int round = 0; round < 3; round++) {
+            for(int i = 0; i < 5; i++) {
+                cache.get(blocks.get(i));
+            }
+        }
+        // One-off scan over all the other blocks
+        for(int i = 5; i < blocks.size(); i++) {
+            cache.get(blocks.get(i));
+        }
+        for(int i = 0; i < 5; i++) {
+            assertNotNull(cache.getIfPresent(blocks.get(i)), "Protected block was evicted by the scan");
+        }
+    }
+
+    @Test
+    void testConcurrentReaders() throws Exception {
+        List<Block> blocks = createBlocks(200);
+        long blockBytes = DecodedBlock.decode(blocks.get(0)).getSizeInBytes();
+        long maxBytes = 64 * blockBytes;
+        BlockCache cache = new BlockCache(maxBytes, 4);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0; t < 8; t++) {
+            futures.add(executor.submit(() -> {
+                ThreadLocalRandom random = ThreadLocalRandom.current();
+                for(int i = 0; i < 5000; i++) {
+                    // Skewed towards the first blocks
+                    int index = (int) Math.min(blocks.size() - 1, Math.abs(random.nextGaussian()) * 40);
+                    Block block = blocks.get(index);
+                    verify(block, cache.get(block));
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(8 * 5000, cache.getHitCount() + cache.getMissCount());
+        assertTrue(cache.getHitCount() > cache.getMissCount());
+        assertTrue(cache.getSizeInBytes() <= maxBytes);
+    }
+}
@@ -0,0 +1,83 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+
+/**
+ * Tests merging the sealed blocks of the store into larger blocks.
+ *
+ * @author Michael Burman
+ */
+public class CompactorTest {
+
+    private static long size(List<Block> blocks) {
+        return blocks.stream().mapToLong(Block::getSizeInBytes).sum();
+    }
+
+    @Test
+    void testCompactToDailyBlocks() throws Exception {
+        long hour = TimeUnit.HOURS.toMillis(1);
+        TimeSeriesStore store = new TimeSeriesStore(4, hour);
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        // 50 hours of minute data, the last hour is still open
+        int points = 50 * 60;
+        for(long s = 0; s < 3; s++) {
+            for(int i = 0; i < points; i++) {
+                store.addValue(s, start + i * 60000L, (double) ((i / 30) % 10));
+            }
+        }
+        assertEquals(49, store.getBlocks(0).size());
+        long before = size(store.getBlocks(0));
+
+        try (Compactor compactor = new Compactor(store, TimeUnit.DAYS.toMillis(1), 2, 0)) {
+            // The first two days are complete, hour 48 is alone in the third day
+            assertEquals(6, compactor.compactAll());
+            assertEquals(0, compactor.compactAll());
+        }
+
+        for(long s = 0; s < 3; s++) {
+            List<Block> blocks = store.getBlocks(s);
+            assertEquals(3, blocks.size());
+            assertEquals(start, blocks.get(0).getBlockTimestamp());
+            assertEquals(start + TimeUnit.DAYS.toMillis(1), blocks.get(1).getBlockTimestamp());
+            assertEquals(24 * 60, blocks.get(0).getCount());
+            assertTrue(size(blocks) < before);
+        }
+
+        store.sealAll();
+        for(long s = 0; s < 3; s++) {
+            int i = 0;
+            for (Block block : store.getBlocks(s)) {
+                GorillaDecompressor d = block.decompressor();
+                while(d.nextPair()) {
+                    assertEquals(start + i * 60000L, d.getTimestamp());
+                    assertEquals(Double.doubleToRawLongBits((i / 30) % 10), d.getValue());
+                    i++;
+                }
+            }
+            assertEquals(points, i);
+        }
+    }
+
+    @Test
+    void testRateLimit() throws Exception {
+        RateLimiter limiter = new RateLimiter(1024 * 1024);
+        long started = System.nanoTime();
+        for(int i = 0; i < 3; i++) {
+            limiter.acquire(100 * 1024);
+        }
+        // The first acquire is free, the next two wait for the bytes of the previous ones
+        assertTrue(System.nanoTime() - started >= TimeUnit.MILLISECONDS.toNanos(190));
+    }
+}
@@ -0,0 +1,196 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the ring buffer ingest from multiple producers.
+ *
+ * @author Michael Burman
+ */
+public class IngestPipelineTest {
+
+    @Test
+    void testConcurrentProducers() throws Exception {
+        int producers = 8;
+        int seriesPerProducer = 100;
+        int points = 500;
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        TimeSeriesStore store = new TimeSeriesStore(16, TimeUnit.HOURS.toMillis(2));
+        // Small rings and batches, so that the producers are blocked often
+        IngestPipeline pipeline = new IngestPipeline(store, 4, 64, 16, IngestPipeline.Backpressure.BLOCK);
+        pipeline.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0; t < producers; t++) {
+            long firstSeries = (long) t * seriesPerProducer;
+            futures.add(executor.submit(() -> {
+                startLatch.await();
+                for(int i = 0; i < points; i++) {
+                    for(long s = firstSeries; s < firstSeries + seriesPerProducer; s++) {
+                        assertTrue(pipeline.publish(s, start + i * 1000L, s * i));
+                    }
+                }
+                return null;
+            }));
+        }
+        startLatch.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        pipeline.flush();
+        // Everything published is in the store after the flush, in publish order
+        assertEquals(producers * seriesPerProducer, store.getSeriesCount());
+        assertEquals(0, pipeline.getOutOfOrderCount());
+        pipeline.close();
+
+        store.sealAll();
+        for(long s = 0; s < producers * seriesPerProducer; s++) {
+            assertEquals(points, TimeSeriesStoreTest.verifySeries(store, s));
+        }
+    }
+
+    @Test
+    void testReject() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(4, TimeUnit.HOURS.toMillis(2));
+        IngestPipeline pipeline = new IngestPipeline(store, 1, 8, 4, IngestPipeline.Backpressure.REJECT);
+
+        // Not started, the ring fills up
+        for(int i = 0; i < 8; i++) {
+            assertTrue(pipeline.publish(1, 1000L * i, (double) i));
+        }
+        assertFalse(pipeline.publish(1, 8000L, 8.0));
+        assertEquals(1, pipeline.getRejectedCount());
+
+        pipeline.start();
+        pipeline.flush();
+        assertTrue(pipeline.publish(1, 0, 0.0));
+        pipeline.close();
+        assertEquals(1, pipeline.getOutOfOrderCount());
+
+        store.sealAll();
+        assertEquals(8, TimeSeriesStoreTest.verifySeries(store, 1));
+
+        try {
+            pipeline.publish(1, 9000L, 9.0);
+            fail("Closed pipeline must not accept points");
+        } catch(IllegalStateException expected) {
+        }
+    }
+
+    @Test
+    void testConsumerFailure() throws Exception {
+        int producers = 4;
+        int amountOfSeries = 64;
+        long blockSize = TimeUnit.HOURS.toMillis(1);
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        int points = 120;
+
+        // The sink fails for every block of series 0, the rolling points of series 0 fail to be added
+        TimeSeriesStore store = new TimeSeriesStore(4, blockSize);
+        store.setBlockSink(block -> {
+            if(block.getSeriesId() == 0) {
+                throw new IllegalStateException("Sink failed");
+            }
+        });
+        IngestPipeline pipeline = new IngestPipeline(store, 2, 64, 16, IngestPipeline.Backpressure.BLOCK);
+        pipeline.start();
+
+        ExecutorService executor = Executors.newFixedThreadPool(producers);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0; t < producers; t++) {
+            int first = t;
+            futures.add(executor.submit(() -> {
+                for(int i = 0; i < points; i++) {
+                    for(long s = first; s < amountOfSeries; s += producers) {
+                        assertTrue(pipeline.publish(s, start + i * 60_000L, s * i));
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        pipeline.close();
+
+        // Only the point rolling over the block of series 0 failed, the consumers kept draining
+        assertEquals(1, pipeline.getFailedCount());
+        assertTrue(pipeline.getLastFailure() instanceof IllegalStateException);
+        store.setBlockSink(null);
+        store.sealAll();
+        assertEquals(points - 1, TimeSeriesStoreTest.verifySeries(store, 0));
+        for(long s = 1; s < amountOfSeries; s++) {
+            assertEquals(points, TimeSeriesStoreTest.verifySeries(store, s));
+        }
+    }
+
+    @Test
+    void testCloseBeforeStart() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(4, TimeUnit.HOURS.toMillis(2));
+        IngestPipeline pipeline = new IngestPipeline(store, 2, 64, 16, IngestPipeline.Backpressure.REJECT);
+        for(long s = 0; s < 10; s++) {
+            for(int i = 0; i < 5; i++) {
+                assertTrue(pipeline.publish(s, 1000L * i, (double) i));
+            }
+        }
+
+        // The published points are added by the closing thread
+        pipeline.close();
+        store.sealAll();
+        for(long s = 0; s < 10; s++) {
+            assertEquals(5, TimeSeriesStoreTest.verifySeries(store, s));
+        }
+    }
+
+    @Test
+    void testFlushBeforeStart() throws Exception {
+        TimeSeriesStore store = new TimeSeriesStore(4, TimeUnit.HOURS.toMillis(2));
+        IngestPipeline pipeline = new IngestPipeline(store, 2, 64, 16, IngestPipeline.Backpressure.REJECT);
+        for(long s = 0; s < 10; s++) {
+            for(int i = 0; i < 5; i++) {
+                assertTrue(pipeline.publish(s, 1000L * i, (double) i));
+            }
+        }
+
+        // Without consumers the flushing thread adds the points, instead of waiting for them forever
+        ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            executor.submit(pipeline::flush).get(10, TimeUnit.SECONDS);
+        } finally {
+            executor.shutdownNow();
+        }
+        assertEquals(10, store.getSeriesCount());
+
+        // The pipeline can still be started afterwards
+        pipeline.start();
+        assertTrue(pipeline.publish(0, 5000L, 5.0));
+        pipeline.close();
+        store.sealAll();
+        assertEquals(6, TimeSeriesStoreTest.verifySeries(store, 0));
+        for(long s = 1; s < 10; s++) {
+            assertEquals(5, TimeSeriesStoreTest.verifySeries(store, s));
+        }
+    }
+}
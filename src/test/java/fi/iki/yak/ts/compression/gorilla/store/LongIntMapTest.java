@@ -0,0 +1,66 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares the primitive map to a HashMap under random operations.
+ *
+ * @author Michael Burman
+ */
+public class LongIntMapTest {
+
+    private static int expected(Integer value) {
+        return value == null ? LongIntMap.NOT_FOUND : value;
+    }
+
+    @Test
+    void testRandomOperations() throws Exception {
+        Random random = new Random(42);
+        LongIntMap map = new LongIntMap();
+        Map<Long, Integer> reference = new HashMap<>();
+
+        for(int i = 0; i < 200_000; i++) {
+            // Small key range causes collisions, removes and re-inserts
+            long key = random.nextInt(20_000) * 64L + (random.nextBoolean() ? Long.MIN_VALUE : 0);
+            int op = random.nextInt(10);
+            if(op < 5) {
+                int value = random.nextInt(Integer.MAX_VALUE);
+                assertEquals(expected(reference.put(key, value)), map.put(key, value));
+            } else if(op < 7) {
+                assertEquals(expected(reference.remove(key)), map.remove(key));
+            } else {
+                assertEquals(expected(reference.get(key)), map.get(key));
+            }
+            assertEquals(reference.size(), map.size());
+        }
+        for (Map.Entry<Long, Integer> entry : reference.entrySet()) {
+            assertEquals((int) entry.getValue(), map.get(entry.getKey()));
+        }
+    }
+
+    @Test
+    void testShardRemove() throws Exception {
+        Shard shard = new Shard();
+        for(long id = 0; id < 100; id++) {
+            shard.getOrCreate(id);
+        }
+        assertEquals(100, shard.size());
+        assertEquals(5, shard.remove(5).seriesId);
+        assertNull(shard.remove(5));
+        assertNull(shard.get(5));
+
+        // The last series was moved to the removed position and is still found
+        assertEquals(99, shard.get(99).seriesId);
+        assertEquals(99, shard.size());
+        for(int i = 0; i < shard.size(); i++) {
+            assertEquals(shard.at(i), shard.get(shard.at(i).seriesId));
+        }
+    }
+}
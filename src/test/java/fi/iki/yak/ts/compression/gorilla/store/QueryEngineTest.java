@@ -0,0 +1,134 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Compares parallel range queries to aggregates calculated while writing the points.
+ *
+ * @author Michael Burman
+ */
+public class QueryEngineTest {
+
+    private static final long MINUTE = TimeUnit.MINUTES.toMillis(1);
+
+    @Test
+    void testGroupedQuery() throws Exception {
+        int series = 300;
+        int groups = 3;
+        int points = 5 * 60;
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        TimeSeriesStore store = new TimeSeriesStore(8, TimeUnit.HOURS.toMillis(1));
+
+        // Query the middle three hours in ten minute buckets, the last hour of the data is in the open blocks
+        long queryStart = start + 90 * MINUTE;
+        long queryEnd = start + 275 * MINUTE;
+        long step = 10 * MINUTE;
+        int buckets = 19;
+
+        long[] seriesIds = new long[series];
+        int[] seriesGroups = new int[series];
+        long[][] counts = new long[groups][buckets];
+        double[][] sums = new double[groups][buckets];
+        double[][] maxs = new double[groups][buckets];
+        for(int s = 0; s < series; s++) {
+            seriesIds[s] = s * 11L;
+            seriesGroups[s] = s % groups;
+            for(int i = 0; i < points; i++) {
+                long timestamp = start + i * MINUTE + s;
+                double value = (s * 7 + i * 13) % 101;
+                store.addValue(seriesIds[s], timestamp, value);
+                if(timestamp >= queryStart && timestamp < queryEnd) {
+                    int b = (int) ((timestamp - queryStart) / step);
+                    counts[s % groups][b]++;
+                    sums[s % groups][b] += value;
+                    maxs[s % groups][b] = Math.max(maxs[s % groups][b], value);
+                }
+            }
+        }
+
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            QueryEngine[] engines = { new QueryEngine(store, pool, null),
+                    new QueryEngine(store, pool, new BlockCache(64L * 1024 * 1024)) };
+            for (QueryEngine engine : engines) {
+                for(int round = 0; round < 2; round++) {
+                    QueryResult result = engine.query(seriesIds, seriesGroups, groups, queryStart, queryEnd, step);
+                    assertEquals(buckets, result.getBucketCount());
+                    assertEquals(queryStart + step, result.getBucketTimestamp(1));
+                    for(int g = 0; g < groups; g++) {
+                        assertArrayEquals(counts[g], result.getCounts(g));
+                        assertArrayEquals(maxs[g], result.getMaxs(g));
+                        double[] resultSums = result.getSums(g);
+                        for(int b = 0; b < buckets; b++) {
+                            assertEquals(sums[g][b], resultSums[b], 1e-6);
+                        }
+                    }
+                }
+            }
+
+            QueryResult total = engines[0].query(seriesIds, queryStart, queryEnd, step);
+            assertEquals(1, total.getGroupCount());
+            long count = 0;
+            for (long c : total.getCounts(0)) {
+                count += c;
+            }
+            assertEquals(series * 185L, count);
+
+            // Nothing stored before the data
+            QueryResult empty = engines[0].query(seriesIds, start - 60 * MINUTE, start, step);
+            assertEquals(0, empty.getCounts(0)[0]);
+            assertEquals(Double.NaN, empty.getMins(0)[0]);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    void testQueryWhileSealing() throws Exception {
+        long blockSize = 10;
+        long points = 20_000;
+        TimeSeriesStore store = new TimeSeriesStore(1, blockSize);
+        AtomicLong written = new AtomicLong();
+
+        // Every tenth point seals a block, none of them may be missing from a concurrent query. The values flip
+        // all the bits, so every point crosses a word boundary and is published by the next one.
+        Thread writer = new Thread(() -> {
+            for(long ts = 0; ts < points; ts++) {
+                store.addValue(1, ts, ts % 2 == 0 ? 0x5555555555555555L : 0xAAAAAAAAAAAAAAAAL);
+                written.set(ts + 1);
+                if(ts % blockSize == blockSize / 2) {
+                    Thread.yield();
+                }
+            }
+        });
+        writer.start();
+
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            QueryEngine engine = new QueryEngine(store, pool, null);
+            long[] seriesIds = { 1 };
+            while(writer.isAlive()) {
+                long before = written.get();
+                long start = Math.max(0, before - 10 * blockSize);
+                long count = engine.query(seriesIds, start, points, points - start).getCounts(0)[0];
+                long after = written.get();
+                assertTrue(count >= before - 1 - start && count <= after - start,
+                        (before - 1 - start) + " <= " + count + " <= " + (after - start));
+            }
+        } finally {
+            writer.join();
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the time to live and the byte budget of the sealed blocks.
+ *
+ * @author Michael Burman
+ */
+public class RetentionManagerTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long START = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC)
+            .toEpochMilli();
+
+    private static TimeSeriesStore createStore(int series, int hours) {
+        TimeSeriesStore store = new TimeSeriesStore(4, HOUR);
+        for(int i = 0; i < hours * 60; i++) {
+            for(long s = 0; s < series; s++) {
+                store.addValue(s * 100, START + i * 60000L, (double) i);
+            }
+        }
+        return store;
+    }
+
+    @Test
+    void testTtlPerNamespace() throws Exception {
+        TimeSeriesStore store = createStore(4, 10);
+        List<Block> demoted = new ArrayList<>();
+
+        // Series below 200 are in a namespace with a three hour time to live, others are kept forever
+        RetentionManager retention = new RetentionManager(store,
+                seriesId -> seriesId < 200 ? 3 * HOUR : RetentionManager.FOREVER, Long.MAX_VALUE, demoted::add,
+                () -> START + 10 * HOUR);
+
+        long before = store.getSealedBytes();
+        assertEquals(14, retention.sweep());
+        assertEquals(14, demoted.size());
+        assertEquals(0, retention.sweep());
+
+        for (Block block : demoted) {
+            assertTrue(block.getSeriesId() < 200);
+            assertTrue(block.getLastTimestamp() < START + 7 * HOUR);
+        }
+        assertEquals(2, store.getBlocks(0).size());
+        assertEquals(START + 7 * HOUR, store.getBlocks(100).get(0).getBlockTimestamp());
+        assertEquals(9, store.getBlocks(300).size());
+        assertEquals(before - demoted.stream().mapToLong(Block::getSizeInBytes).sum(), store.getSealedBytes());
+
+        // Open blocks are never removed
+        assertTrue(store.snapshot(0).getCount() > 0);
+    }
+
+    @Test
+    void testByteBudget() throws Exception {
+        TimeSeriesStore store = createStore(10, 10);
+        long budget = store.getSealedBytes() / 2;
+        List<Block> demoted = new ArrayList<>();
+        try (RetentionManager retention = new RetentionManager(store, seriesId -> RetentionManager.FOREVER, budget,
+                demoted::add, () -> START + 10 * HOUR)) {
+            assertTrue(retention.sweep() > 0);
+        }
+        assertTrue(store.getSealedBytes() <= budget);
+
+        // The oldest blocks of every series went first
+        long newestDemoted = demoted.stream().mapToLong(Block::getLastTimestamp).max().getAsLong();
+        for(long s = 0; s < 10; s++) {
+            for (Block block : store.getBlocks(s * 100)) {
+                assertTrue(block.getLastTimestamp() > newestDemoted);
+            }
+        }
+    }
+
+    @Test
+    void testFailingDemoteSink() throws Exception {
+        TimeSeriesStore store = createStore(4, 10);
+        long before = store.getSealedBytes();
+
+        // Every other block fails to demote, like a segment which has filled up
+        List<Block> demoted = new ArrayList<>();
+        boolean[] full = { true };
+        int[] calls = { 0 };
+        RetentionManager retention = new RetentionManager(store, seriesId -> 3 * HOUR, Long.MAX_VALUE, block -> {
+            if(full[0] && calls[0]++ % 2 == 0) {
+                throw new UncheckedIOException(new IOException("Segment is full"));
+            }
+            demoted.add(block);
+        }, () -> START + 10 * HOUR);
+
+        int removed = retention.sweep();
+        assertEquals(14, removed);
+        assertEquals(removed, demoted.size());
+        assertTrue(retention.getLastFailure() instanceof UncheckedIOException);
+
+        // The failed blocks are back in the store in time order and are demoted by the next sweep
+        assertEquals(before - demoted.stream().mapToLong(Block::getSizeInBytes).sum(), store.getSealedBytes());
+        for(long s = 0; s < 4; s++) {
+            List<Block> blocks = store.getBlocks(s * 100);
+            for(int i = 1; i < blocks.size(); i++) {
+                assertTrue(blocks.get(i - 1).getBlockTimestamp() < blocks.get(i).getBlockTimestamp());
+            }
+        }
+        full[0] = false;
+        assertEquals(14, retention.sweep());
+        assertEquals(28, demoted.size());
+        assertEquals(8, store.getBlocks(0).size() + store.getBlocks(100).size() + store.getBlocks(200).size()
+                + store.getBlocks(300).size());
+    }
+
+    @Test
+    void testRemoveIdleSeries() throws Exception {
+        TimeSeriesStore store = createStore(4, 10);
+        store.addValue(100, START + 11 * HOUR, 1.0);
+        store.sealAll();
+        store.addValue(200, START + 11 * HOUR, 1.0);
+        assertEquals(4, store.getSeriesCount());
+
+        // Series 0 and 300 have only expired blocks left, 100 has a newer block and 200 an open block
+        RetentionManager retention = new RetentionManager(store, seriesId -> HOUR, Long.MAX_VALUE, null,
+                () -> START + 12 * HOUR);
+        assertEquals(40, retention.sweep());
+        assertEquals(2, store.getSeriesCount());
+        assertEquals(store.getBlocks(100).get(0).getSizeInBytes(), store.getSealedBytes());
+        assertTrue(store.getBlocks(0).isEmpty());
+        assertTrue(store.getBlocks(200).isEmpty());
+        assertNotNull(store.snapshot(200));
+    }
+}
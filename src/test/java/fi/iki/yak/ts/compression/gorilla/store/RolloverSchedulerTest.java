@@ -0,0 +1,130 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the staggered sealing of the blocks.
+ *
+ * @author Michael Burman
+ */
+public class RolloverSchedulerTest {
+
+    @Test
+    void testStaggeredRollover() throws Exception {
+        long blockSize = TimeUnit.HOURS.toMillis(2);
+        long staggerWindow = TimeUnit.MINUTES.toMillis(10);
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        int amountOfSeries = 1000;
+
+        TimeSeriesStore store = new TimeSeriesStore(8, blockSize);
+        for(int s = 0; s < amountOfSeries; s++) {
+            store.addValue(s, start + 1000 + s, (double) s);
+        }
+
+        AtomicLong clock = new AtomicLong(start);
+        List<Block> sealed = new CopyOnWriteArrayList<>();
+        RolloverScheduler scheduler = new RolloverScheduler(store, sealed::add, staggerWindow, 60000, clock::get);
+        scheduler.start();
+
+        assertEquals(0, scheduler.check());
+
+        // Sealing is spread over the stagger window
+        int total = 0;
+        int steps = 10;
+        for(int i = 0; i < steps; i++) {
+            clock.set(start + blockSize + (i + 1) * staggerWindow / steps - 1);
+            int count = scheduler.check();
+            assertTrue(count < amountOfSeries / 2, "Sealing should be staggered, sealed " + count);
+            total += count;
+        }
+        clock.set(start + blockSize + staggerWindow);
+        total += scheduler.check();
+        assertEquals(amountOfSeries, total);
+
+        // Rollover caused by a new point is delivered as well
+        store.addValue(0, start + blockSize + 1, 1.0);
+        store.addValue(0, start + 2 * blockSize + 1, 1.0);
+
+        scheduler.close();
+        assertEquals(amountOfSeries + 1, sealed.size());
+        for (Block block : sealed) {
+            assertEquals(1, block.getCount());
+        }
+        assertEquals(2, store.getBlocks(0).size());
+
+        // The rolled over block was copied to its exact length by the sink executor and replaced in the store
+        Block rolledOver = sealed.get(amountOfSeries);
+        assertSame(rolledOver, store.getBlocks(0).get(1));
+        assertEquals(sealed.stream().mapToLong(Block::getSizeInBytes).sum(), store.getSealedBytes());
+    }
+
+    @Test
+    void testFailingSink() throws Exception {
+        long blockSize = TimeUnit.HOURS.toMillis(2);
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        // Fills the queue of the sink executor, the last block is delivered by the checking thread
+        int amountOfSeries = RolloverScheduler.SINK_QUEUE_SIZE + 2;
+
+        TimeSeriesStore store = new TimeSeriesStore(1, blockSize);
+        for(int s = 0; s < amountOfSeries; s++) {
+            store.addValue(s, start + 1000, (double) s);
+        }
+
+        CountDownLatch blocked = new CountDownLatch(1);
+        AtomicBoolean failed = new AtomicBoolean();
+        AtomicInteger delivered = new AtomicInteger();
+        BlockSink sink = block -> {
+            if(Thread.currentThread().getName().equals("gorilla-block-sink")) {
+                try {
+                    blocked.await();
+                } catch(InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            } else if(failed.compareAndSet(false, true)) {
+                throw new IllegalStateException("Sink failure");
+            }
+            delivered.incrementAndGet();
+        };
+
+        AtomicLong clock = new AtomicLong(start + blockSize);
+        RolloverScheduler scheduler = new RolloverScheduler(store, sink, 0, 10, clock::get);
+        scheduler.start();
+        try {
+            long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(30);
+            while(scheduler.getLastFailure() == null) {
+                assertTrue(System.nanoTime() < deadline, "Sink should have failed");
+                Thread.sleep(10);
+            }
+            assertEquals("Sink failure", scheduler.getLastFailure().getMessage());
+            blocked.countDown();
+
+            // The following checks seal the rest of the series, only the failed delivery is lost
+            while(delivered.get() < amountOfSeries - 1) {
+                assertTrue(System.nanoTime() < deadline, "Checks should continue, delivered " + delivered.get());
+                Thread.sleep(10);
+            }
+        } finally {
+            blocked.countDown();
+            scheduler.close();
+        }
+        assertEquals(amountOfSeries - 1, delivered.get());
+        for(long s = 0; s < amountOfSeries; s++) {
+            assertEquals(1, store.getBlocks(s).size());
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaCompressor;
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.LongArrayOutput;
+
+/**
+ * Writes blocks to a segment and reads them back through the mapped index.
+ *
+ * @author Michael Burman
+ */
+public class SegmentTest {
+
+    private static final long BLOCK = 3600_000L;
+
+    private static Block createBlock(long seriesId, long blockTimestamp, int amount) {
+        LongArrayOutput output = new LongArrayOutput();
+        GorillaCompressor c = new GorillaCompressor(blockTimestamp, output);
+        long ts = blockTimestamp;
+        for(int i = 0; i < amount; i++) {
+            ts += 1000;
+            c.addValue(ts, seriesId * 1000 + i);
+        }
+        c.close();
+        return new Block(seriesId, blockTimestamp, ts, amount, output.getLongArray());
+    }
+
+    @Test
+    void testWriteAndFind() throws Exception {
+        Path dir = Files.createTempDirectory("segment");
+        Path path = dir.resolve("segment-0");
+        try {
+            List<Block> blocks = new ArrayList<>();
+            for(long id = 0; id < 50; id++) {
+                for(int b = 0; b < 4; b++) {
+                    blocks.add(createBlock(id * 7, b * BLOCK, ThreadLocalRandom.current().nextInt(1, 500)));
+                }
+            }
+            Collections.shuffle(blocks);
+
+            try (SegmentWriter writer = new SegmentWriter(path)) {
+                for (Block block : blocks) {
+                    writer.accept(block);
+                }
+            }
+
+            SegmentReader reader = new SegmentReader(path);
+            assertEquals(blocks.size(), reader.getBlockCount());
+
+            for (Block block : blocks) {
+                List<SegmentReader.SegmentBlock> found = reader.find(block.getSeriesId(), block.getBlockTimestamp(),
+                        block.getBlockTimestamp());
+                assertEquals(1, found.size());
+                SegmentReader.SegmentBlock segmentBlock = found.get(0);
+                assertEquals(block.getLastTimestamp(), segmentBlock.getEnd());
+
+                GorillaDecompressor expected = block.decompressor();
+                GorillaDecompressor actual = segmentBlock.decompressor();
+                int count = 0;
+                while(expected.nextPair()) {
+                    assertTrue(actual.nextPair());
+                    assertEquals(expected.getTimestamp(), actual.getTimestamp());
+                    assertEquals(expected.getValue(), actual.getValue());
+                    count++;
+                }
+                assertFalse(actual.nextPair());
+                assertEquals(block.getCount(), count);
+            }
+
+            // Blocks come back in time order and the range is applied to the whole block
+            List<SegmentReader.SegmentBlock> series = reader.find(21);
+            assertEquals(4, series.size());
+            for(int i = 0; i < series.size(); i++) {
+                assertEquals(i * BLOCK, series.get(i).getStart());
+            }
+            assertEquals(2, reader.find(21, BLOCK + 1, 2 * BLOCK).size());
+            assertEquals(0, reader.find(21, 5 * BLOCK, 6 * BLOCK).size());
+
+            // Missing series, in between, before and after the stored ones
+            assertEquals(0, reader.find(22).size());
+            assertEquals(0, reader.find(-1).size());
+            assertEquals(0, reader.find(1000).size());
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void testUnclosedSegment() throws Exception {
+        Path path = Files.createTempFile("segment", null);
+        try {
+            Files.write(path, new byte[64]);
+            new SegmentReader(path);
+            fail("Segment without a trailer must not be accepted");
+        } catch(IOException expected) {
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
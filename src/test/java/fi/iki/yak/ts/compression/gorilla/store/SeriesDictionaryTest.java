@@ -0,0 +1,144 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * Tests the concurrent lookup-or-insert and the snapshots of the metric name dictionary.
+ *
+ * @author Michael Burman
+ */
+public class SeriesDictionaryTest {
+
+    private static String name(int i) {
+        return "cpu.usage{host=h\u00f6st-" + i + ",dc=" + (i % 7) + "}";
+    }
+
+    /**
+     * Name in the middle of a larger buffer, as it would be in a parsed request
+     */
+    private static ByteBuffer slice(String name) {
+        byte[] bytes = name.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(bytes.length + 10);
+        buffer.position(5);
+        buffer.put(bytes);
+        buffer.limit(5 + bytes.length).position(5);
+        return buffer;
+    }
+
+    @Test
+    void testConcurrentGetOrCreate() throws Exception {
+        int threads = 8;
+        int names = 50_000;
+        SeriesDictionary dictionary = new SeriesDictionary();
+        AtomicIntegerArray ids = new AtomicIntegerArray(names);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            int offset = t * 1000;
+            futures.add(executor.submit(() -> {
+                startLatch.await();
+                // Every thread asks for every name, starting from a different point
+                for(int i = 0; i < names; i++) {
+                    int n = (i + offset) % names;
+                    ByteBuffer name = slice(name(n));
+                    int id = dictionary.getOrCreate(name);
+                    assertEquals(5, name.position());
+                    if(!ids.compareAndSet(n, 0, id + 1)) {
+                        assertEquals(ids.get(n), id + 1, "Name got two ids");
+                    }
+                }
+                return null;
+            }));
+        }
+        startLatch.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+
+        assertEquals(names, dictionary.size());
+        boolean[] seen = new boolean[names];
+        for(int n = 0; n < names; n++) {
+            int id = ids.get(n) - 1;
+            assertTrue(!seen[id], "Ids must be unique");
+            seen[id] = true;
+            assertEquals(name(n), dictionary.getName(id));
+            assertEquals(id, dictionary.get(slice(name(n))));
+        }
+        assertEquals(SeriesDictionary.NOT_FOUND, dictionary.get(slice("unknown")));
+    }
+
+    @Test
+    void testSnapshot() throws Exception {
+        SeriesDictionary dictionary = new SeriesDictionary();
+        for(int i = 0; i < 10_000; i++) {
+            assertEquals(i, dictionary.getOrCreate(name(i)));
+        }
+        assertEquals(10_000, dictionary.getOrCreate(""));
+
+        Path path = Files.createTempFile("dictionary", null);
+        try {
+            dictionary.writeTo(path);
+            SeriesDictionary restored = SeriesDictionary.readFrom(path);
+            assertEquals(dictionary.size(), restored.size());
+            for(int i = 0; i < 10_000; i++) {
+                assertEquals(i, restored.get(slice(name(i))));
+            }
+            assertEquals(10_000, restored.get(ByteBuffer.allocate(0)));
+            assertEquals(10_001, restored.getOrCreate("new"));
+
+            // Replaces the existing snapshot through a temporary file
+            restored.writeTo(path);
+            assertEquals(10_002, SeriesDictionary.readFrom(path).size());
+            assertFalse(Files.exists(path.resolveSibling(path.getFileName() + ".tmp")));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testCorruptedSnapshot() throws Exception {
+        SeriesDictionary dictionary = new SeriesDictionary();
+        dictionary.getOrCreate(name(0));
+
+        Path path = Files.createTempFile("dictionary", null);
+        try {
+            dictionary.writeTo(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                ByteBuffer bytes = ByteBuffer.allocate(Integer.BYTES).putInt(-1);
+                bytes.flip();
+                channel.write(bytes, Long.BYTES + Integer.BYTES);
+            }
+            try {
+                SeriesDictionary.readFrom(path);
+                fail("Negative length of the names should be rejected");
+            } catch(IOException e) {
+                // Expected
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}
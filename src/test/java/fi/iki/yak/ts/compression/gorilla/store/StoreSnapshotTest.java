@@ -0,0 +1,199 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.MemoryBudget;
+
+/**
+ * Snapshots a store to a file and continues appending to the restored store.
+ *
+ * @author Michael Burman
+ */
+public class StoreSnapshotTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long START = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC)
+            .toEpochMilli();
+
+    private static void addPoints(TimeSeriesStore store, int from, int to) {
+        for(int i = from; i < to; i++) {
+            for(long s = 0; s < 50; s++) {
+                // Series stop at different times, so some have no open block at the end
+                if(i < 1000 + s * 10) {
+                    store.addValue(s * 13, START + i * 10_000L + s, (double) (i % 17) * s);
+                }
+            }
+        }
+    }
+
+    private static void assertSameBlocks(TimeSeriesStore expected, TimeSeriesStore actual) {
+        assertEquals(expected.getSeriesCount(), actual.getSeriesCount());
+        assertEquals(expected.getSealedBytes(), actual.getSealedBytes());
+        for (long seriesId : expected.getSeriesIds()) {
+            List<Block> expectedBlocks = expected.getBlocks(seriesId);
+            List<Block> actualBlocks = actual.getBlocks(seriesId);
+            assertEquals(expectedBlocks.size(), actualBlocks.size());
+            for(int i = 0; i < expectedBlocks.size(); i++) {
+                Block e = expectedBlocks.get(i);
+                Block a = actualBlocks.get(i);
+                assertEquals(e.getBlockTimestamp(), a.getBlockTimestamp());
+                assertEquals(e.getLastTimestamp(), a.getLastTimestamp());
+                assertEquals(e.getCount(), a.getCount());
+                assertArrayEquals(e.getData(), a.getData());
+            }
+        }
+    }
+
+    @Test
+    void testSnapshotAndContinue() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path path = dir.resolve("store.snapshot");
+        try {
+            TimeSeriesStore store = new TimeSeriesStore(8, HOUR);
+            addPoints(store, 0, 1000);
+
+            long size = StoreSnapshot.write(store, path);
+            assertEquals(Files.size(path), size);
+            assertFalse(Files.exists(dir.resolve("store.snapshot.tmp")));
+
+            TimeSeriesStore restored = new TimeSeriesStore(4, HOUR);
+            assertEquals(50, StoreSnapshot.restore(path, restored));
+            for (long seriesId : store.getSeriesIds()) {
+                assertEquals(store.snapshot(seriesId).getCount(), restored.snapshot(seriesId).getCount());
+            }
+
+            // Restored open blocks continue exactly where the original ones were, out of order points are still
+            // rejected
+            assertFalse(restored.addValue(0, START, 1.0));
+            addPoints(store, 1000, 2000);
+            addPoints(restored, 1000, 2000);
+            store.sealAll();
+            restored.sealAll();
+            assertSameBlocks(store, restored);
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void testRestoreWithMemoryBudget() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path path = dir.resolve("store.snapshot");
+        try {
+            TimeSeriesStore store = new TimeSeriesStore(8, HOUR);
+            addPoints(store, 0, 1000);
+            StoreSnapshot.write(store, path);
+
+            TimeSeriesStore restored = new TimeSeriesStore(8, HOUR);
+            MemoryBudget budget = new MemoryBudget(Long.MAX_VALUE, MemoryBudget.Policy.REJECT);
+            restored.setMemoryBudget(budget);
+            StoreSnapshot.restore(path, restored);
+            assertTrue(budget.getUsedBytes() > 0);
+
+            restored.sealAll();
+            assertEquals(0, budget.getUsedBytes());
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void testInvalidRestore() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path path = dir.resolve("store.snapshot");
+        try {
+            TimeSeriesStore store = new TimeSeriesStore(8, HOUR);
+            addPoints(store, 0, 100);
+            StoreSnapshot.write(store, path);
+
+            try {
+                StoreSnapshot.restore(path, new TimeSeriesStore(8, 2 * HOUR));
+                fail("Block size mismatch should have been detected");
+            } catch(IllegalArgumentException e) {
+                // Expected
+            }
+
+            // Found before anything is restored
+            TimeSeriesStore existing = new TimeSeriesStore(8, HOUR);
+            existing.addValue(49 * 13, START, 1.0);
+            try {
+                StoreSnapshot.restore(path, existing);
+                fail("Existing series should have been detected");
+            } catch(IllegalStateException e) {
+                // Expected
+            }
+            assertEquals(1, existing.getSeriesCount());
+
+            long size = Files.size(path);
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.WRITE)) {
+                channel.truncate(size - 64);
+            }
+            try {
+                StoreSnapshot.restore(path, new TimeSeriesStore(8, HOUR));
+                fail("Truncated snapshot should have been detected");
+            } catch(IOException e) {
+                // Expected
+            }
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+
+    @Test
+    void testCorruptedRecordRestoresNothing() throws Exception {
+        Path dir = Files.createTempDirectory("snapshot");
+        Path path = dir.resolve("store.snapshot");
+        try {
+            TimeSeriesStore store = new TimeSeriesStore(8, HOUR);
+            addPoints(store, 0, 1000);
+            StoreSnapshot.write(store, path);
+
+            // Skip to the middle record and break its amount of sealed blocks
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                ByteBuffer word = ByteBuffer.allocate(Long.BYTES);
+                long offset = 3 * Long.BYTES;
+                for(int i = 0; i < 25; i++) {
+                    word.clear();
+                    channel.read(word, offset);
+                    offset += word.getLong(0) * Long.BYTES;
+                }
+                word.clear();
+                word.putLong(0, Long.MAX_VALUE);
+                channel.write(word, offset + 3 * Long.BYTES);
+            }
+
+            TimeSeriesStore restored = new TimeSeriesStore(8, HOUR);
+            try {
+                StoreSnapshot.restore(path, restored);
+                fail("Corrupted record should have been detected");
+            } catch(IOException e) {
+                // Expected
+            }
+            assertEquals(0, restored.getSeriesCount());
+        } finally {
+            Files.deleteIfExists(path);
+            Files.delete(dir);
+        }
+    }
+}
@@ -0,0 +1,239 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+
+/**
+ * Moves blocks through the hot, warm and cold tiers and reads them back.
+ *
+ * @author Michael Burman
+ */
+public class TieredStorageTest {
+
+    private static final long HOUR = TimeUnit.HOURS.toMillis(1);
+    private static final long DAY = TimeUnit.DAYS.toMillis(1);
+    private static final long START = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC)
+            .toEpochMilli();
+
+    private static TimeSeriesStore createStore() {
+        TimeSeriesStore store = new TimeSeriesStore(4, HOUR);
+        for(int i = 0; i < 3 * 24 * 60; i++) {
+            for(long s = 0; s < 20; s++) {
+                store.addValue(s, START + i * 60_000L, (double) ((i / 10) % 7 + s));
+            }
+        }
+        store.sealAll();
+        return store;
+    }
+
+    private static List<Long> points(List<GorillaDecompressor> decompressors) {
+        List<Long> points = new ArrayList<>();
+        for (GorillaDecompressor d : decompressors) {
+            while(d.nextPair()) {
+                points.add(d.getTimestamp());
+                points.add(d.getValue());
+            }
+        }
+        return points;
+    }
+
+    private static List<List<Long>> expectedPoints(TimeSeriesStore store) {
+        List<List<Long>> expected = new ArrayList<>();
+        for(long s = 0; s < 20; s++) {
+            List<GorillaDecompressor> decompressors = new ArrayList<>();
+            store.getBlocks(s).forEach(block -> decompressors.add(block.decompressor()));
+            expected.add(points(decompressors));
+        }
+        return expected;
+    }
+
+    private static void delete(Path dir) throws IOException {
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+            for (Path file : files) {
+                Files.delete(file);
+            }
+        }
+        Files.delete(dir);
+    }
+
+    @Test
+    void testMigrateAndRead() throws Exception {
+        Path dir = Files.createTempDirectory("tiers");
+        try {
+            TimeSeriesStore store = createStore();
+            List<List<Long>> expected = expectedPoints(store);
+
+            // Migrated once per day, a warm segment is recompressed once all of its blocks are old enough
+            AtomicLong now = new AtomicLong(START + 2 * DAY);
+            try (TieredStorage tiers = new TieredStorage(store, dir, DAY, 2 * DAY, 1024 * 1024, now::get)) {
+                assertEquals(20 * 24, tiers.migrate());
+                assertEquals(0, tiers.getBlockCount(TieredStorage.Tier.COLD));
+                now.set(START + 3 * DAY);
+                assertEquals(20 * 24, tiers.migrate());
+                assertEquals(20 * 24, tiers.getBlockCount(TieredStorage.Tier.HOT));
+                assertEquals(20 * 24, tiers.getBlockCount(TieredStorage.Tier.WARM));
+                assertEquals(20 * 24, tiers.getBlockCount(TieredStorage.Tier.COLD));
+                assertTrue(tiers.getSizeInBytes(TieredStorage.Tier.COLD) > 0);
+                assertEquals(0, tiers.migrate());
+
+                for(long s = 0; s < 20; s++) {
+                    assertEquals(expected.get((int) s), points(tiers.read(s, Long.MIN_VALUE, Long.MAX_VALUE)));
+                }
+                assertEquals(20, tiers.getPromotionCount());
+
+                // Promoted series are not inflated again
+                List<Long> range = points(tiers.read(3, START + 2 * HOUR, START + 3 * HOUR - 1));
+                assertEquals(2 * 60, range.size());
+                assertEquals(Long.valueOf(START + 2 * HOUR), range.get(0));
+                assertEquals(20, tiers.getPromotionCount());
+                assertTrue(tiers.getPromotedBytes() > 0);
+            }
+
+            // Segments are found again, the hot blocks were only in the store
+            TimeSeriesStore empty = new TimeSeriesStore(4, HOUR);
+            try (TieredStorage tiers = new TieredStorage(empty, dir, DAY, 2 * DAY, 0, now::get)) {
+                assertEquals(20 * 24, tiers.getBlockCount(TieredStorage.Tier.WARM));
+                assertEquals(20 * 24, tiers.getBlockCount(TieredStorage.Tier.COLD));
+                List<Long> points = points(tiers.read(7, Long.MIN_VALUE, Long.MAX_VALUE));
+                assertEquals(expected.get(7).subList(0, points.size()), points);
+                assertEquals(2 * 2 * 24 * 60, points.size());
+
+                // Nothing is kept promoted without memory for it
+                tiers.read(7, Long.MIN_VALUE, Long.MAX_VALUE);
+                assertEquals(2, tiers.getPromotionCount());
+                assertEquals(0, tiers.getPromotedBytes());
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    void testExpireSegments() throws Exception {
+        Path dir = Files.createTempDirectory("tiers");
+        try {
+            TimeSeriesStore store = createStore();
+            AtomicLong now = new AtomicLong(START + 3 * DAY);
+            try (TieredStorage tiers = new TieredStorage(store, dir, HOUR, DAY, 1024 * 1024, now::get)) {
+                tiers.migrate();
+                now.set(START + 4 * DAY);
+                tiers.migrate();
+                assertEquals(0, tiers.getBlockCount(TieredStorage.Tier.WARM));
+                assertEquals(20 * 3 * 24, tiers.getBlockCount(TieredStorage.Tier.COLD));
+                tiers.read(0, Long.MIN_VALUE, Long.MAX_VALUE);
+                assertTrue(tiers.getPromotedBytes() > 0);
+
+                // Both segments end on the third day
+                tiers.setTtl(2 * DAY);
+                tiers.migrate();
+                assertEquals(20 * 3 * 24, tiers.getBlockCount(TieredStorage.Tier.COLD));
+                now.set(START + 5 * DAY);
+                tiers.migrate();
+                assertEquals(0, tiers.getBlockCount(TieredStorage.Tier.COLD));
+                assertEquals(0, tiers.getPromotedBytes());
+                assertTrue(tiers.read(0, Long.MIN_VALUE, Long.MAX_VALUE).isEmpty());
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(dir)) {
+                assertFalse(files.iterator().hasNext());
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    void testAgedBlocksAreNotCompacted() throws Exception {
+        Path dir = Files.createTempDirectory("tiers");
+        try {
+            TimeSeriesStore store = createStore();
+            List<List<Long>> expected = expectedPoints(store);
+            AtomicLong now = new AtomicLong(START + 2 * DAY);
+            try (TieredStorage tiers = new TieredStorage(store, dir, DAY, 2 * DAY, 1024 * 1024, now::get);
+                 Compactor compactor = new Compactor(store, DAY, 1, 0)) {
+                // Writing the segment fails after the first day was frozen, the compactor must leave it alone
+                Files.delete(dir);
+                try {
+                    tiers.migrate();
+                    fail("Segment should not have been written");
+                } catch(IOException e) {
+                    // Expected
+                }
+                assertEquals(20, compactor.compactAll());
+                assertEquals(24 + 1 + 24, store.getBlocks(0).size());
+
+                Files.createDirectories(dir);
+                assertEquals(20 * 24, tiers.migrate());
+                for(long s = 0; s < 20; s++) {
+                    assertEquals(expected.get((int) s), points(tiers.read(s, Long.MIN_VALUE, Long.MAX_VALUE)));
+                }
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+
+    @Test
+    void testMigrateWhileReading() throws Exception {
+        Path dir = Files.createTempDirectory("tiers");
+        try {
+            TimeSeriesStore store = createStore();
+            List<List<Long>> expected = expectedPoints(store);
+            AtomicLong now = new AtomicLong(START + DAY);
+            try (TieredStorage tiers = new TieredStorage(store, dir, HOUR, DAY, 0, now::get)) {
+                // Every read sees every block exactly once, whichever tiers it is in during the migrations
+                AtomicBoolean stopped = new AtomicBoolean();
+                AtomicReference<Throwable> failure = new AtomicReference<>();
+                AtomicLong reads = new AtomicLong();
+                Thread reader = new Thread(() -> {
+                    try {
+                        while(!stopped.get()) {
+                            for(long s = 0; s < 20; s++) {
+                                assertEquals(expected.get((int) s),
+                                        points(tiers.read(s, Long.MIN_VALUE, Long.MAX_VALUE)));
+                                reads.incrementAndGet();
+                            }
+                        }
+                    } catch(Throwable t) {
+                        failure.set(t);
+                    }
+                });
+                reader.start();
+                try {
+                    for(; now.get() <= START + 5 * DAY; now.addAndGet(2 * HOUR)) {
+                        tiers.migrate();
+                    }
+                } finally {
+                    stopped.set(true);
+                    reader.join();
+                }
+                assertNull(failure.get());
+                assertTrue(reads.get() > 0);
+                assertEquals(0, tiers.getBlockCount(TieredStorage.Tier.HOT));
+                assertEquals(0, tiers.getBlockCount(TieredStorage.Tier.WARM));
+            }
+        } finally {
+            delete(dir);
+        }
+    }
+}
@@ -0,0 +1,142 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+import fi.iki.yak.ts.compression.gorilla.OpenBlock;
+
+/**
+ * Tests the block lifecycle of the store and hammers it from multiple threads.
+ *
+ * @author Michael Burman
+ */
+public class TimeSeriesStoreTest {
+
+    private static long blockStart() {
+        return LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+    }
+
+    /**
+     * Verifies that the blocks of a series are aligned, in order and contain increasing timestamps.
+     *
+     * @return Amount of points in the series
+     */
+    static long verifySeries(TimeSeriesStore store, long seriesId) {
+        long count = 0;
+        long previous = Long.MIN_VALUE;
+        for (Block block : store.getBlocks(seriesId)) {
+            assertEquals(0, block.getBlockTimestamp() % store.getBlockSize(), "Block is not aligned");
+            GorillaDecompressor d = block.decompressor();
+            int blockCount = 0;
+            while(d.nextPair()) {
+                assertTrue(d.getTimestamp() >= previous, "Timestamps must be in order");
+                assertTrue(d.getTimestamp() < block.getBlockTimestamp() + store.getBlockSize());
+                previous = d.getTimestamp();
+                blockCount++;
+            }
+            assertEquals(block.getCount(), blockCount);
+            assertEquals(previous, block.getLastTimestamp());
+            count += blockCount;
+        }
+        return count;
+    }
+
+    @Test
+    void testBlockRollover() throws Exception {
+        long blockSize = TimeUnit.HOURS.toMillis(1);
+        TimeSeriesStore store = new TimeSeriesStore(4, blockSize);
+        long start = blockStart();
+
+        for(int i = 0; i < 300; i++) {
+            assertTrue(store.addValue(1, start + i * 60000L, (double) i));
+        }
+        assertFalse(store.addValue(1, start, 1.0), "Out of order point should be rejected");
+
+        OpenBlock.Snapshot snapshot = store.snapshot(1);
+        assertTrue(snapshot.getCount() > 0 && snapshot.getCount() <= 60);
+        GorillaDecompressor d = snapshot.decompressor();
+        for(int i = 0; i < snapshot.getCount(); i++) {
+            assertTrue(d.nextPair());
+            assertEquals(start + (240 + i) * 60000L, d.getTimestamp());
+        }
+
+        // Five hours, the last one is still open
+        assertEquals(4, store.getBlocks(1).size());
+        assertEquals(1, store.sealAll());
+        assertEquals(5, store.getBlocks(1).size());
+        assertEquals(0, store.sealAll());
+        assertNull(store.snapshot(1));
+
+        assertEquals(300, verifySeries(store, 1));
+        assertEquals(1, store.getSeriesCount());
+        assertTrue(store.getBlocks(2).isEmpty());
+    }
+
+    @Test
+    void testConcurrentIngest() throws Exception {
+        int threads = 8;
+        int seriesPerThread = 500;
+        int sharedSeries = 4;
+        int pointsPerSeries = 200;
+
+        TimeSeriesStore store = new TimeSeriesStore(16, TimeUnit.MINUTES.toMillis(30));
+        long start = blockStart();
+
+        // Shared series are written by all the threads at once, the store must reject the points that lose the race
+        AtomicLong sharedClock = new AtomicLong(start);
+        AtomicLongArray sharedAccepted = new AtomicLongArray(sharedSeries);
+
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        CountDownLatch startLatch = new CountDownLatch(1);
+        List<Future<?>> futures = new ArrayList<>();
+        for(int t = 0; t < threads; t++) {
+            long firstSeries = sharedSeries + (long) t * seriesPerThread;
+            futures.add(executor.submit(() -> {
+                startLatch.await();
+                for(int i = 0; i < pointsPerSeries; i++) {
+                    long timestamp = start + i * 10000L;
+                    for(long s = firstSeries; s < firstSeries + seriesPerThread; s++) {
+                        assertTrue(store.addValue(s, timestamp, s * i));
+                    }
+                    int shared = i % sharedSeries;
+                    if(store.addValue(shared, sharedClock.addAndGet(1000), (long) i)) {
+                        sharedAccepted.incrementAndGet(shared);
+                    }
+                }
+                return null;
+            }));
+        }
+        startLatch.countDown();
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        executor.shutdown();
+        store.sealAll();
+
+        assertEquals(sharedSeries + threads * seriesPerThread, store.getSeriesCount());
+        for(long s = sharedSeries; s < sharedSeries + threads * seriesPerThread; s++) {
+            assertEquals(pointsPerSeries, verifySeries(store, s));
+        }
+        for(int s = 0; s < sharedSeries; s++) {
+            assertEquals(sharedAccepted.get(s), verifySeries(store, s));
+        }
+    }
+}
@@ -0,0 +1,179 @@
+package fi.iki.yak.ts.compression.gorilla.store;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.junit.jupiter.api.Assertions.fail;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import fi.iki.yak.ts.compression.gorilla.GorillaDecompressor;
+
+/**
+ * Tests group commit and replay of the write-ahead log.
+ *
+ * @author Michael Burman
+ */
+public class WriteAheadLogTest {
+
+    @Test
+    void testConcurrentAppendAndReplay() throws Exception {
+        int threads = 8;
+        int seriesPerThread = 10;
+        int points = 200;
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+
+        Path path = Files.createTempFile("wal", null);
+        try {
+            TimeSeriesStore store = new TimeSeriesStore(4, TimeUnit.HOURS.toMillis(2));
+            ExecutorService executor = Executors.newFixedThreadPool(threads);
+            CountDownLatch startLatch = new CountDownLatch(1);
+            List<Future<?>> futures = new ArrayList<>();
+            try (WriteAheadLog log = new WriteAheadLog(path)) {
+                for(int t = 0; t < threads; t++) {
+                    long firstSeries = (long) t * seriesPerThread;
+                    futures.add(executor.submit(() -> {
+                        startLatch.await();
+                        for(int i = 0; i < points; i++) {
+                            for(long s = firstSeries; s < firstSeries + seriesPerThread; s++) {
+                                long sequence = log.append(s, start + i * 1000L, s * i);
+                                store.addValue(s, start + i * 1000L, s * i);
+                                log.sync(sequence);
+                            }
+                        }
+                        return null;
+                    }));
+                }
+                startLatch.countDown();
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+                executor.shutdown();
+
+                long total = (long) threads * seriesPerThread * points;
+                long batches = (log.size() - total * WriteAheadLog.RECORD_BYTES) / WriteAheadLog.HEADER_BYTES;
+                assertTrue(batches > 0 && batches <= total);
+            }
+
+            TimeSeriesStore recovered = new TimeSeriesStore(4, TimeUnit.HOURS.toMillis(2));
+            assertEquals((long) threads * seriesPerThread * points, WriteAheadLog.replay(path, recovered));
+            assertEquals(store.getSeriesCount(), recovered.getSeriesCount());
+            for(long s = 0; s < threads * seriesPerThread; s++) {
+                GorillaDecompressor d = recovered.snapshot(s).decompressor();
+                int count = recovered.snapshot(s).getCount();
+                for(int i = 0; i < count; i++) {
+                    assertTrue(d.nextPair());
+                    assertEquals(start + i * 1000L, d.getTimestamp());
+                    assertEquals(s * i, d.getValue());
+                }
+            }
+            recovered.sealAll();
+            for(long s = 0; s < threads * seriesPerThread; s++) {
+                assertEquals(points, TimeSeriesStoreTest.verifySeries(recovered, s));
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testTornBatch() throws Exception {
+        Path path = Files.createTempFile("wal", null);
+        try {
+            try (WriteAheadLog log = new WriteAheadLog(path)) {
+                for(int i = 0; i < 10; i++) {
+                    log.write(1, i, i);
+                }
+            }
+            long size = Files.size(path);
+
+            // Half written batch at the end of the log
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.APPEND)) {
+                ByteBuffer torn = ByteBuffer.allocate(WriteAheadLog.HEADER_BYTES + WriteAheadLog.RECORD_BYTES);
+                torn.putInt(3 * WriteAheadLog.RECORD_BYTES).putInt(0).putLong(2).putLong(10).putLong(10);
+                torn.flip();
+                channel.write(torn);
+            }
+
+            long[] sum = new long[1];
+            assertEquals(10, WriteAheadLog.replay(path, (seriesId, timestamp, value) -> sum[0] += value));
+            assertEquals(45, sum[0]);
+
+            // Reopening cuts the torn batch away and new points follow the complete ones
+            try (WriteAheadLog log = new WriteAheadLog(path)) {
+                assertEquals(size, log.size());
+                log.write(1, 10, 10);
+            }
+            assertEquals(11, WriteAheadLog.replay(path, (seriesId, timestamp, value) -> {}));
+
+            try (WriteAheadLog log = new WriteAheadLog(path)) {
+                log.reset();
+                assertEquals(0, log.size());
+            }
+            assertEquals(0, WriteAheadLog.replay(path, (seriesId, timestamp, value) -> {}));
+        } finally {
+            Files.delete(path);
+        }
+    }
+
+    @Test
+    void testCheckpoint() throws Exception {
+        long blockSize = TimeUnit.HOURS.toMillis(2);
+        long start = LocalDateTime.now().truncatedTo(ChronoUnit.DAYS).toInstant(ZoneOffset.UTC).toEpochMilli();
+        Path path = Files.createTempFile("wal", null);
+        try {
+            TimeSeriesStore store = new TimeSeriesStore(4, blockSize);
+            List<Block> persisted = new ArrayList<>();
+            try (WriteAheadLog log = new WriteAheadLog(path)) {
+                // Sealed blocks are persisted and checkpointed in the sink
+                store.setBlockSink(block -> {
+                    persisted.add(block);
+                    log.checkpoint(block.getSeriesId(), block.getLastTimestamp());
+                });
+                for(long ts = start; ts < start + 3 * blockSize; ts += 60_000) {
+                    for(long s = 0; s < 10; s++) {
+                        long sequence = log.append(s, ts, ts);
+                        store.addValue(s, ts, ts);
+                        log.sync(sequence);
+                    }
+                }
+                try {
+                    log.append(0, WriteAheadLog.CHECKPOINT, 0);
+                    fail("Checkpoint timestamp should have been rejected");
+                } catch(IllegalArgumentException e) {
+                    // Expected
+                }
+            }
+            assertEquals(20, persisted.size());
+
+            // Only the points of the open blocks are replayed
+            TimeSeriesStore recovered = new TimeSeriesStore(4, blockSize);
+            long perBlock = blockSize / 60_000;
+            assertEquals(10 * perBlock, WriteAheadLog.replay(path, recovered));
+            recovered.sealAll();
+            for(long s = 0; s < 10; s++) {
+                List<Block> blocks = recovered.getBlocks(s);
+                assertEquals(1, blocks.size());
+                assertEquals(start + 2 * blockSize, blocks.get(0).getBlockTimestamp());
+                assertEquals(perBlock, blocks.get(0).getCount());
+            }
+        } finally {
+            Files.delete(path);
+        }
+    }
+}